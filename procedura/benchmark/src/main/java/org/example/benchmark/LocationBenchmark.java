@@ -0,0 +1,37 @@
+package org.example.benchmark;
+
+import org.neo4j.graphdb.Result;
+import org.neo4j.graphdb.Transaction;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * custom.getRandomLocation (agregacja po wszystkich Stop) oraz custom.createGuest.
+ * Zapis gościa robimy w transakcji bez commit, żeby baza nie rosła między iteracjami.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class LocationBenchmark {
+
+    @Benchmark
+    public double randomLocation(NetworkState state) {
+        return state.db.executeTransactionally(
+                "CALL custom.getRandomLocation() YIELD latitude, longitude RETURN latitude + longitude AS v",
+                Map.of(),
+                result -> ((Number) result.next().get("v")).doubleValue());
+    }
+
+    @Benchmark
+    public Object createGuest(NetworkState state) {
+        try (Transaction tx = state.db.beginTx();
+             Result result = tx.execute("CALL custom.createGuest($name, $id) YIELD nodeId RETURN nodeId",
+                     Map.of("name", "Benchmark", "id", "bench_guest"))) {
+            return result.next().get("nodeId");
+        }
+    }
+}
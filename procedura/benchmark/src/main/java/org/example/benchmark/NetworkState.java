@@ -0,0 +1,49 @@
+package org.example.benchmark;
+
+import org.example.GuestProcedures;
+import org.example.LocationProcedures;
+import org.example.TripPlanner;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.harness.Neo4j;
+import org.neo4j.harness.Neo4jBuilders;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Wbudowana baza testowa (neo4j-harness) z zarejestrowanymi procedurami i sztuczną siecią.
+ * Budowana raz na cały przebieg benchmarku; rozmiar sieci sterujemy przez @Param (-p gridSize=...).
+ */
+@State(Scope.Benchmark)
+public class NetworkState {
+
+    @Param({"10", "30"})
+    public int gridSize;
+
+    @Param({"600"})
+    public int headwaySeconds;
+
+    public Neo4j neo4j;
+    public GraphDatabaseService db;
+    public SyntheticNetwork network;
+
+    @Setup(Level.Trial)
+    public void start() {
+        neo4j = Neo4jBuilders.newInProcessBuilder()
+                .withDisabledServer()
+                .withProcedure(TripPlanner.class)
+                .withProcedure(LocationProcedures.class)
+                .withProcedure(GuestProcedures.class)
+                .build();
+        db = neo4j.defaultDatabaseService();
+
+        network = new SyntheticNetwork(gridSize, headwaySeconds);
+        network.load(db);
+
+        // Snapshot rozkładu budujemy przed pomiarem, żeby nie wliczał się do pierwszej iteracji
+        db.executeTransactionally("CALL custom.rebuildTimetable()");
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        if (neo4j != null) neo4j.close();
+    }
+}
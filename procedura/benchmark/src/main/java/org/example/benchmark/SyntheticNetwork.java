@@ -0,0 +1,193 @@
+package org.example.benchmark;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+
+import java.util.*;
+
+/**
+ * Generator sztucznej sieci w stylu GTFS: siatka size x size przystanków, na każdym wierszu
+ * i każdej kolumnie linie w obu kierunkach, kursy co headwaySeconds od 05:00 do 25:00
+ * (ostatnie kursy przechodzą przez północ, tak jak w prawdziwym GTFS).
+ *
+ * Tworzy: Stop, Trip, Calendar, VALID_ON, STOPS_AT, DRIVE (jak 01_CREATE_DRIVE.txt)
+ * oraz WALK między sąsiadami po przekątnej. Dodatkowo jeden odizolowany przystanek i linia
+ * ekspresowa po przekątnej z czasami zaokrąglonymi do minuty, w której co drugi odcinek trwa 0 s.
+ */
+public final class SyntheticNetwork {
+
+    private static final int BATCH_TRIPS = 200;
+    private static final int FIRST_DEPARTURE = 5 * 3600;
+    private static final int LAST_DEPARTURE = 25 * 3600;
+    private static final int EXPRESS_FIRST_DEPARTURE = 6 * 3600;
+    public static final String EXPRESS_CHECK_TIME = "08:00:00";   // Odjazd ekspresu (co headwaySeconds od 06:00)
+
+    private final int size;
+    private final int headwaySeconds;
+
+    public SyntheticNetwork(int size, int headwaySeconds) {
+        this.size = size;
+        this.headwaySeconds = headwaySeconds;
+    }
+
+    public long stopId(int row, int col) {
+        return (long) row * size + col;
+    }
+
+    // Przystanek bez żadnych połączeń - do zapytań "nieosiągalnych"
+    public long isolatedStopId() {
+        return (long) size * size;
+    }
+
+    // Ekspres jedzie po przekątnej od rogu (size-1, size-1) do (0, 0), czyli pod prąd kolejności
+    // przystanków; pierwszy odcinek 0 s, drugi 60 s - cel po dwóch odcinkach
+    public long expressFromId() {
+        return stopId(size - 1, size - 1);
+    }
+
+    public long expressToId() {
+        return stopId(size - 3, size - 3);
+    }
+
+    public void load(GraphDatabaseService db) {
+        db.executeTransactionally("CREATE INDEX stop_id IF NOT EXISTS FOR (s:Stop) ON (s.stop_id)");
+        db.executeTransactionally("CREATE INDEX stop_code IF NOT EXISTS FOR (s:Stop) ON (s.stop_code)");
+        db.executeTransactionally("CREATE INDEX trip_id IF NOT EXISTS FOR (t:Trip) ON (t.trip_id)");
+        db.executeTransactionally("CALL db.awaitIndexes()");
+
+        loadStops(db);
+        loadCalendars(db);
+        loadTrips(db);
+        loadWalks(db);
+    }
+
+    private void loadStops(GraphDatabaseService db) {
+        List<Map<String, Object>> stops = new ArrayList<>();
+        for (int r = 0; r < size; r++) {
+            for (int c = 0; c < size; c++) {
+                stops.add(stop(stopId(r, c), "Przystanek " + r + "/" + c, 52.10 + r * 0.004, 20.90 + c * 0.006));
+            }
+        }
+        stops.add(stop(isolatedStopId(), "Odludzie", 52.50, 21.50));
+
+        db.executeTransactionally(
+                "UNWIND $stops AS s " +
+                "CREATE (:Stop {stop_id: s.id, stop_code: toString(s.id), stop_name: s.name, " +
+                "               stop_lat: s.lat, stop_lon: s.lon, latitude: s.lat, longitude: s.lon, " +
+                "               location: point({latitude: s.lat, longitude: s.lon})})",
+                Map.of("stops", stops));
+    }
+
+    private static Map<String, Object> stop(long id, String name, double lat, double lon) {
+        Map<String, Object> stop = new HashMap<>();
+        stop.put("id", id);
+        stop.put("name", name);
+        stop.put("lat", lat);
+        stop.put("lon", lon);
+        return stop;
+    }
+
+    private void loadCalendars(GraphDatabaseService db) {
+        db.executeTransactionally(
+                "CREATE (:Calendar {service_id: 'weekday', monday: true, tuesday: true, wednesday: true, " +
+                "                   thursday: true, friday: true, saturday: false, sunday: false}), " +
+                "       (:Calendar {service_id: 'daily', monday: true, tuesday: true, wednesday: true, " +
+                "                   thursday: true, friday: true, saturday: true, sunday: true})");
+    }
+
+    private void loadTrips(GraphDatabaseService db) {
+        Random random = new Random(42);
+        List<Map<String, Object>> batch = new ArrayList<>();
+        int tripNo = 0;
+
+        for (int line = 0; line < size * 4; line++) {
+            int index = line / 4;
+            boolean horizontal = (line % 4) < 2;
+            boolean reversed = (line % 2) == 1;
+
+            List<Long> sequence = new ArrayList<>();
+            for (int k = 0; k < size; k++) sequence.add(horizontal ? stopId(index, k) : stopId(k, index));
+            if (reversed) Collections.reverse(sequence);
+
+            int hop = 60 + random.nextInt(120);
+            String service = line % 3 == 0 ? "weekday" : "daily";
+            for (int start = FIRST_DEPARTURE + random.nextInt(headwaySeconds); start < LAST_DEPARTURE; start += headwaySeconds) {
+                List<Map<String, Object>> stopTimes = new ArrayList<>();
+                for (int k = 0; k < sequence.size(); k++) {
+                    Map<String, Object> st = new HashMap<>();
+                    st.put("stop", sequence.get(k));
+                    st.put("seq", (long) k + 1);
+                    st.put("time", format(start + k * hop));
+                    stopTimes.add(st);
+                }
+
+                Map<String, Object> trip = new HashMap<>();
+                trip.put("id", "T" + tripNo++);
+                trip.put("headsign", "Linia " + line);
+                trip.put("service", service);
+                trip.put("stops", stopTimes);
+                batch.add(trip);
+
+                if (batch.size() == BATCH_TRIPS) {
+                    writeTrips(db, batch);
+                    batch.clear();
+                }
+            }
+        }
+        if (!batch.isEmpty()) writeTrips(db, batch);
+        batch.clear();
+
+        // Ekspres: przystanek k o czasie start + (k / 2) minut, więc odcinki 0 s i 60 s na przemian
+        for (int start = EXPRESS_FIRST_DEPARTURE; start < LAST_DEPARTURE; start += headwaySeconds) {
+            List<Map<String, Object>> stopTimes = new ArrayList<>();
+            for (int k = 0; k < size; k++) {
+                Map<String, Object> st = new HashMap<>();
+                st.put("stop", stopId(size - 1 - k, size - 1 - k));
+                st.put("seq", (long) k + 1);
+                st.put("time", format(start + (k / 2) * 60));
+                stopTimes.add(st);
+            }
+            Map<String, Object> trip = new HashMap<>();
+            trip.put("id", "E" + tripNo++);
+            trip.put("headsign", "Ekspres");
+            trip.put("service", "daily");
+            trip.put("stops", stopTimes);
+            batch.add(trip);
+        }
+        writeTrips(db, batch);
+    }
+
+    private static void writeTrips(GraphDatabaseService db, List<Map<String, Object>> trips) {
+        db.executeTransactionally(
+                "UNWIND $trips AS t " +
+                "MATCH (c:Calendar {service_id: t.service}) " +
+                "CREATE (trip:Trip {trip_id: t.id, trip_headsign: t.headsign})-[:VALID_ON]->(c) " +
+                "WITH trip, t " +
+                "UNWIND range(0, size(t.stops) - 1) AS i " +
+                "WITH trip, t, t.stops[i] AS st, CASE WHEN i + 1 < size(t.stops) THEN t.stops[i + 1] END AS next " +
+                "MATCH (s:Stop {stop_id: st.stop}) " +
+                "CREATE (trip)-[:STOPS_AT {stop_sequence: st.seq, arrival_time: st.time, departure_time: st.time}]->(s) " +
+                "WITH t, s, st, next WHERE next IS NOT NULL " +
+                "MATCH (n:Stop {stop_id: next.stop}) " +
+                "CREATE (s)-[:DRIVE {trip_id: t.id, dep_time: st.time, arr_time: next.time}]->(n)",
+                Map.of("trips", trips));
+    }
+
+    private void loadWalks(GraphDatabaseService db) {
+        List<Map<String, Object>> walks = new ArrayList<>();
+        for (int r = 0; r + 1 < size; r++) {
+            for (int c = 0; c + 1 < size; c++) {
+                walks.add(Map.of("a", stopId(r, c), "b", stopId(r + 1, c + 1)));
+                walks.add(Map.of("a", stopId(r + 1, c + 1), "b", stopId(r, c)));
+            }
+        }
+        db.executeTransactionally(
+                "UNWIND $walks AS w " +
+                "MATCH (a:Stop {stop_id: w.a}), (b:Stop {stop_id: w.b}) " +
+                "CREATE (a)-[:WALK {time_sec: 300, type: 'SYNTHETIC'}]->(b)",
+                Map.of("walks", walks));
+    }
+
+    static String format(int seconds) {
+        return String.format("%02d:%02d:%02d", seconds / 3600, (seconds % 3600) / 60, seconds % 60);
+    }
+}
@@ -0,0 +1,62 @@
+package org.example.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * custom.findFastestRoute dla czterech typowych zapytań:
+ *  - shortTrip:   dwa przystanki na tej samej linii,
+ *  - longTrip:    róg - róg siatki (przesiadka),
+ *  - overnight:   ta sama trasa o 23:40, kursy przechodzą przez północ,
+ *  - unreachable: cel bez połączeń (przeszukanie całej osiągalnej sieci).
+ * Tryb SampleTime raportuje percentyle opóźnień, Throughput - wywołania na sekundę.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class TripPlannerBenchmark {
+
+    private static final String QUERY =
+            "CALL custom.findFastestRoute($from, $to, $time, $day) " +
+            "YIELD line, arrTime RETURN count(line) AS legs";
+
+    private static long legs(NetworkState state, long from, long to, String time) {
+        Map<String, Object> params = Map.of(
+                "from", String.valueOf(from),
+                "to", String.valueOf(to),
+                "time", time,
+                "day", "monday");
+        return state.db.executeTransactionally(QUERY, params,
+                result -> ((Number) result.next().get("legs")).longValue());
+    }
+
+    @Benchmark
+    public long shortTrip(NetworkState state) {
+        SyntheticNetwork n = state.network;
+        return legs(state, n.stopId(0, 0), n.stopId(0, 2), "08:00:00");
+    }
+
+    @Benchmark
+    public long longTrip(NetworkState state) {
+        SyntheticNetwork n = state.network;
+        int last = state.gridSize - 1;
+        return legs(state, n.stopId(0, 0), n.stopId(last, last), "08:00:00");
+    }
+
+    @Benchmark
+    public long overnight(NetworkState state) {
+        SyntheticNetwork n = state.network;
+        int last = state.gridSize - 1;
+        return legs(state, n.stopId(0, 0), n.stopId(last, last), "23:40:00");
+    }
+
+    @Benchmark
+    public long unreachable(NetworkState state) {
+        SyntheticNetwork n = state.network;
+        return legs(state, n.stopId(0, 0), n.isolatedStopId(), "08:00:00");
+    }
+}
@@ -0,0 +1,91 @@
+package org.example.benchmark;
+
+import org.example.TripPlanner;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.harness.Neo4j;
+import org.neo4j.harness.Neo4jBuilders;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+/**
+ * Dijkstra, A*, RAPTOR i CSA na tej samej sztucznej sieci muszą dawać ten sam najwcześniejszy przyjazd.
+ * Sieć zawiera ekspres z odcinkami 0 s - na nim CSA gubiło wsiadanie na przystanku pośrednim,
+ * a A* zawyżało ograniczenie prędkości.
+ */
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class RoutingAgreementTest {
+
+    private static final long[][] PAIRS = {
+            {0, 99}, {5, 42}, {17, 83}, {90, 9}, {33, 66}, {61, 38}, {99, 0}, {12, 87}};
+    private static final String[] TIMES = {"05:30:00", "08:00:00", "12:17:00", "23:40:00"};
+
+    private Neo4j neo4j;
+    private GraphDatabaseService db;
+    private SyntheticNetwork network;
+
+    @BeforeAll
+    void start() {
+        neo4j = Neo4jBuilders.newInProcessBuilder()
+                .withDisabledServer()
+                .withProcedure(TripPlanner.class)
+                .build();
+        db = neo4j.defaultDatabaseService();
+
+        network = new SyntheticNetwork(10, 600);
+        network.load(db);
+        db.executeTransactionally("CALL custom.rebuildTimetable()");
+    }
+
+    @AfterAll
+    void stop() {
+        if (neo4j != null) neo4j.close();
+    }
+
+    @Test
+    void zeroSecondHopsOnExpress() {
+        long from = network.expressFromId();
+        long to = network.expressToId();
+        String time = SyntheticNetwork.EXPRESS_CHECK_TIME;
+
+        String dijkstra = lastArrival("custom.findFastestRoute", from, to, time, "");
+        assertNotNull(dijkstra, "Dijkstra nie znalazł trasy ekspresem");
+        assertEquals(dijkstra, lastArrival("custom.findFastestRouteCsa", from, to, time, ""), "CSA");
+        assertEquals(dijkstra, lastArrival("custom.findFastestRoute", from, to, time, ", true"), "A*");
+    }
+
+    @Test
+    void enginesAgreeOnGrid() {
+        for (long[] pair : PAIRS) {
+            for (String time : TIMES) {
+                String query = pair[0] + " -> " + pair[1] + " o " + time;
+                String dijkstra = lastArrival("custom.findFastestRoute", pair[0], pair[1], time, "");
+                assertNotNull(dijkstra, "Dijkstra: " + query);
+                assertEquals(dijkstra, lastArrival("custom.findFastestRoute", pair[0], pair[1], time, ", true"), "A*: " + query);
+                assertEquals(dijkstra, lastArrival("custom.findFastestRouteRaptor", pair[0], pair[1], time, ""), "RAPTOR: " + query);
+                assertEquals(dijkstra, lastArrival("custom.findFastestRouteCsa", pair[0], pair[1], time, ""), "CSA: " + query);
+            }
+        }
+    }
+
+    private String lastArrival(String procedure, long from, long to, String time, String extraArgs) {
+        Map<String, Object> params = Map.of(
+                "from", String.valueOf(from),
+                "to", String.valueOf(to),
+                "time", time,
+                "day", "monday");
+        return db.executeTransactionally(
+                "CALL " + procedure + "($from, $to, $time, $day" + extraArgs + ") YIELD arrTime RETURN collect(arrTime) AS arrivals",
+                params, result -> {
+                    List<?> arrivals = (List<?>) result.next().get("arrivals");
+                    return arrivals.isEmpty() ? null : (String) arrivals.get(arrivals.size() - 1);
+                });
+    }
+}
@@ -0,0 +1,144 @@
+package org.example;
+
+import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.event.LabelEntry;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventListener;
+import org.neo4j.graphdb.event.TransactionEventListenerAdapter;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Zbiory aktywnych tripów dla każdego dnia tygodnia, jako BitSet po indeksach tripów ze snapshotu.
+ *
+ * Cały tydzień liczymy jednym przejściem po węzłach Trip (VALID_ON -> Calendar) i trzymamy,
+ * dopóki nie zmienią się dane kalendarza - pilnuje tego listener transakcji.
+ * Zwracane BitSety są współdzielone, więc wywołujący mogą je tylko czytać.
+ */
+final class ActiveTripsCache {
+
+    static final String[] DAYS = {"monday", "tuesday", "wednesday", "thursday", "friday", "saturday", "sunday"};
+
+    private static final Label TRIP_LABEL = Label.label("Trip");
+    private static final Label CALENDAR_LABEL = Label.label("Calendar");
+    private static final RelationshipType VALID_ON = RelationshipType.withName("VALID_ON");
+
+    private static final Map<String, Week> WEEKS = new ConcurrentHashMap<>();
+
+    private ActiveTripsCache() {
+    }
+
+    private static final class Week {
+        final TimetableSnapshot timetable;
+        final BitSet[] days;
+
+        Week(TimetableSnapshot timetable, BitSet[] days) {
+            this.timetable = timetable;
+            this.days = days;
+        }
+    }
+
+    static BitSet activeTrips(GraphDatabaseService db, Transaction tx, TimetableSnapshot timetable, String day) {
+        int dayIdx = dayIndex(day);
+        if (dayIdx < 0) return new BitSet();
+
+        Week week = WEEKS.compute(db.databaseName(), (name, cached) ->
+                cached != null && cached.timetable == timetable ? cached : new Week(timetable, loadWeek(tx, timetable)));
+        return week.days[dayIdx];
+    }
+
+    static void invalidate(String databaseName) {
+        WEEKS.remove(databaseName);
+    }
+
+    static int dayIndex(String day) {
+        if (day == null) return -1;
+        String lower = day.toLowerCase();
+        for (int i = 0; i < DAYS.length; i++) {
+            if (DAYS[i].equals(lower)) return i;
+        }
+        return -1;
+    }
+
+    private static BitSet[] loadWeek(Transaction tx, TimetableSnapshot timetable) {
+        BitSet[] days = new BitSet[DAYS.length];
+        for (int i = 0; i < days.length; i++) days[i] = new BitSet(timetable.tripCount);
+
+        try (ResourceIterator<Node> trips = tx.findNodes(TRIP_LABEL)) {
+            while (trips.hasNext()) {
+                Node trip = trips.next();
+                Relationship validRel = trip.getSingleRelationship(VALID_ON, Direction.OUTGOING);
+                if (validRel == null) continue;
+                Object tripId = trip.getProperty("trip_id", null);
+                int tIdx = tripId == null ? -1 : timetable.tripIndex(tripId.toString());
+                if (tIdx < 0) continue;
+
+                Node cal = validRel.getEndNode();
+                for (int i = 0; i < DAYS.length; i++) {
+                    if ((boolean) cal.getProperty(DAYS[i], false)) days[i].set(tIdx);
+                }
+            }
+        }
+        return days;
+    }
+
+    // Listener unieważniający cache bazy; rejestruje go CacheListenersExtension przy starcie bazy
+    static TransactionEventListener<Boolean> listener(String databaseName) {
+        return new ServiceDataListener(databaseName);
+    }
+
+    /**
+     * Po zatwierdzeniu transakcji, która zmienia węzły Trip/Calendar albo relacje VALID_ON,
+     * wyrzuca tydzień z cache. Sprawdzamy w beforeCommit, bo wtedy usunięte encje są jeszcze czytelne.
+     */
+    private static final class ServiceDataListener extends TransactionEventListenerAdapter<Boolean> {
+        private final String databaseName;
+
+        ServiceDataListener(String databaseName) {
+            this.databaseName = databaseName;
+        }
+
+        @Override
+        public Boolean beforeCommit(TransactionData data, Transaction transaction, GraphDatabaseService db) {
+            return touchesServiceData(data);
+        }
+
+        @Override
+        public void afterCommit(TransactionData data, Boolean touched, GraphDatabaseService db) {
+            if (Boolean.TRUE.equals(touched)) invalidate(databaseName);
+        }
+
+        private static boolean touchesServiceData(TransactionData data) {
+            for (LabelEntry entry : data.assignedLabels()) {
+                if (isServiceLabel(entry.label())) return true;
+            }
+            for (LabelEntry entry : data.removedLabels()) {
+                if (isServiceLabel(entry.label())) return true;
+            }
+            for (PropertyEntry<Node> entry : data.assignedNodeProperties()) {
+                if (isServiceNode(data, entry.entity())) return true;
+            }
+            for (PropertyEntry<Node> entry : data.removedNodeProperties()) {
+                if (isServiceNode(data, entry.entity())) return true;
+            }
+            for (Relationship rel : data.createdRelationships()) {
+                if (rel.isType(VALID_ON)) return true;
+            }
+            for (Relationship rel : data.deletedRelationships()) {
+                if (rel.isType(VALID_ON)) return true;
+            }
+            return false;
+        }
+
+        private static boolean isServiceLabel(Label label) {
+            return label.name().equals(TRIP_LABEL.name()) || label.name().equals(CALENDAR_LABEL.name());
+        }
+
+        private static boolean isServiceNode(TransactionData data, Node node) {
+            // Usunięte węzły są już pokryte przez removedLabels
+            return !data.isDeleted(node) && (node.hasLabel(TRIP_LABEL) || node.hasLabel(CALENDAR_LABEL));
+        }
+    }
+}
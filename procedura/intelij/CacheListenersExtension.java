@@ -0,0 +1,60 @@
+package org.example;
+
+import org.neo4j.dbms.api.DatabaseManagementService;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.event.TransactionEventListener;
+import org.neo4j.kernel.extension.ExtensionFactory;
+import org.neo4j.kernel.extension.ExtensionType;
+import org.neo4j.kernel.extension.context.ExtensionContext;
+import org.neo4j.kernel.lifecycle.Lifecycle;
+import org.neo4j.kernel.lifecycle.LifecycleAdapter;
+
+import java.util.List;
+
+/**
+ * Rozszerzenie bazy (META-INF/services) podpinające listenery transakcji cache'y w pamięci:
+ * ActiveTripsCache, SpatialIndex i TicketZones, oraz listener unieważniający zapisane wzorce TripPatterns. Neo4j tworzy je przy starcie każdej bazy, więc
+ * listenery działają od pierwszej transakcji, a przy zatrzymaniu bazy zdejmujemy je i czyścimy cache.
+ */
+public class CacheListenersExtension extends ExtensionFactory<CacheListenersExtension.Dependencies> {
+
+    private static final String SYSTEM_DATABASE = "system";   // Na bazie systemowej listenery są niedozwolone
+
+    public interface Dependencies {
+        GraphDatabaseService graphDatabaseService();
+
+        DatabaseManagementService databaseManagementService();
+    }
+
+    public CacheListenersExtension() {
+        super(ExtensionType.DATABASE, "transportCacheListeners");
+    }
+
+    @Override
+    public Lifecycle newInstance(ExtensionContext context, Dependencies dependencies) {
+        return new LifecycleAdapter() {
+            private List<TransactionEventListener<?>> listeners = List.of();
+
+            @Override
+            public void start() {
+                String name = dependencies.graphDatabaseService().databaseName();
+                if (SYSTEM_DATABASE.equals(name)) return;
+                listeners = List.of(ActiveTripsCache.listener(name), SpatialIndex.listener(name), TicketZones.listener(name),
+                        TripPatterns.listener());
+                DatabaseManagementService dbms = dependencies.databaseManagementService();
+                for (TransactionEventListener<?> listener : listeners) dbms.registerTransactionEventListener(name, listener);
+            }
+
+            @Override
+            public void stop() {
+                String name = dependencies.graphDatabaseService().databaseName();
+                DatabaseManagementService dbms = dependencies.databaseManagementService();
+                for (TransactionEventListener<?> listener : listeners) dbms.unregisterTransactionEventListener(name, listener);
+                listeners = List.of();
+                ActiveTripsCache.invalidate(name);
+                SpatialIndex.invalidate(name);
+                TicketZones.invalidate(name);
+            }
+        };
+    }
+}
@@ -0,0 +1,201 @@
+package org.example;
+
+import java.util.*;
+
+/**
+ * Connection Scan Algorithm (CSA) nad płaską tablicą połączeń DRIVE posortowaną po odjeździe.
+ *
+ * Zapytanie to jedno liniowe przejście po tablicach int[] od pierwszego połączenia po czasie
+ * startu (wyszukiwanie binarne) do momentu, gdy odjazdy są już późniejsze niż najlepszy przyjazd
+ * do celu. Połączenia "jutro" (przesunięte o dobę) scalamy w locie z dzisiejszymi.
+ */
+final class ConnectionScanRouter {
+
+    private static final int INF = Integer.MAX_VALUE;
+    private static final int DAY_SECONDS = TripPatterns.DAY_SECONDS;
+
+    /**
+     * Wszystkie połączenia snapshotu w jednym porządku po czasie odjazdu (układ kolumnowy).
+     */
+    static final class Connections {
+        final TimetableSnapshot timetable;
+        final int[] dep;
+        final int[] arr;
+        final int[] from;
+        final int[] to;
+        final int[] trip;
+
+        private Connections(TimetableSnapshot timetable) {
+            this.timetable = timetable;
+            int n = timetable.connectionCount();
+
+            // Klucz (odjazd << 32 | indeks krawędzi) - sortowanie prymitywne, bez komparatora
+            int[] source = new int[n];
+            for (int s = 0; s < timetable.stopCount; s++) {
+                for (int e = timetable.edgeOffsets[s]; e < timetable.edgeOffsets[s + 1]; e++) source[e] = s;
+            }
+            long[] keys = new long[n];
+            for (int e = 0; e < n; e++) keys[e] = ((long) timetable.edgeDep[e] << 32) | e;
+            Arrays.sort(keys);
+            sortEqualDepartures(timetable, keys);
+
+            dep = new int[n];
+            arr = new int[n];
+            from = new int[n];
+            to = new int[n];
+            trip = new int[n];
+            for (int c = 0; c < n; c++) {
+                int e = (int) keys[c];
+                dep[c] = timetable.edgeDep[e];
+                arr[c] = timetable.edgeArr[e];
+                from[c] = source[e];
+                to[c] = timetable.edgeTarget[e];
+                trip[c] = timetable.edgeTrip[e];
+            }
+        }
+
+        /**
+         * Indeksy krawędzi idą w kolejności CSR (przystanek, następny przystanek), a nie w kolejności
+         * przystanków kursu. Przy odcinkach 0 s (GTFS z dokładnością do minuty) B -> C mogłoby wtedy
+         * trafić przed A -> B tego samego kursu i zostać odrzucone przy wsiadaniu. Dlatego połączenia
+         * o równym odjeździe porządkujemy po (przyjazd, numer odcinka w kursie).
+         */
+        private static void sortEqualDepartures(TimetableSnapshot timetable, long[] keys) {
+            int n = keys.length;
+            long[] run = new long[0];
+            for (int from = 0, to; from < n; from = to) {
+                int dep = (int) (keys[from] >>> 32);
+                to = from + 1;
+                while (to < n && (int) (keys[to] >>> 32) == dep) to++;
+                if (to - from < 2) continue;
+
+                // Klucz w serii: czas jazdy (17 bitów) | odcinek (15 bitów) | indeks krawędzi (31 bitów)
+                if (run.length < to - from) run = new long[to - from];
+                for (int i = from; i < to; i++) {
+                    int e = (int) keys[i];
+                    long duration = Math.min(timetable.edgeArr[e] - dep, (1 << 17) - 1);
+                    long hop = Math.min(timetable.edgeHop[e], (1 << 15) - 1);
+                    run[i - from] = duration << 46 | hop << 31 | e;
+                }
+                Arrays.sort(run, 0, to - from);
+                for (int i = from; i < to; i++) {
+                    keys[i] = ((long) dep << 32) | (run[i - from] & Integer.MAX_VALUE);
+                }
+            }
+        }
+
+        static Connections build(TimetableSnapshot timetable) {
+            return new Connections(timetable);
+        }
+
+        int size() {
+            return dep.length;
+        }
+
+        // Pierwsze połączenie z odjazdem >= time
+        int firstAtOrAfter(int time) {
+            int lo = 0, hi = dep.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (dep[mid] < time) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+    }
+
+    private final Connections connections;
+    private final TimetableSnapshot timetable;
+    private final BitSet tripsToday;
+    private final BitSet tripsTomorrow;
+
+    ConnectionScanRouter(Connections connections, BitSet tripsToday, BitSet tripsTomorrow) {
+        this.connections = connections;
+        this.timetable = connections.timetable;
+        this.tripsToday = tripsToday;
+        this.tripsTomorrow = tripsTomorrow;
+    }
+
+    List<TripPlanner.JourneyLeg> route(int source, int target, int departure) {
+        if (source == target) return Collections.emptyList();
+
+        Connections c = connections;
+        int n = c.size();
+        int[] earliest = new int[timetable.stopCount];
+        Arrays.fill(earliest, INF);
+        earliest[source] = departure;
+
+        // Stan tripu per (trip, dzień): połączenie wejścia i liczba przejechanych odcinków
+        int[] tripEnter = new int[timetable.tripCount * 2];
+        int[] tripHops = new int[timetable.tripCount * 2];
+        Arrays.fill(tripEnter, -1);
+
+        // Wskaźniki podróży: jak dotarliśmy na przystanek
+        int[] legEnter = new int[timetable.stopCount];
+        int[] legExit = new int[timetable.stopCount];
+        int[] legHops = new int[timetable.stopCount];
+        boolean[] legNextDay = new boolean[timetable.stopCount];
+
+        int today = c.firstAtOrAfter(departure);
+        int tomorrow = c.firstAtOrAfter(departure - DAY_SECONDS);
+
+        while (today < n || tomorrow < n) {
+            // Scalanie dwóch posortowanych strumieni: dziś (dep) i jutro (dep + doba)
+            boolean nextDay;
+            int conn;
+            if (tomorrow >= n || (today < n && c.dep[today] <= c.dep[tomorrow] + DAY_SECONDS)) {
+                conn = today++;
+                nextDay = false;
+                if (!tripsToday.get(c.trip[conn])) continue;
+            } else {
+                conn = tomorrow++;
+                nextDay = true;
+                if (!tripsTomorrow.get(c.trip[conn])) continue;
+            }
+
+            int offset = nextDay ? DAY_SECONDS : 0;
+            int dep = c.dep[conn] + offset;
+            if (dep > earliest[target]) break;
+
+            int key = c.trip[conn] * 2 + (nextDay ? 1 : 0);
+            if (tripEnter[key] < 0) {
+                if (earliest[c.from[conn]] > dep) continue;
+                tripEnter[key] = conn;
+                tripHops[key] = 0;
+            }
+            tripHops[key]++;
+
+            int arr = c.arr[conn] + offset;
+            int stop = c.to[conn];
+            if (arr < earliest[stop]) {
+                earliest[stop] = arr;
+                legEnter[stop] = tripEnter[key];
+                legExit[stop] = conn;
+                legHops[stop] = tripHops[key];
+                legNextDay[stop] = nextDay;
+            }
+        }
+
+        if (earliest[target] == INF) return Collections.emptyList();
+
+        // Rekonstrukcja od celu: każdy wskaźnik to cały etap jednym tripem
+        LinkedList<TripPlanner.JourneyLeg> journey = new LinkedList<>();
+        int stop = target;
+        while (stop != source) {
+            int enter = legEnter[stop];
+            int exit = legExit[stop];
+            int boardStop = c.from[enter];
+            journey.addFirst(new TripPlanner.JourneyLeg(
+                    timetable.tripLabel(c.trip[exit]),
+                    timetable.stopNames[boardStop],
+                    GtfsTime.format(c.dep[enter]),
+                    timetable.stopNames[stop],
+                    GtfsTime.format(c.arr[exit]),
+                    legHops[stop],
+                    legNextDay[stop]
+            ));
+            stop = boardStop;
+        }
+        return journey;
+    }
+}
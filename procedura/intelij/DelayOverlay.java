@@ -0,0 +1,206 @@
+package org.example;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Opóźnienia pojazdów w pamięci (jak GTFS-RT), nakładane na snapshot rozkładu bez zapisu do grafu.
+ *
+ * Klucz to trip_id i stop_sequence przystanku z GTFS (jak na STOPS_AT - może zaczynać się od 0 i mieć luki).
+ * Opóźnienie podane dla przystanku obowiązuje na nim i na kolejnych, aż do następnego wpisu dla tego tripu. Każdy wpis ma termin ważności -
+ * po nim trip wraca do rozkładu. Wpisy tripu są niemutowalne i podmieniane przez CAS, a wyszukiwania
+ * czytają gotowy widok (tablice po indeksach tripów snapshotu), przeliczany tylko po zmianie. Przy
+ * przeliczeniu stop_sequence zamieniamy na pozycje przystanków w kursie według STOPS_AT tripu.
+ */
+final class DelayOverlay {
+
+    private static final Map<String, DelayOverlay> OVERLAYS = new ConcurrentHashMap<>();
+
+    private final Map<String, TripDelay> trips = new ConcurrentHashMap<>();
+    private final AtomicLong version = new AtomicLong();
+    private volatile View cachedView;
+
+    // Posortowane stop_sequence tripów (z STOPS_AT) dla snapshotu sequencesFor; czytane raz na trip
+    private final Map<String, int[]> stopSequences = new ConcurrentHashMap<>();
+    private volatile TimetableSnapshot sequencesFor;
+
+    private DelayOverlay() {
+    }
+
+    static DelayOverlay forDatabase(String databaseName) {
+        return OVERLAYS.computeIfAbsent(databaseName, name -> new DelayOverlay());
+    }
+
+    // Widok dla wyszukiwania; null, gdy żaden trip snapshotu nie ma aktualnego opóźnienia
+    static View view(String databaseName, TimetableSnapshot timetable, Function<String, int[]> tripSequences) {
+        DelayOverlay overlay = OVERLAYS.get(databaseName);
+        return overlay == null ? null : overlay.view(timetable, tripSequences);
+    }
+
+    // Opóźnienia jednego tripu: posortowane stop_sequence i opóźnienia w sekundach
+    private static final class TripDelay {
+        final int[] sequences;
+        final int[] delays;
+        final long expiresAt;
+
+        TripDelay(int[] sequences, int[] delays, long expiresAt) {
+            this.sequences = sequences;
+            this.delays = delays;
+            this.expiresAt = expiresAt;
+        }
+
+        // Nowy wpis zastępuje poprzedni dla tego samego przystanku; termin ważności liczy się od ostatniego wpisu
+        TripDelay with(int sequence, int delay, long expiresAt) {
+            int pos = Arrays.binarySearch(sequences, sequence);
+            if (pos >= 0) {
+                int[] changed = delays.clone();
+                changed[pos] = delay;
+                return new TripDelay(sequences, changed, expiresAt);
+            }
+            int at = -pos - 1;
+            int[] seq = new int[sequences.length + 1];
+            int[] del = new int[delays.length + 1];
+            System.arraycopy(sequences, 0, seq, 0, at);
+            System.arraycopy(delays, 0, del, 0, at);
+            seq[at] = sequence;
+            del[at] = delay;
+            System.arraycopy(sequences, at, seq, at + 1, sequences.length - at);
+            System.arraycopy(delays, at, del, at + 1, delays.length - at);
+            return new TripDelay(seq, del, expiresAt);
+        }
+    }
+
+    /**
+     * Opóźnienia rozpisane na indeksy tripów snapshotu. byTrip[t][p] to opóźnienie na p-tym przystanku
+     * kursu (od 0); za końcem tablicy obowiązuje ostatnia wartość, null = trip bez opóźnienia.
+     */
+    static final class View {
+        final TimetableSnapshot timetable;
+        final long version;
+        final long validUntil;       // Najbliższy termin ważności wpisu - potem widok liczymy od nowa
+        final int[][] byTrip;
+        final int maxLate;           // Największe opóźnienie w sekundach, >= 0
+        final int maxEarly;          // Największe przyspieszenie (ujemne opóźnienie) w sekundach, >= 0
+        final boolean recovers;      // Czy któryś trip odrabia opóźnienie po drodze (krótszy odcinek niż w rozkładzie)
+        final int delayedTrips;
+
+        View(TimetableSnapshot timetable, long version, long validUntil, int[][] byTrip,
+             int maxLate, int maxEarly, boolean recovers, int delayedTrips) {
+            this.timetable = timetable;
+            this.version = version;
+            this.validUntil = validUntil;
+            this.byTrip = byTrip;
+            this.maxLate = maxLate;
+            this.maxEarly = maxEarly;
+            this.recovers = recovers;
+            this.delayedTrips = delayedTrips;
+        }
+
+        int delay(int trip, int stopPosition) {
+            int[] delays = byTrip[trip];
+            if (delays == null) return 0;
+            return delays[Math.min(stopPosition, delays.length - 1)];
+        }
+    }
+
+    /**
+     * Dopisuje opóźnienie; false, gdy stopSequence jest ujemny. Bez blokad: odczyt, nowy niemutowalny wpis
+     * i zamiana warunkowa, powtarzana przy wyścigu z innym zapisem tego samego tripu.
+     */
+    boolean push(String tripId, int stopSequence, int delaySeconds, long ttlMillis) {
+        if (tripId == null || stopSequence < 0) return false;
+        long expiresAt = System.currentTimeMillis() + Math.max(0, ttlMillis);
+        while (true) {
+            TripDelay current = trips.get(tripId);
+            if (current == null) {
+                TripDelay fresh = new TripDelay(new int[]{stopSequence}, new int[]{delaySeconds}, expiresAt);
+                if (trips.putIfAbsent(tripId, fresh) == null) break;
+            } else if (trips.replace(tripId, current, current.with(stopSequence, delaySeconds, expiresAt))) {
+                break;
+            }
+        }
+        version.incrementAndGet();
+        return true;
+    }
+
+    int clear() {
+        int removed = trips.size();
+        trips.clear();
+        version.incrementAndGet();
+        return removed;
+    }
+
+    int activeTrips() {
+        long now = System.currentTimeMillis();
+        int active = 0;
+        for (TripDelay delay : trips.values()) {
+            if (delay.expiresAt > now) active++;
+        }
+        return active;
+    }
+
+    // tripSequences: posortowane stop_sequence kursu o danym trip_id, null = kursu nie ma w grafie
+    View view(TimetableSnapshot timetable, Function<String, int[]> tripSequences) {
+        long now = System.currentTimeMillis();
+        View view = cachedView;
+        long current = version.get();
+        if (view != null && view.timetable == timetable && view.version == current && now < view.validUntil) {
+            return view.delayedTrips == 0 ? null : view;
+        }
+
+        // Przeterminowane wpisy wyrzucamy przy okazji przeliczenia (remove warunkowy - nie gubi świeżego zapisu)
+        trips.entrySet().removeIf(entry -> entry.getValue().expiresAt <= now);
+        if (sequencesFor != timetable) {
+            stopSequences.clear();
+            sequencesFor = timetable;
+        }
+
+        int[][] byTrip = new int[timetable.tripCount][];
+        long validUntil = Long.MAX_VALUE;
+        int maxLate = 0, maxEarly = 0, delayed = 0;
+        boolean recovers = false;
+        for (Map.Entry<String, TripDelay> entry : trips.entrySet()) {
+            int trip = timetable.tripIndex(entry.getKey());
+            TripDelay delay = entry.getValue();
+            if (trip < 0 || delay.expiresAt <= now) continue;
+            int[] sequences = stopSequences.computeIfAbsent(entry.getKey(), tripSequences);
+            if (sequences == null || sequences.length == 0) continue;
+
+            // Rozpisanie na pozycje: wpis obowiązuje od pierwszego przystanku z stop_sequence >= podanego,
+            // przed pierwszym wpisem 0, dalej ostatnia podana wartość; wpisy za końcem kursu pomijamy
+            int first = position(sequences, delay.sequences[0]);
+            if (first == sequences.length) continue;
+            int[] dense = new int[sequences.length];
+            for (int i = 0; i < delay.sequences.length; i++) {
+                int from = position(sequences, delay.sequences[i]);
+                int to = i + 1 < delay.sequences.length ? position(sequences, delay.sequences[i + 1]) : dense.length;
+                Arrays.fill(dense, from, to, delay.delays[i]);
+            }
+            for (int p = 0; p < dense.length; p++) {
+                maxLate = Math.max(maxLate, dense[p]);
+                maxEarly = Math.max(maxEarly, -dense[p]);
+                if (p > 0 && dense[p] < dense[p - 1]) recovers = true;
+            }
+            byTrip[trip] = dense;
+            validUntil = Math.min(validUntil, delay.expiresAt);
+            delayed++;
+        }
+
+        view = new View(timetable, current, validUntil, byTrip, maxLate, maxEarly, recovers, delayed);
+        cachedView = view;
+        return delayed == 0 ? null : view;
+    }
+
+    // Pierwsza pozycja z stop_sequence >= sequence (jak TicketZones.TripStops.positionOf)
+    private static int position(int[] sequences, int sequence) {
+        int lo = 0, hi = sequences.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sequences[mid] < sequence) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+}
@@ -0,0 +1,545 @@
+package org.example;
+
+import java.util.*;
+
+/**
+ * Dijkstra "najwcześniejszego przyjazdu" nad krawędziami DRIVE snapshotu, bez alokacji w pętli.
+ *
+ * Kolejka to binarny kopiec na long[] (czas << 32 | przystanek), a czasy i wskaźniki rodzica
+ * leżą w tablicach int[] indeksowanych numerem przystanku. Tablice są per wątek i nie są
+ * czyszczone między zapytaniami - wpis jest ważny tylko, gdy jego znacznik epoki zgadza się
+ * z bieżącą epoką. Zapytanie alokuje więc tylko wynik (proporcjonalnie do długości ścieżki).
+ *
+ * Opcjonalnie (jeden cel) działa jako A*: kluczem kopca jest przyjazd + ograniczenie czasu dojazdu
+ * do celu, czyli (odległość po kole wielkim - zeroRideMeters) / maxSpeedMps snapshotu. Jest dolne dla
+ * tras z co najwyżej jednym przejazdem wyłącznie po odcinkach 0 s (minutowe czasy GTFS); trasa z kilkoma
+ * takimi przejazdami może w teorii przeskoczyć ograniczenie, więc optymalność A* jest wtedy przybliżona.
+ *
+ * Z widokiem DelayOverlay czasy dzisiejszych tripów są przesuwane o bieżące opóźnienia
+ * (tripy z "jutro" to inne kursy, więc jadą według rozkładu).
+ */
+final class DijkstraRouter {
+
+    private static final int INF = Integer.MAX_VALUE;
+    private static final int DAY_SECONDS = TripPatterns.DAY_SECONDS;
+
+    private static final ThreadLocal<Workspace> WORKSPACE = ThreadLocal.withInitial(Workspace::new);
+
+    private final TimetableSnapshot timetable;
+    private final BitSet tripsToday;
+    private final BitSet tripsTomorrow;
+    private final boolean useWalks;
+    private final DelayOverlay.View delays;     // null = sam rozkład
+    private final int maxLate;
+    private final int maxEarly;
+
+    // --- A*: cel heurystyki (-1 = zwykła Dijkstra) ---
+    private int heuristicTarget = -1;
+    private double secondsPerMeter;
+
+    // Liczniki ostatniego zapytania: przystanki zdjęte z kopca (bez nieaktualnych wpisów), obejrzane
+    // krawędzie DRIVE / WALK, największy rozmiar kopca i czas odtwarzania trasy z rodziców
+    private int settled;
+    private long edgesScanned;
+    private int heapPeak;
+    private long reconstructNanos;
+
+    // Górna granica czasu przyjazdu (izochrona); INF = bez limitu
+    private int timeLimit = INF;
+
+    // Macierz czasów: ile celów zostało do zdjęcia z kopca (-1 = cele konkurują o najlepszy wynik)
+    private int pendingTargets = -1;
+
+    DijkstraRouter(TimetableSnapshot timetable, BitSet tripsToday, BitSet tripsTomorrow) {
+        this(timetable, tripsToday, tripsTomorrow, false);
+    }
+
+    // useWalks = przesiadki piesze po krawędziach WALK (time_sec), jak w badanie/dzialania/TripPlanner
+    DijkstraRouter(TimetableSnapshot timetable, BitSet tripsToday, BitSet tripsTomorrow, boolean useWalks) {
+        this(timetable, tripsToday, tripsTomorrow, useWalks, null);
+    }
+
+    DijkstraRouter(TimetableSnapshot timetable, BitSet tripsToday, BitSet tripsTomorrow, boolean useWalks,
+                   DelayOverlay.View delays) {
+        this.timetable = timetable;
+        this.tripsToday = tripsToday;
+        this.tripsTomorrow = tripsTomorrow;
+        this.useWalks = useWalks;
+        this.delays = delays != null && delays.timetable == timetable ? delays : null;
+        this.maxLate = this.delays == null ? 0 : this.delays.maxLate;
+        this.maxEarly = this.delays == null ? 0 : this.delays.maxEarly;
+    }
+
+    /**
+     * Tablice robocze jednego wątku. Rosną do największego snapshotu, jaki wątek widział.
+     */
+    private static final class Workspace {
+        int[] stamp = new int[0];
+        int[] arrival = new int[0];
+        int[] parentStop = new int[0];
+        int[] parentEdge = new int[0];     // indeks DRIVE albo ~indeks WALK (wartość ujemna)
+        boolean[] viaNextDay = new boolean[0];
+        int[] targetStamp = new int[0];
+        int[] targetPenalty = new int[0];
+        int[] boundStamp = new int[0];
+        int[] bound = new int[0];          // Heurystyka A* liczona leniwie, raz na przystanek i zapytanie
+        int epoch;
+
+        long[] heap = new long[64];
+        int heapSize;
+        int heapPeak;
+
+        void prepare(int stopCount) {
+            if (stamp.length < stopCount) {
+                stamp = new int[stopCount];
+                arrival = new int[stopCount];
+                parentStop = new int[stopCount];
+                parentEdge = new int[stopCount];
+                viaNextDay = new boolean[stopCount];
+                targetStamp = new int[stopCount];
+                targetPenalty = new int[stopCount];
+                boundStamp = new int[stopCount];
+                bound = new int[stopCount];
+                epoch = 0;
+            }
+            // Przepełnienie licznika epok - jedyny moment, kiedy czyścimy znaczniki
+            if (++epoch == Integer.MAX_VALUE) {
+                Arrays.fill(stamp, 0);
+                Arrays.fill(targetStamp, 0);
+                Arrays.fill(boundStamp, 0);
+                epoch = 1;
+            }
+            heapSize = 0;
+            heapPeak = 0;
+        }
+
+        int arrival(int stop) {
+            return stamp[stop] == epoch ? arrival[stop] : INF;
+        }
+
+        void settle(int stop, int time, int fromStop, int edge, boolean nextDay) {
+            stamp[stop] = epoch;
+            arrival[stop] = time;
+            parentStop[stop] = fromStop;
+            parentEdge[stop] = edge;
+            viaNextDay[stop] = nextDay;
+        }
+
+        // Cel z karą; ten sam przystanek podany kilka razy zachowuje najmniejszą karę
+        void markTarget(int stop, int penalty) {
+            if (targetStamp[stop] != epoch || penalty < targetPenalty[stop]) {
+                targetStamp[stop] = epoch;
+                targetPenalty[stop] = penalty;
+            }
+        }
+
+        boolean isTarget(int stop) {
+            return targetStamp[stop] == epoch;
+        }
+
+        int penalty(int stop) {
+            return targetPenalty[stop];
+        }
+
+        // --- Kopiec binarny (min po kluczu; klucz jest nieujemny, więc porządek long jest poprawny) ---
+
+        void push(int time, int stop) {
+            if (heapSize == heap.length) heap = Arrays.copyOf(heap, heapSize * 2);
+            long key = ((long) time << 32) | stop;
+            int i = heapSize++;
+            if (heapSize > heapPeak) heapPeak = heapSize;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (heap[parent] <= key) break;
+                heap[i] = heap[parent];
+                i = parent;
+            }
+            heap[i] = key;
+        }
+
+        long pop() {
+            long top = heap[0];
+            long last = heap[--heapSize];
+            int i = 0;
+            int half = heapSize >>> 1;
+            while (i < half) {
+                int child = 2 * i + 1;
+                if (child + 1 < heapSize && heap[child + 1] < heap[child]) child++;
+                if (last <= heap[child]) break;
+                heap[i] = heap[child];
+                i = child;
+            }
+            if (heapSize > 0) heap[i] = last;
+            return top;
+        }
+    }
+
+    /**
+     * Wynik wyszukiwania wielu startów / wielu celów: który cel wygrał (indeks w tablicy targets),
+     * przyjazd na przystanek celu, przystanek startowy i etapy przejazdu.
+     */
+    static final class Arrival {
+        final int target;
+        final int stop;
+        final int arrival;
+        final int source;
+        final List<TripPlanner.JourneyLeg> legs;
+
+        Arrival(int target, int stop, int arrival, int source, List<TripPlanner.JourneyLeg> legs) {
+            this.target = target;
+            this.stop = stop;
+            this.arrival = arrival;
+            this.source = source;
+            this.legs = legs;
+        }
+    }
+
+    List<TripPlanner.JourneyLeg> route(int source, int target, int departure) {
+        return route(source, target, departure, false);
+    }
+
+    /**
+     * aStar = A* z ograniczeniem geograficznym. Bez współrzędnych celu, bez prędkości sieci albo gdy
+     * opóźnienia skracają jakiś odcinek (ograniczenie przestałoby być dolne) wyszukiwanie jest zwykłą Dijkstrą.
+     */
+    List<TripPlanner.JourneyLeg> route(int source, int target, int departure, boolean aStar) {
+        heuristicTarget = -1;
+        timeLimit = INF;
+        pendingTargets = -1;
+        if (aStar && (delays == null || !delays.recovers) && timetable.maxSpeedMps > 0 && !Double.isNaN(timetable.stopLats[target])) {
+            heuristicTarget = target;
+            secondsPerMeter = 1.0 / timetable.maxSpeedMps;
+        }
+
+        Workspace ws = WORKSPACE.get();
+        ws.prepare(timetable.stopCount);
+        ws.settle(source, departure, -1, -1, false);
+        ws.push(departure + bound(ws, source), source);
+        ws.markTarget(target, 0);
+
+        int best = search(ws);
+        if (best < 0) return Collections.emptyList();
+        long reconstructStarted = System.nanoTime();
+        List<TripPlanner.JourneyLeg> legs = collapsePath(ws, best);
+        reconstructNanos = System.nanoTime() - reconstructStarted;
+        return legs;
+    }
+
+    /**
+     * Jedno przeszukanie z wielu przystanków startowych (każdy z własnym czasem, np. po dojściu
+     * pieszo) do najlepszego z wielu celów, gdzie cel i ma doliczaną karę penalties[i] (np. dojście
+     * od przystanku do lokalu). Kończymy, gdy zdejmowany czas nie może już poprawić najlepszego celu.
+     */
+    Arrival routeToAny(int[] sources, int[] departures, int[] targets, int[] penalties) {
+        heuristicTarget = -1;
+        timeLimit = INF;
+        pendingTargets = -1;
+        Workspace ws = WORKSPACE.get();
+        ws.prepare(timetable.stopCount);
+        for (int i = 0; i < sources.length; i++) {
+            if (departures[i] < ws.arrival(sources[i])) {
+                ws.settle(sources[i], departures[i], -1, -1, false);
+                ws.push(departures[i], sources[i]);
+            }
+        }
+        for (int i = 0; i < targets.length; i++) ws.markTarget(targets[i], penalties[i]);
+
+        int best = search(ws);
+        if (best < 0) return null;
+
+        int winner = -1;
+        for (int i = 0; i < targets.length; i++) {
+            if (targets[i] == best && (winner < 0 || penalties[i] < penalties[winner])) winner = i;
+        }
+        int source = best;
+        while (ws.parentStop[source] >= 0) source = ws.parentStop[source];
+        long reconstructStarted = System.nanoTime();
+        List<TripPlanner.JourneyLeg> legs = collapsePath(ws, best);
+        reconstructNanos = System.nanoTime() - reconstructStarted;
+        return new Arrival(winner, best, ws.arrival(best), source, legs);
+    }
+
+    /**
+     * Przystanek osiągnięty w przeszukaniu "do wszystkich": najwcześniejszy przyjazd i liczba
+     * przesiadek na tej trasie (kolejne przejazdy minus jeden; spacery WALK się nie liczą).
+     */
+    static final class Reached {
+        final int stop;
+        final int arrival;
+        final int transfers;
+
+        Reached(int stop, int arrival, int transfers) {
+            this.stop = stop;
+            this.arrival = arrival;
+            this.transfers = transfers;
+        }
+    }
+
+    /**
+     * Izochrona: jedno przeszukanie z przystanków startowych do wszystkich, ucięte na przyjeździe
+     * późniejszym niż limit. Wynik posortowany po przyjeździe (starty też są na liście, z 0 przesiadek).
+     */
+    List<Reached> reachAll(int[] sources, int[] departures, int limit) {
+        heuristicTarget = -1;
+        timeLimit = limit;
+        pendingTargets = -1;
+        Workspace ws = WORKSPACE.get();
+        ws.prepare(timetable.stopCount);
+        for (int i = 0; i < sources.length; i++) {
+            if (departures[i] <= limit && departures[i] < ws.arrival(sources[i])) {
+                ws.settle(sources[i], departures[i], -1, -1, false);
+                ws.push(departures[i], sources[i]);
+            }
+        }
+        search(ws);
+
+        // Przejazdy liczymy po ścieżce rodziców z zapamiętywaniem (-1 = jeszcze nie policzone)
+        int[] rides = new int[timetable.stopCount];
+        Arrays.fill(rides, -1);
+        TimetableSnapshot.IntList chain = new TimetableSnapshot.IntList();
+        List<Reached> result = new ArrayList<>();
+        for (int s = 0; s < timetable.stopCount; s++) {
+            if (ws.arrival(s) <= limit) result.add(new Reached(s, ws.arrival(s), Math.max(0, rides(ws, rides, chain, s) - 1)));
+        }
+        result.sort(Comparator.comparingInt(r -> r.arrival));
+        return result;
+    }
+
+    /**
+     * Wiersz macierzy czasów przejazdu: najwcześniejsze przyjazdy z jednego startu do wszystkich celów
+     * (INF = nieosiągalny albo po limicie). Przeszukanie kończy się, gdy zdejmiemy z kopca ostatni cel.
+     */
+    int[] arrivals(int source, int departure, int[] targets, int limit) {
+        heuristicTarget = -1;
+        timeLimit = limit;
+        Workspace ws = WORKSPACE.get();
+        ws.prepare(timetable.stopCount);
+        int distinct = 0;
+        for (int target : targets) {
+            if (!ws.isTarget(target)) distinct++;
+            ws.markTarget(target, 0);
+        }
+        pendingTargets = distinct;
+        ws.settle(source, departure, -1, -1, false);
+        ws.push(departure, source);
+        search(ws);
+
+        int[] result = new int[targets.length];
+        for (int i = 0; i < targets.length; i++) {
+            int arrival = ws.arrival(targets[i]);
+            result[i] = arrival <= limit ? arrival : INF;
+        }
+        return result;
+    }
+
+    private int rides(Workspace ws, int[] rides, TimetableSnapshot.IntList chain, int stop) {
+        // Wchodzimy w górę do przystanku o znanej liczbie przejazdów (albo startu), potem schodzimy
+        chain.size = 0;
+        int s = stop;
+        while (rides[s] < 0 && ws.parentStop[s] >= 0) {
+            chain.add(s);
+            s = ws.parentStop[s];
+        }
+        if (rides[s] < 0) rides[s] = 0;
+        for (int i = chain.size - 1; i >= 0; i--) {
+            int child = chain.data[i];
+            int parent = ws.parentStop[child];
+            int edge = ws.parentEdge[child];
+            boolean newRide = edge >= 0 && !continuesRide(ws, parent, edge, ws.viaNextDay[child]);
+            rides[child] = rides[parent] + (newRide ? 1 : 0);
+        }
+        return rides[stop];
+    }
+
+    // Czy krawędź edge jedzie dalej tym samym kursem, którym dojechaliśmy do stop
+    private boolean continuesRide(Workspace ws, int stop, int edge, boolean nextDay) {
+        int previous = ws.parentEdge[stop];
+        return ws.parentStop[stop] >= 0 && previous >= 0
+                && timetable.edgeTrip[previous] == timetable.edgeTrip[edge]
+                && ws.viaNextDay[stop] == nextDay;
+    }
+
+    int settled() {
+        return settled;
+    }
+
+    long edgesScanned() {
+        return edgesScanned;
+    }
+
+    int heapPeak() {
+        return heapPeak;
+    }
+
+    long reconstructNanos() {
+        return reconstructNanos;
+    }
+
+    // Rdzeń Dijkstry; zwraca przystanek celu z najmniejszym (przyjazd + kara) albo -1
+    private int search(Workspace ws) {
+        int bestStop = -1;
+        long bestTotal = Long.MAX_VALUE;
+        long scanned = 0;
+        settled = 0;
+        reconstructNanos = 0;
+        while (ws.heapSize > 0) {
+            long key = ws.pop();
+            int estimate = (int) (key >>> 32);
+            int stop = (int) key;
+            int time = ws.arrival(stop);
+
+            if (estimate > time + bound(ws, stop)) continue;   // Nieaktualny wpis (leniwe usuwanie)
+            if (estimate >= bestTotal) break;                  // Ograniczenie jest dolne - nic już nie poprawi wyniku
+            if (estimate > timeLimit) break;
+            settled++;
+            if (ws.isTarget(stop) && pendingTargets >= 0) {
+                if (--pendingTargets == 0) break;
+            } else if (ws.isTarget(stop) && time + (long) ws.penalty(stop) < bestTotal) {
+                bestTotal = time + (long) ws.penalty(stop);
+                bestStop = stop;
+            }
+
+            // Krawędzie są pogrupowane po następnym przystanku i posortowane po odjeździe. W grupie
+            // zaczynamy od pierwszego możliwego odjazdu i kończymy, gdy odjazd nie jest już wcześniejszy
+            // niż najlepszy znany przyjazd do sąsiada (przyjazd >= odjazd, więc nic tam nie poprawimy).
+            // Z opóźnieniami zakres poszerzamy: kurs spóźniony o maxLate mógł w rozkładzie odjechać już wcześniej,
+            // a kurs przyspieszony o maxEarly może odjechać przed krawędziami wcześniejszymi w rozkładzie.
+            for (int g = timetable.groupOffsets[stop]; g < timetable.groupOffsets[stop + 1]; g++) {
+                int groupEnd = timetable.groupStart[g + 1];
+                int neighbor = timetable.edgeTarget[timetable.groupStart[g]];
+                for (int e = firstEdgeAtOrAfter(g, time - maxLate); e < groupEnd; e++) {
+                    scanned++;
+                    if (timetable.edgeDep[e] - maxEarly >= ws.arrival(neighbor)) break;
+                    if (!tripsToday.get(timetable.edgeTrip[e])) continue;
+                    if (delays == null) {
+                        relax(ws, stop, e, timetable.edgeArr[e], false);
+                        continue;
+                    }
+                    int dep = delayedDep(e);
+                    if (dep >= time) relax(ws, stop, e, Math.max(dep, delayedArr(e)), false);
+                }
+                for (int e = firstEdgeAtOrAfter(g, time - DAY_SECONDS); e < groupEnd; e++) {
+                    scanned++;
+                    if (timetable.edgeDep[e] + DAY_SECONDS >= ws.arrival(neighbor)) break;
+                    if (tripsTomorrow.get(timetable.edgeTrip[e])) {
+                        relax(ws, stop, e, timetable.edgeArr[e] + DAY_SECONDS, true);
+                    }
+                }
+            }
+            if (useWalks) {
+                for (int w = timetable.walkOffsets[stop]; w < timetable.walkOffsets[stop + 1]; w++) {
+                    scanned++;
+                    int neighbor = timetable.walkTarget[w];
+                    int arrTime = time + timetable.walkSeconds[w];
+                    if (arrTime < ws.arrival(neighbor)) {
+                        ws.settle(neighbor, arrTime, stop, ~w, false);
+                        ws.push(arrTime + bound(ws, neighbor), neighbor);
+                    }
+                }
+            }
+        }
+        edgesScanned = scanned;
+        heapPeak = ws.heapPeak;
+        return bestStop;
+    }
+
+    private void relax(Workspace ws, int from, int edge, int arrTime, boolean nextDay) {
+        int neighbor = timetable.edgeTarget[edge];
+        if (arrTime < ws.arrival(neighbor)) {
+            ws.settle(neighbor, arrTime, from, edge, nextDay);
+            ws.push(arrTime + bound(ws, neighbor), neighbor);
+        }
+    }
+
+    // Odjazd / przyjazd dzisiejszej krawędzi z opóźnieniem na przystanku odjazdu / przyjazdu
+    private int delayedDep(int edge) {
+        return timetable.edgeDep[edge] + delays.delay(timetable.edgeTrip[edge], timetable.edgeHop[edge]);
+    }
+
+    private int delayedArr(int edge) {
+        return timetable.edgeArr[edge] + delays.delay(timetable.edgeTrip[edge], timetable.edgeHop[edge] + 1);
+    }
+
+    // Ograniczenie czasu jazdy od przystanku do celu A* (0 bez celu albo bez współrzędnych)
+    private int bound(Workspace ws, int stop) {
+        if (heuristicTarget < 0) return 0;
+        if (ws.boundStamp[stop] != ws.epoch) {
+            double lat = timetable.stopLats[stop];
+            ws.boundStamp[stop] = ws.epoch;
+            ws.bound[stop] = Double.isNaN(lat) ? 0 : (int) (secondsPerMeter * Math.max(0, SpatialIndex.distanceMeters(
+                    lat, timetable.stopLons[stop],
+                    timetable.stopLats[heuristicTarget], timetable.stopLons[heuristicTarget]) - timetable.zeroRideMeters));
+        }
+        return ws.bound[stop];
+    }
+
+    // Pierwsza krawędź grupy z odjazdem >= time (wyszukiwanie binarne)
+    private int firstEdgeAtOrAfter(int group, int time) {
+        int lo = timetable.groupStart[group], hi = timetable.groupStart[group + 1];
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (timetable.edgeDep[mid] < time) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Zamienia ciąg atomowych segmentów (A->B, B->C, C->D) w logiczne etapy (A->D linią X).
+     */
+    private List<TripPlanner.JourneyLeg> collapsePath(Workspace ws, int target) {
+        // A. Krawędzie ścieżki od tyłu (tablica wielkości ścieżki), aż do przystanku startowego
+        int length = 0;
+        for (int s = target; ws.parentStop[s] >= 0; s = ws.parentStop[s]) length++;
+        if (length == 0) return Collections.emptyList();
+        int[] stops = new int[length + 1];
+        int[] edges = new int[length];
+        int s = target;
+        for (int i = length; i > 0; i--) {
+            stops[i] = s;
+            edges[i - 1] = ws.parentEdge[s];
+            s = ws.parentStop[s];
+        }
+        stops[0] = s;
+
+        // B. Grupujemy kolejne segmenty tego samego tripu w jeden etap; każdy spacer WALK to osobny etap
+        List<TripPlanner.JourneyLeg> journey = new ArrayList<>();
+        boolean nextDay = false;
+        int legStart = 0;
+        for (int i = 1; i <= length; i++) {
+            int first = edges[legStart];
+            if (first < 0) {
+                // Spacer zaczyna się od razu po dotarciu; dzień jak w poprzednim etapie
+                int shift = nextDay ? DAY_SECONDS : 0;
+                journey.add(new TripPlanner.JourneyLeg(
+                        McRaptorRouter.WALK_LINE,
+                        timetable.stopNames[stops[legStart]],
+                        GtfsTime.format(ws.arrival(stops[legStart]) - shift),
+                        timetable.stopNames[stops[i]],
+                        GtfsTime.format(ws.arrival(stops[i]) - shift),
+                        1,
+                        nextDay
+                ));
+                legStart = i;
+                continue;
+            }
+            if (i < length && edges[i] >= 0 && timetable.edgeTrip[edges[i]] == timetable.edgeTrip[first]) continue;
+
+            int last = edges[i - 1];
+            nextDay = ws.viaNextDay[stops[legStart + 1]];
+            // Dzisiejszy kurs z opóźnieniem pokazujemy w rzeczywistych czasach
+            boolean delayed = delays != null && !nextDay;
+            journey.add(new TripPlanner.JourneyLeg(
+                    timetable.tripLabel(timetable.edgeTrip[first]),
+                    timetable.stopNames[stops[legStart]],
+                    GtfsTime.format(delayed ? delayedDep(first) : timetable.edgeDep[first]),
+                    timetable.stopNames[stops[i]],
+                    GtfsTime.format(delayed ? ws.arrival(stops[i]) : timetable.edgeArr[last]),
+                    i - legStart,
+                    nextDay
+            ));
+            legStart = i;
+        }
+        return journey;
+    }
+}
@@ -0,0 +1,148 @@
+package org.example;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Strumieniowy czytnik plików CSV z GTFS (RFC 4180: pola w cudzysłowach, "" w środku, CRLF, BOM).
+ * Czyta wiersz po wierszu z bufora 64 KB, bez String.split i bez trzymania pliku w pamięci -
+ * stop_times.txt pełnego feedu ma miliony wierszy. Kolumny adresujemy nazwami z nagłówka.
+ */
+final class GtfsCsv implements Closeable {
+
+    private static final int BUFFER = 1 << 16;
+
+    private final Reader reader;
+    private final char[] buffer = new char[BUFFER];
+    private int position;
+    private int limit;
+
+    private final Map<String, Integer> columns = new HashMap<>();
+    private String[] fields = new String[16];
+    private int fieldCount;
+    private final StringBuilder field = new StringBuilder(64);
+    private long line;
+
+    private GtfsCsv(Reader reader) {
+        this.reader = reader;
+    }
+
+    // Otwiera plik i czyta nagłówek; pusty plik daje czytnik bez kolumn i bez wierszy
+    static GtfsCsv open(Path file) throws IOException {
+        GtfsCsv csv = new GtfsCsv(new InputStreamReader(Files.newInputStream(file), StandardCharsets.UTF_8));
+        if (csv.next()) {
+            for (int i = 0; i < csv.fieldCount; i++) {
+                String name = csv.fields[i].trim();
+                if (i == 0 && name.startsWith("\uFEFF")) name = name.substring(1);
+                csv.columns.put(name, i);
+            }
+        }
+        csv.line = 0;
+        return csv;
+    }
+
+    // Indeks kolumny albo -1, gdy plik jej nie ma
+    int column(String name) {
+        Integer idx = columns.get(name);
+        return idx == null ? -1 : idx;
+    }
+
+    String[] header() {
+        String[] names = new String[columns.size()];
+        for (Map.Entry<String, Integer> entry : columns.entrySet()) names[entry.getValue()] = entry.getKey();
+        return names;
+    }
+
+    // Wartość z bieżącego wiersza; null dla brakującej kolumny i pustego pola
+    String get(int column) {
+        if (column < 0 || column >= fieldCount) return null;
+        String value = fields[column];
+        return value.isEmpty() ? null : value;
+    }
+
+    String get(String column) {
+        return get(column(column));
+    }
+
+    // Numer bieżącego wiersza danych (od 1, bez nagłówka)
+    long line() {
+        return line;
+    }
+
+    /**
+     * Następny niepusty wiersz; false na końcu pliku. Znak nowej linii w cudzysłowie należy do pola.
+     */
+    boolean next() throws IOException {
+        while (true) {
+            fieldCount = 0;
+            field.setLength(0);
+            boolean quoted = false, any = false;
+            int c;
+            while ((c = read()) >= 0) {
+                any = true;
+                if (quoted) {
+                    if (c == '"') {
+                        if (peek() == '"') {
+                            read();
+                            field.append('"');
+                        } else {
+                            quoted = false;
+                        }
+                    } else {
+                        field.append((char) c);
+                    }
+                } else if (c == '"') {
+                    quoted = true;
+                } else if (c == ',') {
+                    addField();
+                } else if (c == '\n') {
+                    break;
+                } else if (c != '\r') {
+                    field.append((char) c);
+                }
+            }
+            if (!any) return false;
+            addField();
+            // Pusty wiersz (np. na końcu pliku) pomijamy
+            if (fieldCount == 1 && fields[0].isEmpty()) continue;
+            line++;
+            return true;
+        }
+    }
+
+    private void addField() {
+        if (fieldCount == fields.length) fields = Arrays.copyOf(fields, fieldCount * 2);
+        fields[fieldCount++] = field.toString();
+        field.setLength(0);
+    }
+
+    private int read() throws IOException {
+        if (position == limit && !fill()) return -1;
+        return buffer[position++];
+    }
+
+    private int peek() throws IOException {
+        if (position == limit && !fill()) return -1;
+        return buffer[position];
+    }
+
+    private boolean fill() throws IOException {
+        limit = reader.read(buffer, 0, BUFFER);
+        position = 0;
+        if (limit <= 0) {
+            limit = 0;
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,506 @@
+package org.example;
+
+import org.neo4j.graphdb.*;
+import org.neo4j.logging.Log;
+import org.neo4j.procedure.Context;
+import org.neo4j.procedure.Mode;
+import org.neo4j.procedure.Name;
+import org.neo4j.procedure.Procedure;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+/**
+ * Import GTFS z katalogu na dysku serwera (stops.txt, calendar.txt, trips.txt, stop_times.txt) w jednym
+ * przebiegu, zamiast LOAD CSV + 01_CREATE_DRIVE.txt. Węzły Stop / Calendar / Trip są dopisywane albo
+ * aktualizowane po identyfikatorze, a stop_times.txt czytamy strumieniowo: kolejne wiersze tego samego
+ * tripu tworzą blok, bloki idą paczkami do puli wątków i każda paczka zapisuje w osobnej transakcji
+ * STOPS_AT oraz łańcuch DRIVE z czasami w sekundach (jak po custom.migrateDriveTimes).
+ */
+public class GtfsImport {
+
+    @Context
+    public Transaction tx;
+
+    @Context
+    public Log log;
+
+    @Context
+    public GraphDatabaseService db;
+
+    private static final Label STOP_LABEL = Label.label("Stop");
+    private static final Label TRIP_LABEL = Label.label("Trip");
+    private static final Label CALENDAR_LABEL = Label.label("Calendar");
+    private static final RelationshipType DRIVE = RelationshipType.withName("DRIVE");
+    private static final RelationshipType STOPS_AT = RelationshipType.withName("STOPS_AT");
+    private static final RelationshipType VALID_ON = RelationshipType.withName("VALID_ON");
+    private static final String[] DAYS = {"monday", "tuesday", "wednesday", "thursday", "friday", "saturday", "sunday"};
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long RETRY_BASE_MILLIS = 50;   // Odczekanie przed ponowieniem: 50, 100, 200... ms + losowy rozrzut
+
+    // Wynik importu
+    public static class ImportStats {
+        public long stops;
+        public long calendars;
+        public long trips;
+        public long stopTimes;          // Zapisane relacje STOPS_AT
+        public long drives;
+        public long existingTrips;      // Tripy, które już miały STOPS_AT - bez zmian
+        public long skippedStopTimes;   // Nieznany trip / przystanek, błędny czas albo trip rozrzucony po pliku
+        public long failedBatches;
+        public long millis;
+
+        public ImportStats(long stops, long calendars, long trips, long stopTimes, long drives, long existingTrips,
+                           long skippedStopTimes, long failedBatches, long millis) {
+            this.stops = stops;
+            this.calendars = calendars;
+            this.trips = trips;
+            this.stopTimes = stopTimes;
+            this.drives = drives;
+            this.existingTrips = existingTrips;
+            this.skippedStopTimes = skippedStopTimes;
+            this.failedBatches = failedBatches;
+            this.millis = millis;
+        }
+    }
+
+    // Przystanki jednego tripu w kolejności stop_sequence
+    private static final class TripBlock {
+        final String tripId;
+        final long tripNodeId;
+        final int[] sequences;
+        final long[] stopNodeIds;
+        final String[] arrivals;
+        final String[] departures;
+
+        TripBlock(String tripId, long tripNodeId, int[] sequences, long[] stopNodeIds, String[] arrivals, String[] departures) {
+            this.tripId = tripId;
+            this.tripNodeId = tripNodeId;
+            this.sequences = sequences;
+            this.stopNodeIds = stopNodeIds;
+            this.arrivals = arrivals;
+            this.departures = departures;
+        }
+    }
+
+    /**
+     * Wymaga stops.txt, trips.txt i stop_times.txt; calendar.txt jest opcjonalny (bez niego tripy nie mają
+     * VALID_ON). Wiersze stop_times.txt muszą być pogrupowane po trip_id, jak w feedach ZTM - wiersze tripu,
+     * który wraca w dalszej części pliku, są pomijane i liczone w skippedStopTimes. Tripy z istniejącymi
+     * STOPS_AT zostają nietknięte, więc przerwany import można bezpiecznie wznowić.
+     */
+    @Procedure(name = "custom.importGtfs", mode = Mode.WRITE)
+    public Stream<ImportStats> importGtfs(
+            @Name("directory") String directory,
+            @Name(value = "batchSize", defaultValue = "10000") Long batchSize,
+            @Name(value = "threads", defaultValue = "4") Long threads
+    ) {
+        long started = System.currentTimeMillis();
+        int chunk = batchSize == null ? 10000 : (int) Math.max(1, Math.min(batchSize, Integer.MAX_VALUE));
+        int workers = threads == null ? 4 : (int) Math.max(1, Math.min(threads, 64));
+
+        Path dir = directory == null ? null : Paths.get(directory);
+        for (String required : new String[]{"stops.txt", "trips.txt", "stop_times.txt"}) {
+            if (dir == null || !Files.isReadable(dir.resolve(required))) {
+                log.error("TripPlanner: Brak pliku " + required + " w katalogu " + directory + ".");
+                return Stream.empty();
+            }
+        }
+
+        // 0. Zapisane wzorce opisują poprzedni rozkład - usuwamy je przed importem we własnej transakcji,
+        //    żeby snapshot czytał nowe DRIVE, a paczki nie oznaczały wzorców (listener TripPatterns) jedna po drugiej
+        long patterns = deletePatterns();
+
+        try {
+            // 1. Przystanki, kalendarze i tripy - sekwencyjnie, paczkami (tripy potrzebują gotowych kalendarzy)
+            Map<String, Long> stops = existing(STOP_LABEL, "stop_id");
+            long stopCount = upsert(dir.resolve("stops.txt"), STOP_LABEL, "stop_id", stops, chunk, GtfsImport::setStop);
+
+            Map<String, Long> calendars = existing(CALENDAR_LABEL, "service_id");
+            long calendarCount = 0;
+            if (Files.isReadable(dir.resolve("calendar.txt"))) {
+                calendarCount = upsert(dir.resolve("calendar.txt"), CALENDAR_LABEL, "service_id", calendars, chunk, GtfsImport::setCalendar);
+            } else {
+                log.warn("TripPlanner: Brak calendar.txt - tripy nie dostaną VALID_ON.");
+            }
+
+            Map<String, Long> trips = existing(TRIP_LABEL, "trip_id");
+            long tripCount = upsert(dir.resolve("trips.txt"), TRIP_LABEL, "trip_id", trips, chunk,
+                    (batchTx, node, csv) -> setTrip(batchTx, node, csv, calendars));
+            log.info("TripPlanner: Import GTFS - " + stopCount + " przystanków, " + calendarCount + " kalendarzy, "
+                    + tripCount + " tripów.");
+
+            // 2. stop_times.txt: bloki tripów w paczkach po ~batchSize wierszy, równolegle
+            long[] counts = importStopTimes(dir.resolve("stop_times.txt"), stops, trips, chunk, workers);
+
+            long millis = System.currentTimeMillis() - started;
+            log.info("TripPlanner: Import GTFS zakończony w " + millis + " ms (STOPS_AT " + counts[0] + ", DRIVE "
+                    + counts[1] + ", pominięte wiersze " + counts[3] + "). Wywołaj "
+                    + (patterns > 0 ? "custom.buildTripPatterns (usunięto " + patterns + " nieaktualnych wzorców) i " : "")
+                    + "custom.rebuildTimetable, żeby routing widział nowy rozkład.");
+            return Stream.of(new ImportStats(stopCount, calendarCount, tripCount, counts[0], counts[1], counts[2],
+                    counts[3], counts[4], millis));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Import GTFS z " + directory + " nie powiódł się", e);
+        }
+    }
+
+    // --- Węzły: Stop, Calendar, Trip ---
+
+    private interface NodeWriter {
+        void write(Transaction batchTx, Node node, GtfsCsv csv);
+    }
+
+    // Identyfikator -> id węzła dla węzłów z poprzednich importów (czytane w transakcji wywołującej)
+    private Map<String, Long> existing(Label label, String key) {
+        Map<String, Long> ids = new HashMap<>();
+        try (ResourceIterator<Node> nodes = tx.findNodes(label)) {
+            while (nodes.hasNext()) {
+                Node node = nodes.next();
+                Object id = node.getProperty(key, null);
+                if (id != null) ids.put(id.toString(), node.getId());
+            }
+        }
+        return ids;
+    }
+
+    // Dopisuje albo aktualizuje węzły z pliku paczkami po batchSize wierszy; ids dostaje nowe węzły
+    private long upsert(Path file, Label label, String key, Map<String, Long> ids, int chunk, NodeWriter writer) throws IOException {
+        long written = 0;
+        try (GtfsCsv csv = GtfsCsv.open(file)) {
+            int keyColumn = csv.column(key);
+            if (keyColumn < 0) {
+                log.error("TripPlanner: " + file.getFileName() + " nie ma kolumny " + key + ".");
+                return 0;
+            }
+            boolean more = csv.next();
+            while (more) {
+                try (Transaction batchTx = db.beginTx()) {
+                    Map<String, Long> created = new HashMap<>();
+                    for (int i = 0; i < chunk && more; i++, more = csv.next()) {
+                        String id = csv.get(keyColumn);
+                        if (id == null) continue;
+                        Long nodeId = ids.get(id);
+                        Node node = nodeId != null ? batchTx.getNodeById(nodeId) : batchTx.createNode(label);
+                        writer.write(batchTx, node, csv);
+                        if (nodeId == null) created.put(id, node.getId());
+                        written++;
+                    }
+                    batchTx.commit();
+                    ids.putAll(created);
+                }
+            }
+        }
+        return written;
+    }
+
+    // Wszystkie kolumny jako tekst (jak LOAD CSV), pusta kolumna usuwa starą wartość
+    private static void copyColumns(Node node, GtfsCsv csv) {
+        String[] header = csv.header();
+        for (int i = 0; i < header.length; i++) {
+            String value = csv.get(i);
+            if (value != null) node.setProperty(header[i], value);
+            else node.removeProperty(header[i]);
+        }
+    }
+
+    // Współrzędne od razu jako liczby: stop_lat / stop_lon oraz latitude / longitude (jak 04_SET_lat_long)
+    private static void setStop(Transaction batchTx, Node stop, GtfsCsv csv) {
+        copyColumns(stop, csv);
+        try {
+            String lat = csv.get("stop_lat"), lon = csv.get("stop_lon");
+            if (lat != null && lon != null) {
+                double latitude = Double.parseDouble(lat.trim()), longitude = Double.parseDouble(lon.trim());
+                stop.setProperty("stop_lat", latitude);
+                stop.setProperty("stop_lon", longitude);
+                stop.setProperty("latitude", latitude);
+                stop.setProperty("longitude", longitude);
+            }
+        } catch (NumberFormatException e) {
+            // Zostają wartości tekstowe - SpatialIndex pominie przystanek bez liczbowych współrzędnych
+        }
+    }
+
+    // Dni tygodnia jako boolean - tak czyta je ActiveTripsCache
+    private static void setCalendar(Transaction batchTx, Node calendar, GtfsCsv csv) {
+        copyColumns(calendar, csv);
+        for (String day : DAYS) calendar.setProperty(day, "1".equals(trimmed(csv.get(day))));
+    }
+
+    // VALID_ON -> Calendar po service_id; przy ponownym imporcie stara relacja jest podmieniana
+    private static void setTrip(Transaction batchTx, Node trip, GtfsCsv csv, Map<String, Long> calendars) {
+        copyColumns(trip, csv);
+        Long calendar = calendars.get(csv.get("service_id"));
+        Relationship current = trip.getSingleRelationship(VALID_ON, Direction.OUTGOING);
+        if (current != null && calendar != null && current.getEndNode().getId() == calendar) return;
+        if (current != null) current.delete();
+        if (calendar != null) trip.createRelationshipTo(batchTx.getNodeById(calendar), VALID_ON);
+    }
+
+    private static String trimmed(String value) {
+        return value == null ? null : value.trim();
+    }
+
+    // --- stop_times.txt: STOPS_AT i DRIVE ---
+
+    /**
+     * Zwraca {STOPS_AT, DRIVE, istniejące tripy, pominięte wiersze, wycofane paczki}. Czytnik pracuje
+     * w wątku wywołującym, a liczba paczek czekających na zapis jest ograniczona (semafor), więc pamięć
+     * nie rośnie z rozmiarem pliku.
+     */
+    private long[] importStopTimes(Path file, Map<String, Long> stops, Map<String, Long> trips,
+                                   int chunk, int workers) throws IOException {
+        AtomicLong stopTimes = new AtomicLong();
+        AtomicLong drives = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        AtomicLong done = new AtomicLong();
+        long existingTrips = 0, skipped = 0;
+
+        Set<String> finished = new HashSet<>();      // Tripy, których blok już się zakończył
+        Semaphore inFlight = new Semaphore(workers * 2);
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        List<Future<?>> futures = new ArrayList<>();
+        try (GtfsCsv csv = GtfsCsv.open(file)) {
+            int tripColumn = csv.column("trip_id"), stopColumn = csv.column("stop_id"), seqColumn = csv.column("stop_sequence");
+            int arrColumn = csv.column("arrival_time"), depColumn = csv.column("departure_time");
+            if (tripColumn < 0 || stopColumn < 0 || seqColumn < 0 || arrColumn < 0 || depColumn < 0) {
+                log.error("TripPlanner: stop_times.txt nie ma wymaganych kolumn.");
+                return new long[5];
+            }
+
+            List<TripBlock> batch = new ArrayList<>();
+            int batchRows = 0;
+            String currentTrip = null;
+            boolean currentUsable = false, currentExisting = false;
+            TimetableSnapshot.IntList sequences = new TimetableSnapshot.IntList();
+            List<Long> stopIds = new ArrayList<>();
+            List<String> arrivals = new ArrayList<>(), departures = new ArrayList<>();
+
+            boolean more = true;
+            while (more) {
+                more = csv.next();
+                String tripId = more ? csv.get(tripColumn) : null;
+
+                // Koniec bloku tripu: zamykamy go i ewentualnie wysyłamy paczkę
+                if (currentTrip != null && (!more || !currentTrip.equals(tripId))) {
+                    if (currentUsable && sequences.size > 0) {
+                        batch.add(block(currentTrip, trips.get(currentTrip), sequences, stopIds, arrivals, departures));
+                        batchRows += sequences.size;
+                    }
+                    finished.add(currentTrip);
+                    currentTrip = null;
+                    if (batchRows >= chunk || (!more && !batch.isEmpty())) {
+                        submit(pool, futures, inFlight, batch, stopTimes, drives, failed, done);
+                        batch = new ArrayList<>();
+                        batchRows = 0;
+                    }
+                }
+                if (!more) break;
+                if (tripId == null) {
+                    skipped++;
+                    continue;
+                }
+
+                // Początek bloku: trip znany, jeszcze bez STOPS_AT i nie widziany wcześniej w pliku
+                if (currentTrip == null) {
+                    currentTrip = tripId;
+                    sequences.size = 0;
+                    stopIds.clear();
+                    arrivals.clear();
+                    departures.clear();
+                    Long tripNode = trips.get(tripId);
+                    currentExisting = false;
+                    if (finished.contains(tripId)) {
+                        log.warn("TripPlanner: stop_times.txt nie jest pogrupowany po trip_id (" + tripId
+                                + " wraca w wierszu " + csv.line() + ") - pomijam te wiersze.");
+                        currentUsable = false;
+                    } else if (tripNode == null) {
+                        currentUsable = false;
+                    } else if (hasStopsAt(tripNode)) {
+                        existingTrips++;
+                        currentExisting = true;
+                        currentUsable = false;
+                    } else {
+                        currentUsable = true;
+                    }
+                }
+                if (!currentUsable) {
+                    if (!currentExisting) skipped++;
+                    continue;
+                }
+
+                Long stop = stops.get(csv.get(stopColumn));
+                String arr = trimmed(csv.get(arrColumn)), dep = trimmed(csv.get(depColumn));
+                int seq = parseInt(csv.get(seqColumn));
+                // GTFS pozwala pominąć czasy na przystankach pośrednich - bez interpolacji takich nie bierzemy
+                if (stop == null || seq < 0 || GtfsTime.parse(arr) == GtfsTime.INVALID || GtfsTime.parse(dep) == GtfsTime.INVALID) {
+                    skipped++;
+                    continue;
+                }
+                sequences.add(seq);
+                stopIds.add(stop);
+                arrivals.add(arr);
+                departures.add(dep);
+            }
+
+            for (Future<?> future : futures) future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Import stop_times.txt przerwany", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Import stop_times.txt nie powiódł się", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        return new long[]{stopTimes.get(), drives.get(), existingTrips, skipped, failed.get()};
+    }
+
+    // Blok tripu posortowany po stop_sequence (zwykle już jest - sortowanie przez wstawianie jest wtedy liniowe)
+    private static TripBlock block(String tripId, long tripNodeId, TimetableSnapshot.IntList sequences,
+                                   List<Long> stopIds, List<String> arrivals, List<String> departures) {
+        int n = sequences.size;
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) order[i] = i;
+        for (int i = 1; i < n; i++) {
+            Integer current = order[i];
+            int j = i - 1;
+            while (j >= 0 && sequences.data[order[j]] > sequences.data[current]) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = current;
+        }
+        int[] seq = new int[n];
+        long[] stops = new long[n];
+        String[] arr = new String[n], dep = new String[n];
+        for (int i = 0; i < n; i++) {
+            seq[i] = sequences.data[order[i]];
+            stops[i] = stopIds.get(order[i]);
+            arr[i] = arrivals.get(order[i]);
+            dep[i] = departures.get(order[i]);
+        }
+        return new TripBlock(tripId, tripNodeId, seq, stops, arr, dep);
+    }
+
+    private void submit(ExecutorService pool, List<Future<?>> futures, Semaphore inFlight, List<TripBlock> batch,
+                        AtomicLong stopTimes, AtomicLong drives, AtomicLong failed, AtomicLong done) throws InterruptedException {
+        inFlight.acquire();
+        futures.add(pool.submit(() -> {
+            try {
+                // Blokady węzłów paczki bierzemy w stałej kolejności (writeTrips), więc paczki dzielące przystanki
+                // czekają na siebie zamiast się zakleszczać. Pozostałe błędy przejściowe (np. limit czasu blokady)
+                // ponawiamy z wykładniczym odczekaniem i losowym rozrzutem; inne błędy przerywają import
+                long[] counts = null;
+                for (int attempt = 1; attempt <= MAX_ATTEMPTS && counts == null; attempt++) {
+                    try {
+                        counts = writeTrips(batch);
+                    } catch (TransientFailureException e) {
+                        if (attempt == MAX_ATTEMPTS || !pause(attempt)) {
+                            failed.incrementAndGet();
+                            log.error("TripPlanner: Paczka stop_times wycofana po " + attempt + " próbach (" + e.getMessage()
+                                    + "), pominięte tripy: " + tripIds(batch));
+                            break;
+                        }
+                    }
+                }
+                if (counts != null) {
+                    stopTimes.addAndGet(counts[0]);
+                    drives.addAndGet(counts[1]);
+                }
+                log.info("TripPlanner: Import stop_times " + done.incrementAndGet() + " paczek, STOPS_AT " + stopTimes.get() + ".");
+            } finally {
+                inFlight.release();
+            }
+        }));
+    }
+
+    // false, gdy wątek przerwano (import jest przerywany) - wtedy nie ponawiamy
+    private static boolean pause(int attempt) {
+        long delay = RETRY_BASE_MILLIS << (attempt - 1);
+        try {
+            Thread.sleep(delay + ThreadLocalRandom.current().nextLong(delay));
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static String tripIds(List<TripBlock> batch) {
+        return batch.stream().map(block -> block.tripId).collect(Collectors.joining(", "));
+    }
+
+    // Jedna paczka tripów w jednej transakcji; zwraca {STOPS_AT, DRIVE}
+    private long[] writeTrips(List<TripBlock> batch) {
+        long[] counts = new long[2];
+        try (Transaction batchTx = db.beginTx()) {
+            // Najpierw blokady zapisu na tripach i przystankach paczki po rosnącym id węzła
+            long[] nodeIds = batch.stream()
+                    .flatMapToLong(block -> LongStream.concat(LongStream.of(block.tripNodeId), LongStream.of(block.stopNodeIds)))
+                    .distinct().sorted().toArray();
+            for (long nodeId : nodeIds) batchTx.acquireWriteLock(batchTx.getNodeById(nodeId));
+
+            for (TripBlock block : batch) {
+                Node trip = batchTx.getNodeById(block.tripNodeId);
+                Node previous = null;
+                for (int i = 0; i < block.sequences.length; i++) {
+                    Node stop = batchTx.getNodeById(block.stopNodeIds[i]);
+                    Relationship stopsAt = trip.createRelationshipTo(stop, STOPS_AT);
+                    stopsAt.setProperty("stop_sequence", block.sequences[i]);
+                    stopsAt.setProperty("arrival_time", block.arrivals[i]);
+                    stopsAt.setProperty("departure_time", block.departures[i]);
+                    counts[0]++;
+
+                    // Łańcuch DRIVE jak w 01_CREATE_DRIVE.txt, od razu z dep_time_sec / arr_time_sec
+                    if (previous != null) {
+                        Relationship drive = previous.createRelationshipTo(stop, DRIVE);
+                        drive.setProperty("trip_id", block.tripId);
+                        drive.setProperty("dep_time", block.departures[i - 1]);
+                        drive.setProperty("arr_time", block.arrivals[i]);
+                        drive.setProperty("dep_time_sec", GtfsTime.parse(block.departures[i - 1]));
+                        drive.setProperty("arr_time_sec", GtfsTime.parse(block.arrivals[i]));
+                        counts[1]++;
+                    }
+                    previous = stop;
+                }
+            }
+            batchTx.commit();
+        }
+        return counts;
+    }
+
+    private boolean hasStopsAt(long tripNodeId) {
+        return tx.getNodeById(tripNodeId).hasRelationship(Direction.OUTGOING, STOPS_AT);
+    }
+
+    private long deletePatterns() {
+        long deleted = 0;
+        try (Transaction patternTx = db.beginTx();
+             ResourceIterator<Node> patterns = patternTx.findNodes(TripPatterns.PATTERN_LABEL)) {
+            while (patterns.hasNext()) {
+                patterns.next().delete();
+                deleted++;
+            }
+            patternTx.commit();
+        }
+        return deleted;
+    }
+
+    private static int parseInt(String value) {
+        if (value == null) return -1;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
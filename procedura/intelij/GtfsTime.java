@@ -0,0 +1,65 @@
+package org.example;
+
+/**
+ * Parsowanie i formatowanie czasów GTFS ("HH:MM:SS", godziny mogą przekraczać 24).
+ * Bez String.split - ta metoda jest wołana dla każdej krawędzi przy budowie rozkładu.
+ */
+final class GtfsTime {
+
+    static final int INVALID = Integer.MAX_VALUE;
+    static final int MAX_SECONDS = 48 * 3600;   // Kursy GTFS nie trwają dłużej niż doba po północy dnia serwisowego
+
+    private GtfsTime() {
+    }
+
+    // "25:10:00" -> 90600, "08:45" -> 31500, błędny format, więcej niż 3 cyfry godziny albo ponad 48 h -> INVALID
+    static int parse(CharSequence time) {
+        if (time == null) return INVALID;
+        int len = time.length();
+        int h = 0, m = 0, sec = 0;
+        int part = 0;
+        int digits = 0;
+        for (int i = 0; i < len; i++) {
+            char c = time.charAt(i);
+            if (c == ':') {
+                if (digits == 0 || ++part > 2) return INVALID;
+                digits = 0;
+            } else if (c >= '0' && c <= '9') {
+                int d = c - '0';
+                if (digits == (part == 0 ? 3 : 2)) return INVALID;
+                if (part == 0) h = h * 10 + d;
+                else if (part == 1) m = m * 10 + d;
+                else sec = sec * 10 + d;
+                digits++;
+            } else if (c != ' ') {
+                return INVALID;
+            }
+        }
+        if (part < 1 || digits == 0) return INVALID;
+        int seconds = h * 3600 + m * 60 + sec;
+        return seconds > MAX_SECONDS ? INVALID : seconds;
+    }
+
+    // Odwrotność parse(): 90600 -> "25:10:00" (bez zawijania przez północ, jak w GTFS)
+    static String format(int seconds) {
+        // Poza zakresem parse() (np. wynik arytmetyki na czasach) - wolniej, ale bez śmieciowych znaków
+        if (seconds < 0 || seconds >= 100 * 3600) {
+            long abs = Math.abs((long) seconds);
+            return String.format("%s%02d:%02d:%02d", seconds < 0 ? "-" : "", abs / 3600, (abs % 3600) / 60, abs % 60);
+        }
+        int h = seconds / 3600;
+        int m = (seconds % 3600) / 60;
+        int s = seconds % 60;
+        char[] out = new char[8];
+        int p = 0;
+        out[p++] = (char) ('0' + (h / 10) % 10);
+        out[p++] = (char) ('0' + h % 10);
+        out[p++] = ':';
+        out[p++] = (char) ('0' + m / 10);
+        out[p++] = (char) ('0' + m % 10);
+        out[p++] = ':';
+        out[p++] = (char) ('0' + s / 10);
+        out[p] = (char) ('0' + s % 10);
+        return new String(out);
+    }
+}
@@ -1,13 +1,19 @@
 package org.example;
 
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Result;
 import org.neo4j.graphdb.Transaction;
+import org.neo4j.logging.Log;
 import org.neo4j.procedure.Context;
 import org.neo4j.procedure.Mode;
+import org.neo4j.procedure.Name;
 import org.neo4j.procedure.Procedure;
 
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.function.LongPredicate;
 import java.util.stream.Stream;
 
 public class LocationProcedures {
@@ -15,6 +21,12 @@ public class LocationProcedures {
     @Context
     public Transaction tx;
 
+    @Context
+    public Log log;
+
+    @Context
+    public GraphDatabaseService db;
+
     // Klasa wyjściowa dla procedury
     public static class GeoResult {
         public Double latitude;
@@ -26,6 +38,19 @@ public class LocationProcedures {
         }
     }
 
+    // Wynik wyszukiwania najbliższych węzłów (distance w metrach)
+    public static class NearbyNode {
+        public Node node;
+        public String name;
+        public double distance;
+
+        public NearbyNode(Node node, String name, double distance) {
+            this.node = node;
+            this.name = name;
+            this.distance = distance;
+        }
+    }
+
     // Używam Mode.READ, ponieważ tylko czytamy dane o przystankach i obliczamy wynik.
     // Nie zapisujemy nic do bazy w tym momencie.
     @Procedure(name = "custom.getRandomLocation", mode = Mode.READ)
@@ -63,4 +88,54 @@ public class LocationProcedures {
         // Jeśli nie znaleziono przystanków (pusta baza), zwracamy pusty strumień
         return Stream.empty();
     }
-}
\ No newline at end of file
+
+    // k najbliższych przystanków - zamiast MATCH (s:Stop) ... ORDER BY point.distance(...) LIMIT k
+    @Procedure(name = "custom.nearestStops", mode = Mode.READ)
+    public Stream<NearbyNode> nearestStops(
+            @Name("latitude") Double latitude,
+            @Name("longitude") Double longitude,
+            @Name(value = "k", defaultValue = "1") Long k
+    ) {
+        return nearestPlaces("Stop", latitude, longitude, k, null);
+    }
+
+    // k najbliższych węzłów dowolnej etykiety (np. Jadlodalnia), opcjonalnie z filtrem {cuisine: 'polish'}
+    @Procedure(name = "custom.nearestPlaces", mode = Mode.READ)
+    public Stream<NearbyNode> nearestPlaces(
+            @Name("label") String label,
+            @Name("latitude") Double latitude,
+            @Name("longitude") Double longitude,
+            @Name(value = "k", defaultValue = "1") Long k,
+            @Name(value = "filter", defaultValue = "{}") Map<String, Object> filter
+    ) {
+        if (label == null || latitude == null || longitude == null) return Stream.empty();
+
+        // 1. Indeks siatki dla etykiety (budowany przy pierwszym użyciu)
+        SpatialIndex index = SpatialIndex.forLabel(db, tx, label);
+
+        // 2. Filtr sprawdzamy na węzłach kandydatów, dopiero gdy są dość blisko
+        LongPredicate accept = filter == null || filter.isEmpty() ? null : id -> matches(tx.getNodeById(id), filter);
+        int limit = k == null ? 1 : (int) Math.max(0, Math.min(k, Integer.MAX_VALUE));
+        List<SpatialIndex.Hit> hits = index.nearest(latitude, longitude, limit, accept);
+
+        // 3. Zwracamy węzły z nazwą i odległością
+        return hits.stream().map(hit -> {
+            Node node = tx.getNodeById(index.nodeIds[hit.point]);
+            Object name = node.getProperty("name", node.getProperty("stop_name", null));
+            return new NearbyNode(node, name == null ? null : name.toString(), hit.distance);
+        });
+    }
+
+    private static boolean matches(Node node, Map<String, Object> filter) {
+        for (Map.Entry<String, Object> entry : filter.entrySet()) {
+            Object actual = node.getProperty(entry.getKey(), null);
+            Object expected = entry.getValue();
+            if (actual instanceof Number && expected instanceof Number) {
+                if (((Number) actual).doubleValue() != ((Number) expected).doubleValue()) return false;
+            } else if (actual == null || !actual.equals(expected)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,286 @@
+package org.example;
+
+import java.util.*;
+
+/**
+ * Wielokryterialny RAPTOR (McRAPTOR): zamiast jednego czasu na przystanek trzyma "worek" Pareto
+ * etykiet (przyjazd, liczba przesiadek, sekundy spaceru WALK).
+ *
+ * Etykieta jest odrzucana, gdy dominuje ją etykieta z worka przystanku albo z worka celu
+ * (dalsza jazda może tylko pogorszyć każde z kryteriów). Rozmiar worków jest ograniczony -
+ * po przepełnieniu wypada etykieta z najpóźniejszym przyjazdem, co trzyma czas odpowiedzi w ryzach.
+ */
+final class McRaptorRouter {
+
+    static final String WALK_LINE = "Spacer (Przesiadka)";
+
+    private static final int DAY_SECONDS = TripPatterns.DAY_SECONDS;
+
+    private final TripPatterns patterns;
+    private final TimetableSnapshot timetable;
+    private final BitSet tripsToday;
+    private final BitSet tripsTomorrow;
+    private final int maxBagSize;
+
+    McRaptorRouter(TripPatterns patterns, BitSet tripsToday, BitSet tripsTomorrow, int maxBagSize) {
+        this.patterns = patterns;
+        this.timetable = patterns.timetable;
+        this.tripsToday = tripsToday;
+        this.tripsTomorrow = tripsTomorrow;
+        this.maxBagSize = Math.max(1, maxBagSize);
+    }
+
+    // Etykieta = stan podróży na przystanku; pattern < 0 oznacza dojście pieszo (albo start)
+    private static final class Label {
+        final int stop;
+        final int arrival;
+        final int transfers;
+        final int walk;
+        final Label parent;
+        final int pattern, trip, offset, boardPos, alightPos;
+        boolean pruned;
+
+        Label(int stop, int arrival, int transfers, int walk, Label parent,
+              int pattern, int trip, int offset, int boardPos, int alightPos) {
+            this.stop = stop;
+            this.arrival = arrival;
+            this.transfers = transfers;
+            this.walk = walk;
+            this.parent = parent;
+            this.pattern = pattern;
+            this.trip = trip;
+            this.offset = offset;
+            this.boardPos = boardPos;
+            this.alightPos = alightPos;
+        }
+
+        static Label walk(int stop, int arrival, int transfers, int walk, Label parent) {
+            return new Label(stop, arrival, transfers, walk, parent, -1, -1, 0, -1, -1);
+        }
+    }
+
+    // Trip, którym "jedziemy" w worku trasy, razem z etykietą, z której wsiedliśmy
+    private static final class RideEntry {
+        final Label from;
+        final int trip;
+        final int offset;
+        final int boardPos;
+
+        RideEntry(Label from, int trip, int offset, int boardPos) {
+            this.from = from;
+            this.trip = trip;
+            this.offset = offset;
+            this.boardPos = boardPos;
+        }
+    }
+
+    List<TripPlanner.ParetoLeg> route(int source, int target, int departure, int maxTransfers) {
+        if (source == target) return Collections.emptyList();
+
+        int stopCount = timetable.stopCount;
+        List<List<Label>> best = bags(stopCount);
+        List<List<Label>> fresh = bags(stopCount);
+        BitSet marked = new BitSet(stopCount);
+
+        // Runda 0: start i ewentualne dojście pieszo z przystanku początkowego
+        Label origin = Label.walk(source, departure, 0, 0, null);
+        insert(best, source, origin);
+        addFresh(fresh, marked, origin);
+        relaxWalks(best, fresh, marked, Collections.singletonList(origin), target);
+
+        int[] queuedFrom = new int[patterns.patternCount];
+        Arrays.fill(queuedFrom, -1);
+        int[] queue = new int[patterns.patternCount];
+
+        for (int round = 1; round <= maxTransfers + 1 && !marked.isEmpty(); round++) {
+            List<List<Label>> prev = fresh;
+            List<List<Label>> cur = bags(stopCount);
+            fresh = cur;
+
+            // 1. Wzorce przez przystanki poprawione w poprzedniej rundzie
+            int queued = 0;
+            for (int s = marked.nextSetBit(0); s >= 0; s = marked.nextSetBit(s + 1)) {
+                for (int slot = patterns.stopPatternOffsets[s]; slot < patterns.stopPatternOffsets[s + 1]; slot++) {
+                    int p = patterns.stopPatterns[slot];
+                    int pos = patterns.stopPatternPositions[slot];
+                    if (queuedFrom[p] < 0) {
+                        queue[queued++] = p;
+                        queuedFrom[p] = pos;
+                    } else if (pos < queuedFrom[p]) {
+                        queuedFrom[p] = pos;
+                    }
+                }
+            }
+            marked.clear();
+
+            // 2. Przejazd wzorcem z workiem tripów (wcześniejszy trip + mniej spaceru = dominacja)
+            List<Label> ridden = new ArrayList<>();
+            List<RideEntry> rideBag = new ArrayList<>();
+            for (int q = 0; q < queued; q++) {
+                int p = queue[q];
+                int len = patterns.stopsInPattern(p);
+                rideBag.clear();
+
+                for (int i = queuedFrom[p]; i < len; i++) {
+                    int s = patterns.stopAt(p, i);
+
+                    for (RideEntry ride : rideBag) {
+                        int arr = patterns.arr(p, ride.trip, i) + ride.offset;
+                        int walk = ride.from.walk;
+                        int transfers = round - 1;
+                        if (isDominated(best.get(target), arr, transfers, walk) || isDominated(best.get(s), arr, transfers, walk)) {
+                            continue;
+                        }
+                        Label label = new Label(s, arr, transfers, walk, ride.from, p, ride.trip, ride.offset, ride.boardPos, i);
+                        if (insert(best, s, label)) {
+                            addFresh(cur, marked, label);
+                            ridden.add(label);
+                        }
+                    }
+
+                    List<Label> waiting = prev.get(s);
+                    if (waiting == null) continue;
+                    for (Label from : waiting) {
+                        if (from.pruned) continue;
+                        int found = patterns.earliestTrip(p, i, from.arrival, tripsToday, tripsTomorrow);
+                        if (found < 0) continue;
+                        addRide(rideBag, new RideEntry(from, found >>> 1, (found & 1) == 1 ? DAY_SECONDS : 0, i), p, i);
+                    }
+                }
+                queuedFrom[p] = -1;
+            }
+
+            // 3. Przesiadki piesze z przystanków, do których właśnie dojechaliśmy
+            relaxWalks(best, cur, marked, ridden, target);
+        }
+
+        // 4. Worek celu to zbiór niezdominowanych podróży
+        List<Label> results = new ArrayList<>();
+        if (best.get(target) != null) {
+            for (Label label : best.get(target)) {
+                if (!label.pruned) results.add(label);
+            }
+        }
+        results.sort(Comparator.comparingInt((Label l) -> l.arrival).thenComparingInt(l -> l.transfers).thenComparingInt(l -> l.walk));
+
+        List<TripPlanner.ParetoLeg> legs = new ArrayList<>();
+        for (int j = 0; j < results.size(); j++) {
+            reconstruct(results.get(j), j, legs);
+        }
+        return legs;
+    }
+
+    // Worki etykiet po przystankach; null = pusty worek (tworzony przy pierwszym wstawieniu)
+    private static List<List<Label>> bags(int stopCount) {
+        return new ArrayList<>(Collections.nCopies(stopCount, null));
+    }
+
+    private void relaxWalks(List<List<Label>> best, List<List<Label>> cur, BitSet marked, List<Label> from, int target) {
+        for (Label label : from) {
+            if (label.pruned) continue;
+            int s = label.stop;
+            for (int w = timetable.walkOffsets[s]; w < timetable.walkOffsets[s + 1]; w++) {
+                int t = timetable.walkTarget[w];
+                int arr = label.arrival + timetable.walkSeconds[w];
+                int walk = label.walk + timetable.walkSeconds[w];
+                if (isDominated(best.get(target), arr, label.transfers, walk) || isDominated(best.get(t), arr, label.transfers, walk)) {
+                    continue;
+                }
+                Label walked = Label.walk(t, arr, label.transfers, walk, label);
+                if (insert(best, t, walked)) addFresh(cur, marked, walked);
+            }
+        }
+    }
+
+    private void addRide(List<RideEntry> rideBag, RideEntry candidate, int p, int pos) {
+        int candDep = patterns.dep(p, candidate.trip, pos) + candidate.offset;
+        for (RideEntry ride : rideBag) {
+            int dep = patterns.dep(p, ride.trip, pos) + ride.offset;
+            if (dep <= candDep && ride.from.walk <= candidate.from.walk && ride.from.transfers <= candidate.from.transfers) {
+                return;
+            }
+        }
+        rideBag.removeIf(ride -> candDep <= patterns.dep(p, ride.trip, pos) + ride.offset
+                && candidate.from.walk <= ride.from.walk && candidate.from.transfers <= ride.from.transfers);
+        if (rideBag.size() < maxBagSize) rideBag.add(candidate);
+    }
+
+    private static boolean isDominated(List<Label> bag, int arrival, int transfers, int walk) {
+        if (bag == null) return false;
+        for (Label l : bag) {
+            if (l.arrival <= arrival && l.transfers <= transfers && l.walk <= walk) return true;
+        }
+        return false;
+    }
+
+    // Wstawia etykietę do worka Pareto przystanku; przy przepełnieniu usuwa najpóźniejszą
+    private boolean insert(List<List<Label>> best, int stop, Label label) {
+        List<Label> bag = best.get(stop);
+        if (bag == null) {
+            bag = new ArrayList<>(4);
+            best.set(stop, bag);
+        }
+        if (isDominated(bag, label.arrival, label.transfers, label.walk)) return false;
+
+        Iterator<Label> it = bag.iterator();
+        while (it.hasNext()) {
+            Label l = it.next();
+            if (label.arrival <= l.arrival && label.transfers <= l.transfers && label.walk <= l.walk) {
+                l.pruned = true;
+                it.remove();
+            }
+        }
+
+        if (bag.size() >= maxBagSize) {
+            Label worst = bag.get(0);
+            for (Label l : bag) {
+                if (l.arrival > worst.arrival || (l.arrival == worst.arrival && l.walk > worst.walk)) worst = l;
+            }
+            if (label.arrival >= worst.arrival) return false;
+            worst.pruned = true;
+            bag.remove(worst);
+        }
+        bag.add(label);
+        return true;
+    }
+
+    private static void addFresh(List<List<Label>> fresh, BitSet marked, Label label) {
+        List<Label> list = fresh.get(label.stop);
+        if (list == null) {
+            list = new ArrayList<>(2);
+            fresh.set(label.stop, list);
+        }
+        list.add(label);
+        marked.set(label.stop);
+    }
+
+    private void reconstruct(Label last, int journey, List<TripPlanner.ParetoLeg> out) {
+        LinkedList<TripPlanner.ParetoLeg> legs = new LinkedList<>();
+        for (Label label = last; label.parent != null; label = label.parent) {
+            if (label.pattern >= 0) {
+                int p = label.pattern;
+                int boardStop = patterns.stopAt(p, label.boardPos);
+                legs.addFirst(new TripPlanner.ParetoLeg(journey, last.transfers, last.walk,
+                        timetable.tripLabel(patterns.tripAt(p, label.trip)),
+                        timetable.stopNames[boardStop],
+                        GtfsTime.format(patterns.dep(p, label.trip, label.boardPos)),
+                        timetable.stopNames[label.stop],
+                        GtfsTime.format(patterns.arr(p, label.trip, label.alightPos)),
+                        label.alightPos - label.boardPos,
+                        label.offset > 0));
+            } else {
+                int dep = label.parent.arrival;
+                boolean nextDay = dep >= DAY_SECONDS;
+                legs.addFirst(new TripPlanner.ParetoLeg(journey, last.transfers, last.walk,
+                        WALK_LINE,
+                        timetable.stopNames[label.parent.stop],
+                        GtfsTime.format(nextDay ? dep - DAY_SECONDS : dep),
+                        timetable.stopNames[label.stop],
+                        GtfsTime.format(nextDay ? label.arrival - DAY_SECONDS : label.arrival),
+                        1,
+                        nextDay));
+            }
+        }
+        out.addAll(legs);
+    }
+}
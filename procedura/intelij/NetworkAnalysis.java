@@ -0,0 +1,215 @@
+package org.example;
+
+import org.neo4j.graphdb.*;
+import org.neo4j.logging.Log;
+import org.neo4j.procedure.Context;
+import org.neo4j.procedure.Mode;
+import org.neo4j.procedure.Name;
+import org.neo4j.procedure.Procedure;
+
+import java.util.*;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Analiza struktury sieci (badanie/: wyspy, węzły przegubowe, mosty, huby) bez projekcji GDS.
+ * Graf Stop - DRIVE bierzemy ze snapshotu rozkładu (StopNetwork), więc nie trzeba go tworzyć
+ * ani usuwać przed każdym zapytaniem.
+ */
+public class NetworkAnalysis {
+
+    @Context
+    public Transaction tx;
+
+    @Context
+    public Log log;
+
+    @Context
+    public GraphDatabaseService db;
+
+    private static final int EXAMPLES = 3;
+
+    // Spójna składowa (wyspa); componentId = pozycja w rankingu po rozmiarze, od 0
+    public static class ComponentRow {
+        public long componentId;
+        public long size;
+        public List<String> examples;
+
+        public ComponentRow(long componentId, long size, List<String> examples) {
+            this.componentId = componentId;
+            this.size = size;
+            this.examples = examples;
+        }
+    }
+
+    // Punkt artykulacji: po jego usunięciu separatedStops przystanków traci połączenie z resztą składowej
+    public static class ArticulationPoint {
+        public Node stop;
+        public String stopName;
+        public String stopId;
+        public long separatedStops;
+        public long degree;
+
+        public ArticulationPoint(Node stop, String stopName, String stopId, long separatedStops, long degree) {
+            this.stop = stop;
+            this.stopName = stopName;
+            this.stopId = stopId;
+            this.separatedStops = separatedStops;
+            this.degree = degree;
+        }
+    }
+
+    // Most: jedyne połączenie między dwiema częściami sieci (trips = kursy DRIVE w obu kierunkach)
+    public static class Bridge {
+        public Node stopA;
+        public String stopNameA;
+        public Node stopB;
+        public String stopNameB;
+        public long trips;
+        public long separatedStops;     // Przystanki po mniejszej stronie mostu
+
+        public Bridge(Node stopA, String stopNameA, Node stopB, String stopNameB, long trips, long separatedStops) {
+            this.stopA = stopA;
+            this.stopNameA = stopNameA;
+            this.stopB = stopB;
+            this.stopNameB = stopNameB;
+            this.trips = trips;
+            this.separatedStops = separatedStops;
+        }
+    }
+
+    // Hub: stopnie (różni sąsiedzi) i częstotliwość (kursy DRIVE z / do przystanku)
+    public static class Hub {
+        public Node stop;
+        public String stopName;
+        public String stopId;
+        public long neighbors;
+        public long outDegree;
+        public long inDegree;
+        public long departures;
+        public long arrivals;
+
+        public Hub(Node stop, String stopName, String stopId, long neighbors, long outDegree, long inDegree,
+                   long departures, long arrivals) {
+            this.stop = stop;
+            this.stopName = stopName;
+            this.stopId = stopId;
+            this.neighbors = neighbors;
+            this.outDegree = outDegree;
+            this.inDegree = inDegree;
+            this.departures = departures;
+            this.arrivals = arrivals;
+        }
+    }
+
+    /**
+     * Spójne składowe sieci (jak gds.wcc na nieskierowanym DRIVE), od największej. Przystanki bez
+     * żadnego połączenia są osobnymi składowymi rozmiaru 1.
+     */
+    @Procedure(name = "custom.networkComponents", mode = Mode.READ)
+    public Stream<ComponentRow> networkComponents() {
+        long started = System.currentTimeMillis();
+        TimetableSnapshot timetable = TimetableRegistry.get(db, tx);
+        int[] component = StopNetwork.of(timetable).components();
+
+        // Rozmiary i przykładowe nazwy (pierwsze przystanki składowej w kolejności snapshotu)
+        int n = timetable.stopCount;
+        int[] size = new int[n];
+        for (int s = 0; s < n; s++) size[component[s]]++;
+        Map<Integer, List<String>> examples = new HashMap<>();
+        for (int s = 0; s < n; s++) {
+            List<String> names = examples.computeIfAbsent(component[s], c -> new ArrayList<>(EXAMPLES));
+            if (names.size() < EXAMPLES) names.add(timetable.stopNames[s]);
+        }
+        int[] roots = IntStream.range(0, n).filter(s -> component[s] == s)
+                .boxed().sorted((a, b) -> Integer.compare(size[b], size[a]))
+                .mapToInt(Integer::intValue).toArray();
+        log.info("TripPlanner: " + roots.length + " składowych sieci w " + (System.currentTimeMillis() - started) + " ms.");
+
+        return IntStream.range(0, roots.length)
+                .mapToObj(i -> new ComponentRow(i, size[roots[i]], examples.get(roots[i])));
+    }
+
+    /**
+     * Punkty artykulacji (jak gds.articulationPoints), uszeregowane po liczbie przystanków,
+     * które tracą połączenie z resztą sieci po usunięciu danego przystanku.
+     */
+    @Procedure(name = "custom.articulationPoints", mode = Mode.READ)
+    public Stream<ArticulationPoint> articulationPoints(@Name(value = "limit", defaultValue = "20") Long limit) {
+        long started = System.currentTimeMillis();
+        TimetableSnapshot timetable = TimetableRegistry.get(db, tx);
+        StopNetwork network = StopNetwork.of(timetable);
+        StopNetwork.CutStructure cuts = network.cuts(network.components());
+        log.info("TripPlanner: Punkty artykulacji i mosty policzone w " + (System.currentTimeMillis() - started) + " ms.");
+
+        return IntStream.range(0, network.stopCount)
+                .filter(s -> cuts.separated[s] > 0)
+                .boxed()
+                .sorted((a, b) -> Integer.compare(cuts.separated[b], cuts.separated[a]))
+                .limit(limit == null || limit < 0 ? Long.MAX_VALUE : limit)
+                .map(s -> {
+                    Node stop = stopNode(timetable, s);
+                    return new ArticulationPoint(stop, timetable.stopNames[s], stopId(stop),
+                            cuts.separated[s], network.degree(s));
+                });
+    }
+
+    /**
+     * Mosty sieci: połączenia, bez których sieć rozpada się na części (w badanie/mosty.txt przybliżane
+     * granicami społeczności Louvaina). Od mostów odcinających najwięcej przystanków.
+     */
+    @Procedure(name = "custom.networkBridges", mode = Mode.READ)
+    public Stream<Bridge> networkBridges(@Name(value = "limit", defaultValue = "20") Long limit) {
+        TimetableSnapshot timetable = TimetableRegistry.get(db, tx);
+        StopNetwork network = StopNetwork.of(timetable);
+        StopNetwork.CutStructure cuts = network.cuts(network.components());
+
+        return IntStream.range(0, cuts.bridgeEdges.length)
+                .boxed()
+                .sorted(Comparator.<Integer>comparingInt(i -> cuts.bridgeSides[i]).reversed()
+                        .thenComparing(Comparator.<Integer>comparingInt(i -> network.weights[cuts.bridgeEdges[i]]).reversed()))
+                .limit(limit == null || limit < 0 ? Long.MAX_VALUE : limit)
+                .map(i -> {
+                    int a = cuts.bridgeFrom[i], b = network.neighbors[cuts.bridgeEdges[i]];
+                    return new Bridge(stopNode(timetable, a), timetable.stopNames[a], stopNode(timetable, b),
+                            timetable.stopNames[b], network.weights[cuts.bridgeEdges[i]], cuts.bridgeSides[i]);
+                });
+    }
+
+    /**
+     * Ranking hubów. orderBy = "frequency" (domyślnie: kursy odjeżdżające + przyjeżdżające, jak agregacja
+     * COUNT w badanie/huby.txt) albo "degree" (liczba różnych sąsiednich przystanków).
+     */
+    @Procedure(name = "custom.networkHubs", mode = Mode.READ)
+    public Stream<Hub> networkHubs(
+            @Name(value = "limit", defaultValue = "20") Long limit,
+            @Name(value = "orderBy", defaultValue = "frequency") String orderBy
+    ) {
+        TimetableSnapshot timetable = TimetableRegistry.get(db, tx);
+        StopNetwork network = StopNetwork.of(timetable);
+        boolean byDegree = "degree".equalsIgnoreCase(orderBy);
+
+        Comparator<Integer> frequency = Comparator.comparingLong(s -> (long) network.departures[s] + network.arrivals[s]);
+        Comparator<Integer> degree = Comparator.comparingInt(network::degree);
+        Comparator<Integer> order = byDegree ? degree.thenComparing(frequency) : frequency.thenComparing(degree);
+
+        return IntStream.range(0, network.stopCount)
+                .boxed()
+                .sorted(order.reversed())
+                .limit(limit == null || limit < 0 ? Long.MAX_VALUE : limit)
+                .map(s -> {
+                    Node stop = stopNode(timetable, s);
+                    return new Hub(stop, timetable.stopNames[s], stopId(stop), network.degree(s),
+                            network.outDegree[s], network.inDegree[s], network.departures[s], network.arrivals[s]);
+                });
+    }
+
+    private Node stopNode(TimetableSnapshot timetable, int stop) {
+        return tx.getNodeById(timetable.stopNodeIds[stop]);
+    }
+
+    private static String stopId(Node stop) {
+        Object id = stop.getProperty("stop_id", null);
+        return id == null ? null : id.toString();
+    }
+}
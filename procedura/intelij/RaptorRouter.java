@@ -0,0 +1,260 @@
+package org.example;
+
+import java.util.*;
+
+/**
+ * Silnik RAPTOR (Round-bAsed Public Transit Optimized Router) nad modelem TripPatterns.
+ *
+ * Runda k wyznacza najwcześniejsze przyjazdy korzystając z co najwyżej k pojazdów,
+ * więc koszt zależy od liczby przesiadek, a nie od liczby segmentów DRIVE.
+ * Tripy aktywne "jutro" traktujemy jak przesunięte o dobę (jak w Dijkstrze).
+ */
+final class RaptorRouter {
+
+    private static final int INF = Integer.MAX_VALUE;
+    private static final int DAY_SECONDS = TripPatterns.DAY_SECONDS;
+
+    private final TripPatterns patterns;
+    private final TimetableSnapshot timetable;
+    private final BitSet tripsToday;
+    private final BitSet tripsTomorrow;
+
+    RaptorRouter(TripPatterns patterns, BitSet tripsToday, BitSet tripsTomorrow) {
+        this.patterns = patterns;
+        this.timetable = patterns.timetable;
+        this.tripsToday = tripsToday;
+        this.tripsTomorrow = tripsTomorrow;
+    }
+
+    // Etapy podróży jednej rundy (wypełniane tylko dla przystanków poprawionych w tej rundzie)
+    private static final class RoundLegs {
+        final int[] pattern;
+        final int[] trip;        // indeks tripu wewnątrz wzorca
+        final int[] dayOffset;   // 0 albo DAY_SECONDS
+        final int[] boardPos;
+        final int[] alightPos;
+
+        RoundLegs(int stopCount) {
+            pattern = new int[stopCount];
+            trip = new int[stopCount];
+            dayOffset = new int[stopCount];
+            boardPos = new int[stopCount];
+            alightPos = new int[stopCount];
+            Arrays.fill(pattern, -1);
+        }
+    }
+
+    // Stan przeszukiwania (tablice per runda przeżywają kolejne odjazdy w zapytaniu profilowym)
+    private int[][] arrival;
+    private RoundLegs[] legs;
+    private int[] best;
+    private BitSet marked;
+    private int[] queuedFrom;
+    private int[] queue;
+    private int boardingSource = -1; // Start zapytania profilowego: wsiadamy tam najpóźniej o latestBoarding
+    private int latestBoarding;
+
+    private void init(int maxRounds) {
+        int stopCount = timetable.stopCount;
+        arrival = new int[maxRounds + 1][];
+        legs = new RoundLegs[maxRounds + 1];
+        for (int round = 0; round <= maxRounds; round++) {
+            arrival[round] = new int[stopCount];
+            Arrays.fill(arrival[round], INF);
+            legs[round] = new RoundLegs(stopCount);
+        }
+        best = new int[stopCount];
+        Arrays.fill(best, INF);
+        marked = new BitSet(stopCount);
+        queuedFrom = new int[patterns.patternCount];
+        Arrays.fill(queuedFrom, -1);
+        queue = new int[patterns.patternCount];
+    }
+
+    List<TripPlanner.JourneyLeg> route(int source, int target, int departure, int maxTransfers) {
+        if (source == target) return Collections.emptyList();
+        int maxRounds = maxTransfers + 1;
+        init(maxRounds);
+        boardingSource = -1;
+
+        arrival[0][source] = departure;
+        best[source] = departure;
+        marked.set(source);
+        runRounds(target, maxRounds);
+
+        int bestRound = bestRound(target, maxRounds);
+        if (bestRound < 0) return Collections.emptyList();
+        return reconstruct(source, target, bestRound);
+    }
+
+    /**
+     * Zapytanie profilowe (rRAPTOR): wszystkie optymalne pary (odjazd, przyjazd) dla odjazdów
+     * ze startu w oknie [fromTime, toTime]. Odjazdy przetwarzamy od najpóźniejszego, nie czyszcząc
+     * etykiet - wynik późniejszego odjazdu jest górnym ograniczeniem dla wcześniejszego,
+     * więc kolejne iteracje dotykają tylko tej części sieci, którą faktycznie poprawiają.
+     * Na starcie wsiadamy najpóźniej o toTime - inaczej podróż z kursem spoza okna trafiłaby do wyniku
+     * i (przez niekasowane etykiety) przesłoniła równie szybką podróż z okna.
+     */
+    List<List<TripPlanner.JourneyLeg>> profile(int source, int target, int fromTime, int toTime, int maxTransfers) {
+        if (source == target) return Collections.emptyList();
+        int maxRounds = maxTransfers + 1;
+        init(maxRounds);
+        boardingSource = source;
+        latestBoarding = toTime;
+
+        int[] departures = sourceDepartures(source, fromTime, toTime);
+        LinkedList<List<TripPlanner.JourneyLeg>> journeys = new LinkedList<>();
+        int lastArrival = INF;
+
+        for (int d = departures.length - 1; d >= 0; d--) {
+            int departure = departures[d];
+            arrival[0][source] = departure;
+            best[source] = departure;
+            marked.clear();
+            marked.set(source);
+            runRounds(target, maxRounds);
+
+            int bestRound = bestRound(target, maxRounds);
+            if (bestRound < 0 || arrival[bestRound][target] >= lastArrival) continue;
+            lastArrival = arrival[bestRound][target];
+            journeys.addFirst(reconstruct(source, target, bestRound));
+        }
+        return journeys;
+    }
+
+    // Rosnąco posortowane, unikalne odjazdy aktywnych tripów z przystanku startowego w oknie
+    private int[] sourceDepartures(int source, int fromTime, int toTime) {
+        TreeSet<Integer> times = new TreeSet<>();
+        for (int slot = patterns.stopPatternOffsets[source]; slot < patterns.stopPatternOffsets[source + 1]; slot++) {
+            int p = patterns.stopPatterns[slot];
+            int pos = patterns.stopPatternPositions[slot];
+            if (pos == patterns.stopsInPattern(p) - 1) continue;
+            for (int k = 0; k < patterns.tripsInPattern(p); k++) {
+                int trip = patterns.tripAt(p, k);
+                int dep = patterns.dep(p, k, pos);
+                if (tripsToday.get(trip) && dep >= fromTime && dep <= toTime) times.add(dep);
+                if (tripsTomorrow.get(trip) && dep + DAY_SECONDS >= fromTime && dep + DAY_SECONDS <= toTime) {
+                    times.add(dep + DAY_SECONDS);
+                }
+            }
+        }
+        int[] result = new int[times.size()];
+        int i = 0;
+        for (int t : times) result[i++] = t;
+        return result;
+    }
+
+    // Najwcześniejszy przyjazd do celu po wszystkich rundach (przy remisie - mniej przesiadek)
+    private int bestRound(int target, int maxRounds) {
+        int bestRound = -1;
+        int bestArrival = INF;
+        for (int round = 1; round <= maxRounds; round++) {
+            if (arrival[round][target] < bestArrival) {
+                bestArrival = arrival[round][target];
+                bestRound = round;
+            }
+        }
+        return bestRound;
+    }
+
+    private void runRounds(int target, int maxRounds) {
+        for (int round = 1; round <= maxRounds && !marked.isEmpty(); round++) {
+            int[] prev = arrival[round - 1];
+            int[] cur = arrival[round];
+            RoundLegs roundLegs = legs[round];
+
+            // 1. Zbieramy wzorce przejeżdżające przez oznaczone przystanki (od najwcześniejszej pozycji)
+            //    i przenosimy do tej rundy ich poprawione czasy z rundy poprzedniej
+            int queued = 0;
+            for (int s = marked.nextSetBit(0); s >= 0; s = marked.nextSetBit(s + 1)) {
+                if (prev[s] < cur[s]) {
+                    cur[s] = prev[s];
+                    roundLegs.pattern[s] = -1;
+                }
+                for (int slot = patterns.stopPatternOffsets[s]; slot < patterns.stopPatternOffsets[s + 1]; slot++) {
+                    int p = patterns.stopPatterns[slot];
+                    int pos = patterns.stopPatternPositions[slot];
+                    if (queuedFrom[p] < 0) {
+                        queue[queued++] = p;
+                        queuedFrom[p] = pos;
+                    } else if (pos < queuedFrom[p]) {
+                        queuedFrom[p] = pos;
+                    }
+                }
+            }
+            marked.clear();
+
+            // 2. Przejazd każdym wzorcem: jedziemy "bieżącym" tripem i łapiemy wcześniejszy, jeśli się da
+            for (int q = 0; q < queued; q++) {
+                int p = queue[q];
+                int len = patterns.stopsInPattern(p);
+                int tripK = -1, offset = 0, boardPos = -1;
+
+                for (int i = queuedFrom[p]; i < len; i++) {
+                    int s = patterns.stopAt(p, i);
+
+                    if (tripK >= 0) {
+                        int arr = patterns.arr(p, tripK, i) + offset;
+                        if (arr < best[s] && arr < best[target]) {
+                            cur[s] = arr;
+                            best[s] = arr;
+                            roundLegs.pattern[s] = p;
+                            roundLegs.trip[s] = tripK;
+                            roundLegs.dayOffset[s] = offset;
+                            roundLegs.boardPos[s] = boardPos;
+                            roundLegs.alightPos[s] = i;
+                            marked.set(s);
+                        }
+                    }
+
+                    int ready = prev[s];
+                    if (ready != INF && (tripK < 0 || ready <= patterns.dep(p, tripK, i) + offset)) {
+                        int found = patterns.earliestTrip(p, i, ready, tripsToday, tripsTomorrow);
+                        if (found >= 0) {
+                            int foundK = found >>> 1;
+                            int foundOffset = (found & 1) == 1 ? DAY_SECONDS : 0;
+                            int foundDep = patterns.dep(p, foundK, i) + foundOffset;
+                            if (s == boardingSource && foundDep > latestBoarding) continue;
+                            if (tripK < 0 || foundDep < patterns.dep(p, tripK, i) + offset) {
+                                tripK = foundK;
+                                offset = foundOffset;
+                                boardPos = i;
+                            }
+                        }
+                    }
+                }
+                queuedFrom[p] = -1;
+            }
+        }
+    }
+
+    private List<TripPlanner.JourneyLeg> reconstruct(int source, int target, int round) {
+        LinkedList<TripPlanner.JourneyLeg> journey = new LinkedList<>();
+        int s = target;
+        while (s != source) {
+            while (round > 0 && legs[round].pattern[s] < 0) round--;
+            if (round == 0) break;
+
+            RoundLegs l = legs[round];
+            int p = l.pattern[s];
+            int k = l.trip[s];
+            int board = l.boardPos[s];
+            int alight = l.alightPos[s];
+            int boardStop = patterns.stopAt(p, board);
+
+            journey.addFirst(new TripPlanner.JourneyLeg(
+                    timetable.tripLabel(patterns.tripAt(p, k)),
+                    timetable.stopNames[boardStop],
+                    GtfsTime.format(patterns.dep(p, k, board)),
+                    timetable.stopNames[s],
+                    GtfsTime.format(patterns.arr(p, k, alight)),
+                    alight - board,
+                    l.dayOffset[s] > 0
+            ));
+
+            s = boardStop;
+            round--;
+        }
+        return journey;
+    }
+}
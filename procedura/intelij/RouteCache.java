@@ -0,0 +1,210 @@
+package org.example;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Ograniczony cache wyników custom.findFastestRoute (jeden na bazę danych).
+ *
+ * Klucz to znormalizowane zapytanie: indeksy przystanków ze snapshotu, dzień tygodnia, minuta odjazdu
+ * i tryb (Dijkstra / A*). Wpis pamięta, od jakiej sekundy był liczony i kiedy trzeba najpóźniej wyjść
+ * z przystanku startowego - przyjazd jest ten sam dla każdego odjazdu z tego przedziału, więc zapytania
+ * z tej samej minuty trafiają w cache. Zmiana wersji snapshotu czyści cały cache; zmiana kalendarza
+ * (nowe BitSety aktywnych tripów) albo opóźnień unieważnia pojedyncze wpisy przy odczycie.
+ *
+ * Cache jest podzielony na segmenty LRU z własną blokadą, żeby równoległe zapytania się nie blokowały.
+ */
+final class RouteCache {
+
+    static final int CAPACITY = 10_000;
+    private static final int SEGMENTS = 16;
+
+    private static final Map<String, RouteCache> CACHES = new ConcurrentHashMap<>();
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    private volatile long timetableVersion = -1;
+
+    private RouteCache() {
+        for (int i = 0; i < SEGMENTS; i++) segments[i] = new Segment(CAPACITY / SEGMENTS);
+    }
+
+    static RouteCache forDatabase(String databaseName) {
+        return CACHES.computeIfAbsent(databaseName, name -> new RouteCache());
+    }
+
+    static final class Key {
+        final int source;
+        final int target;
+        final int day;
+        final int minute;
+        final boolean aStar;
+        private final int hash;
+
+        Key(int source, int target, int day, int departure, boolean aStar) {
+            this.source = source;
+            this.target = target;
+            this.day = day;
+            this.minute = departure / 60;
+            this.aStar = aStar;
+            this.hash = Objects.hash(source, target, day, minute, aStar);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return source == k.source && target == k.target && day == k.day && minute == k.minute && aStar == k.aStar;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Wynik ważny dla odjazdów z [from, leave]: leave to odjazd pierwszego kursu trasy
+     * (Integer.MAX_VALUE, gdy cel jest nieosiągalny - później też nie będzie).
+     */
+    static final class Entry {
+        final int from;
+        final int leave;
+        final BitSet tripsToday;
+        final BitSet tripsTomorrow;
+        final long delayVersion;
+        final long validUntil;
+        final List<TripPlanner.JourneyLeg> legs;
+
+        Entry(int from, int leave, BitSet tripsToday, BitSet tripsTomorrow, DelayOverlay.View delays,
+              List<TripPlanner.JourneyLeg> legs) {
+            this.from = from;
+            this.leave = leave;
+            this.tripsToday = tripsToday;
+            this.tripsTomorrow = tripsTomorrow;
+            this.delayVersion = delays == null ? -1 : delays.version;
+            this.validUntil = delays == null ? Long.MAX_VALUE : delays.validUntil;
+            this.legs = Collections.unmodifiableList(legs);
+        }
+
+        boolean answers(int departure, BitSet today, BitSet tomorrow, DelayOverlay.View delays, long now) {
+            return from <= departure && departure <= leave
+                    && tripsToday == today && tripsTomorrow == tomorrow
+                    && delayVersion == (delays == null ? -1 : delays.version) && now < validUntil;
+        }
+    }
+
+    // Trasa z pamięci albo null (brak, inna wersja danych albo odjazd poza przedziałem wpisu)
+    List<TripPlanner.JourneyLeg> get(TimetableSnapshot timetable, Key key, int departure,
+                                     BitSet today, BitSet tomorrow, DelayOverlay.View delays) {
+        Entry entry = current(timetable) ? segment(key).get(key) : null;
+        if (entry != null && entry.answers(departure, today, tomorrow, delays, System.currentTimeMillis())) {
+            hits.increment();
+            return entry.legs;
+        }
+        misses.increment();
+        return null;
+    }
+
+    void put(TimetableSnapshot timetable, Key key, Entry entry) {
+        if (current(timetable) && segment(key).put(key, entry)) evictions.increment();
+    }
+
+    // Moment wyjścia z przystanku startowego: odjazd pierwszego etapu (w rachubie dnia zapytania)
+    static int leaveTime(List<TripPlanner.JourneyLeg> legs) {
+        if (legs.isEmpty()) return Integer.MAX_VALUE;
+        TripPlanner.JourneyLeg first = legs.get(0);
+        return GtfsTime.parse(first.depTime) + (first.isNextDay ? TripPatterns.DAY_SECONDS : 0);
+    }
+
+    void clear() {
+        for (Segment segment : segments) invalidations.add(segment.clear());
+    }
+
+    int size() {
+        int size = 0;
+        for (Segment segment : segments) size += segment.size();
+        return size;
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    long evictions() {
+        return evictions.sum();
+    }
+
+    long invalidations() {
+        return invalidations.sum();
+    }
+
+    long timetableVersion() {
+        return timetableVersion;
+    }
+
+    // Nowszy snapshot czyści cache; zapytanie liczone jeszcze na starszym nie czyta i nie zapisuje
+    private boolean current(TimetableSnapshot timetable) {
+        long version = timetableVersion;
+        if (version == timetable.version) return true;
+        if (timetable.version < version) return false;
+        synchronized (this) {
+            if (timetableVersion < timetable.version) {
+                clear();
+                timetableVersion = timetable.version;
+            }
+            return timetableVersion == timetable.version;
+        }
+    }
+
+    private Segment segment(Key key) {
+        return segments[(key.hash ^ (key.hash >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    // Segment LRU: LinkedHashMap w porządku dostępu, najstarszy wpis wypada po przekroczeniu pojemności
+    private static final class Segment {
+        private final int capacity;
+        private final LinkedHashMap<Key, Entry> map;
+        private boolean evicted;
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+            this.map = new LinkedHashMap<>(capacity * 4 / 3 + 1, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                    evicted = size() > Segment.this.capacity;
+                    return evicted;
+                }
+            };
+        }
+
+        synchronized Entry get(Key key) {
+            return map.get(key);
+        }
+
+        // true, gdy zapis wyrzucił najstarszy wpis
+        synchronized boolean put(Key key, Entry entry) {
+            evicted = false;
+            map.put(key, entry);
+            return evicted;
+        }
+
+        synchronized int clear() {
+            int removed = map.size();
+            map.clear();
+            return removed;
+        }
+
+        synchronized int size() {
+            return map.size();
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package org.example;
+
+import org.neo4j.logging.Log;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statystyki zapytań o trasy (jedne na bazę danych): histogram czasów odpowiedzi i sumy liczników
+ * wyszukiwania osobno dla każdej procedury i dnia tygodnia. Zapis jest bez blokad (LongAdder,
+ * AtomicLongArray), więc nie spowalnia równoległych zapytań. Zapytania dłuższe niż próg trafiają
+ * do logu Neo4j ze wszystkimi licznikami.
+ */
+final class RoutingStats {
+
+    static final long DEFAULT_SLOW_QUERY_MILLIS = 1000;
+    static final int BUCKETS = 32;          // Kubełek i: czas w [2^i, 2^(i+1)) µs, kubełek 0 także < 1 µs
+
+    private static final Map<String, RoutingStats> STATS = new ConcurrentHashMap<>();
+
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private volatile long slowQueryMillis = DEFAULT_SLOW_QUERY_MILLIS;
+
+    private RoutingStats() {
+    }
+
+    static RoutingStats forDatabase(String databaseName) {
+        return STATS.computeIfAbsent(databaseName, name -> new RoutingStats());
+    }
+
+    /**
+     * Liczniki jednego wywołania. Wywołania wsadowe i macierz sumują tu wiele wyszukiwań
+     * (także z kilku wątków), dlatego dopisywanie jest synchronizowane.
+     */
+    final class Query {
+        final String procedure;
+        final String day;
+        private final long startedNanos = System.nanoTime();
+        private long prefetchNanos;
+        private long reconstructNanos;
+        private long searches;
+        private long settled;
+        private long edgesScanned;
+        private int heapPeak;
+        private boolean cacheHit;
+
+        private Query(String procedure, String day) {
+            this.procedure = procedure;
+            this.day = day;
+        }
+
+        // Czas liczenia aktywnych tripów od prefetchStartedNanos do teraz
+        void prefetched(long prefetchStartedNanos) {
+            long nanos = System.nanoTime() - prefetchStartedNanos;
+            synchronized (this) {
+                prefetchNanos += nanos;
+            }
+        }
+
+        // Czas liczenia aktywnych tripów zmierzony wcześniej (zapytania wsadowe liczą go przed wyszukiwaniem)
+        synchronized void prefetchNanos(long nanos) {
+            prefetchNanos += nanos;
+        }
+
+        synchronized void search(DijkstraRouter router) {
+            searches++;
+            settled += router.settled();
+            edgesScanned += router.edgesScanned();
+            heapPeak = Math.max(heapPeak, router.heapPeak());
+            reconstructNanos += router.reconstructNanos();
+        }
+
+        synchronized void cacheHit() {
+            cacheHit = true;
+        }
+
+        // Zapis do histogramu; wolne zapytanie dodatkowo do logu (detail = parametry zapytania)
+        void finish(Log log, String detail) {
+            long micros = (System.nanoTime() - startedNanos) / 1000;
+            Histogram histogram = histograms.computeIfAbsent(procedure + "|" + day, key -> new Histogram(procedure, day));
+            long threshold = slowQueryMillis;
+            boolean slow = threshold > 0 && micros >= threshold * 1000;
+            synchronized (this) {
+                histogram.record(micros, this, slow);
+                if (slow) {
+                    log.warn("TripPlanner: Wolne zapytanie " + procedure + " (" + detail + ", " + day + "): "
+                            + micros / 1000 + " ms, aktywne tripy " + prefetchNanos / 1_000_000 + " ms, odtworzenie trasy "
+                            + reconstructNanos / 1000 + " µs, wyszukiwań " + searches + ", zdjętych z kopca " + settled
+                            + ", krawędzi " + edgesScanned + ", szczyt kopca " + heapPeak + (cacheHit ? ", z cache" : "") + ".");
+                }
+            }
+        }
+    }
+
+    Query start(String procedure, String dayOfWeek) {
+        return new Query(procedure, dayOfWeek == null ? "?" : dayOfWeek.toLowerCase());
+    }
+
+    long slowQueryMillis() {
+        return slowQueryMillis;
+    }
+
+    // 0 wyłącza log wolnych zapytań
+    void slowQueryMillis(long millis) {
+        slowQueryMillis = Math.max(0, millis);
+    }
+
+    void reset() {
+        histograms.clear();
+    }
+
+    // Histogramy posortowane po procedurze i dniu tygodnia
+    List<Histogram> histograms() {
+        List<Histogram> all = new ArrayList<>(histograms.values());
+        all.sort(Comparator.<Histogram, String>comparing(h -> h.procedure)
+                .thenComparingInt(h -> ActiveTripsCache.dayIndex(h.day)));
+        return all;
+    }
+
+    static final class Histogram {
+        final String procedure;
+        final String day;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalMicros = new LongAdder();
+        private final LongAccumulator maxMicros = new LongAccumulator(Math::max, 0);
+        private final LongAdder cacheHits = new LongAdder();
+        private final LongAdder slowQueries = new LongAdder();
+        private final LongAdder searches = new LongAdder();
+        private final LongAdder settled = new LongAdder();
+        private final LongAdder edgesScanned = new LongAdder();
+        private final LongAccumulator heapPeak = new LongAccumulator(Math::max, 0);
+        private final LongAdder prefetchMicros = new LongAdder();
+        private final LongAdder reconstructMicros = new LongAdder();
+
+        private Histogram(String procedure, String day) {
+            this.procedure = procedure;
+            this.day = day;
+        }
+
+        private void record(long micros, Query query, boolean slow) {
+            buckets.incrementAndGet(bucket(micros));
+            if (slow) slowQueries.increment();
+            count.increment();
+            totalMicros.add(micros);
+            maxMicros.accumulate(micros);
+            if (query.cacheHit) cacheHits.increment();
+            searches.add(query.searches);
+            settled.add(query.settled);
+            edgesScanned.add(query.edgesScanned);
+            heapPeak.accumulate(query.heapPeak);
+            prefetchMicros.add(query.prefetchNanos / 1000);
+            reconstructMicros.add(query.reconstructNanos / 1000);
+        }
+
+        private static int bucket(long micros) {
+            return micros <= 1 ? 0 : Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros));
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        long totalMicros() {
+            return totalMicros.sum();
+        }
+
+        long maxMicros() {
+            return maxMicros.get();
+        }
+
+        long cacheHits() {
+            return cacheHits.sum();
+        }
+
+        long slowQueries() {
+            return slowQueries.sum();
+        }
+
+        long searches() {
+            return searches.sum();
+        }
+
+        long settled() {
+            return settled.sum();
+        }
+
+        long edgesScanned() {
+            return edgesScanned.sum();
+        }
+
+        long heapPeak() {
+            return heapPeak.get();
+        }
+
+        long prefetchMicros() {
+            return prefetchMicros.sum();
+        }
+
+        long reconstructMicros() {
+            return reconstructMicros.sum();
+        }
+
+        List<Long> buckets() {
+            List<Long> counts = new ArrayList<>(BUCKETS);
+            for (int i = 0; i < BUCKETS; i++) counts.add(buckets.get(i));
+            return counts;
+        }
+
+        // Górna granica kubełka (µs), w którym wypada percentyl - dokładność do czynnika 2
+        long percentileMicros(double percentile) {
+            long total = 0;
+            long[] snapshot = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) total += snapshot[i] = buckets.get(i);
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(percentile * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) return Math.min(1L << (i + 1), maxMicros.get());
+            }
+            return maxMicros.get();
+        }
+    }
+}
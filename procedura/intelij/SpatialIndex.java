@@ -0,0 +1,304 @@
+package org.example;
+
+import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.event.LabelEntry;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventListener;
+import org.neo4j.graphdb.event.TransactionEventListenerAdapter;
+import org.neo4j.graphdb.spatial.Point;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongPredicate;
+
+/**
+ * Siatka (grid) w pamięci nad współrzędnymi węzłów jednej etykiety (Stop, Jadlodalnia, ...).
+ *
+ * Punkty są posortowane po komórkach siatki i trzymane w tablicach (CSR jak w TimetableSnapshot):
+ * punkty komórki c to zakres [cellOffsets[c], cellOffsets[c + 1]). Wyszukiwanie k najbliższych
+ * przegląda pierścienie komórek wokół punktu zapytania i kończy się, gdy kolejny pierścień nie może
+ * już zawierać nic bliższego niż k-ty znaleziony punkt.
+ *
+ * Indeks budujemy leniwie przy pierwszym zapytaniu i wyrzucamy z cache po transakcji, która
+ * zmienia węzły tej etykiety albo ich współrzędne.
+ */
+final class SpatialIndex {
+
+    static final double EARTH_RADIUS_METERS = 6_371_000.0;
+    static final double WALK_SPEED_MPS = 1.2;   // Jedna prędkość pieszego dla dojść i krawędzi WALK (custom.generateWalks)
+    private static final double METERS_PER_DEGREE = EARTH_RADIUS_METERS * Math.PI / 180.0;
+    private static final int POINTS_PER_CELL = 4;
+    private static final Set<String> COORDINATE_KEYS =
+            Set.of("location", "latitude", "longitude", "stop_lat", "stop_lon");
+
+    private static final Map<String, SpatialIndex> INDEXES = new ConcurrentHashMap<>();
+
+    final String label;
+    final int size;
+    final long[] nodeIds;
+    final double[] lats;
+    final double[] lons;
+
+    // --- Siatka ---
+    private final double minLat, minLon, cellDegrees;
+    private final int rows, cols;
+    private final int[] cellOffsets;
+    private final double minCellMeters;
+
+    final long buildMillis;
+
+    // Wynik wyszukiwania: pozycja punktu w indeksie i odległość w metrach
+    static final class Hit {
+        final int point;
+        final double distance;
+
+        Hit(int point, double distance) {
+            this.point = point;
+            this.distance = distance;
+        }
+    }
+
+    private SpatialIndex(String label, long[] ids, double[] lat, double[] lon, int n, long started) {
+        this.label = label;
+        this.size = n;
+
+        double loLat = Double.MAX_VALUE, hiLat = -Double.MAX_VALUE, loLon = Double.MAX_VALUE, hiLon = -Double.MAX_VALUE;
+        for (int i = 0; i < n; i++) {
+            loLat = Math.min(loLat, lat[i]);
+            hiLat = Math.max(hiLat, lat[i]);
+            loLon = Math.min(loLon, lon[i]);
+            hiLon = Math.max(hiLon, lon[i]);
+        }
+        if (n == 0) loLat = hiLat = loLon = hiLon = 0;
+
+        // Komórka kwadratowa w stopniach, tak żeby średnio wypadało ~POINTS_PER_CELL punktów
+        double area = Math.max((hiLat - loLat) * (hiLon - loLon), 1e-8);
+        double cell = Math.sqrt(area * POINTS_PER_CELL / Math.max(n, 1));
+        this.cellDegrees = Math.max(cell, 1e-4);
+        this.minLat = loLat;
+        this.minLon = loLon;
+        this.rows = (int) ((hiLat - loLat) / cellDegrees) + 1;
+        this.cols = (int) ((hiLon - loLon) / cellDegrees) + 1;
+
+        // Najkrótszy bok komórki w metrach (szerokość maleje z cos(lat), bierzemy najgorszy przypadek)
+        double maxAbsLat = Math.min(89.0, Math.max(Math.abs(loLat), Math.abs(hiLat)));
+        this.minCellMeters = cellDegrees * METERS_PER_DEGREE * Math.cos(Math.toRadians(maxAbsLat));
+
+        // Sortowanie przez zliczanie po komórce
+        int cells = rows * cols;
+        int[] cellOf = new int[n];
+        int[] offsets = new int[cells + 1];
+        for (int i = 0; i < n; i++) {
+            cellOf[i] = cell(row(lat[i]), col(lon[i]));
+            offsets[cellOf[i] + 1]++;
+        }
+        for (int c = 0; c < cells; c++) offsets[c + 1] += offsets[c];
+        this.cellOffsets = offsets;
+
+        this.nodeIds = new long[n];
+        this.lats = new double[n];
+        this.lons = new double[n];
+        int[] cursor = Arrays.copyOf(offsets, cells);
+        for (int i = 0; i < n; i++) {
+            int pos = cursor[cellOf[i]]++;
+            nodeIds[pos] = ids[i];
+            lats[pos] = lat[i];
+            lons[pos] = lon[i];
+        }
+
+        this.buildMillis = System.currentTimeMillis() - started;
+    }
+
+    // Indeks dla etykiety; budowany przy pierwszym użyciu, równoległe wywołania czekają na jedną budowę
+    static SpatialIndex forLabel(GraphDatabaseService db, Transaction tx, String label) {
+        return INDEXES.computeIfAbsent(key(db.databaseName(), label), k -> build(tx, label));
+    }
+
+    static void invalidate(String databaseName) {
+        INDEXES.keySet().removeIf(k -> k.startsWith(databaseName + "/"));
+    }
+
+    private static String key(String databaseName, String label) {
+        return databaseName + "/" + label;
+    }
+
+    private static SpatialIndex build(Transaction tx, String label) {
+        long started = System.currentTimeMillis();
+        long[] ids = new long[1024];
+        double[] lat = new double[1024];
+        double[] lon = new double[1024];
+        int n = 0;
+
+        try (ResourceIterator<Node> nodes = tx.findNodes(Label.label(label))) {
+            while (nodes.hasNext()) {
+                Node node = nodes.next();
+                double[] latLon = coordinates(node);
+                if (latLon == null) continue;
+                if (n == ids.length) {
+                    ids = Arrays.copyOf(ids, n * 2);
+                    lat = Arrays.copyOf(lat, n * 2);
+                    lon = Arrays.copyOf(lon, n * 2);
+                }
+                ids[n] = node.getId();
+                lat[n] = latLon[0];
+                lon[n] = latLon[1];
+                n++;
+            }
+        }
+        return new SpatialIndex(label, ids, lat, lon, n, started);
+    }
+
+    /**
+     * Współrzędne węzła jako {lat, lon}: najpierw punkt "location", potem latitude/longitude,
+     * na końcu stop_lat/stop_lon (surowe pola GTFS). null, gdy węzeł nie ma położenia.
+     */
+    static double[] coordinates(Node node) {
+        Object location = node.getProperty("location", null);
+        if (location instanceof Point) {
+            double[] xy = ((Point) location).getCoordinate().getCoordinate();
+            return new double[]{xy[1], xy[0]};
+        }
+        Object lat = node.getProperty("latitude", null);
+        Object lon = node.getProperty("longitude", null);
+        if (!(lat instanceof Number) || !(lon instanceof Number)) {
+            lat = node.getProperty("stop_lat", null);
+            lon = node.getProperty("stop_lon", null);
+        }
+        if (!(lat instanceof Number) || !(lon instanceof Number)) return null;
+        return new double[]{((Number) lat).doubleValue(), ((Number) lon).doubleValue()};
+    }
+
+    // Odległość po kole wielkim (haversine), w metrach
+    static double distanceMeters(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1.0, Math.sqrt(a)));
+    }
+
+    /**
+     * k najbliższych punktów (rosnąco po odległości). accept może odrzucać węzły po ich id
+     * (np. filtr po kuchni) - odrzucone punkty nie zajmują miejsca w wyniku.
+     */
+    List<Hit> nearest(double lat, double lon, int k, LongPredicate accept) {
+        if (size == 0 || k <= 0) return Collections.emptyList();
+
+        // Max-kopiec k najlepszych (na szczycie najdalszy); więcej niż size punktów i tak nie będzie
+        PriorityQueue<Hit> best = new PriorityQueue<>(Math.min(k, size) + 1, (a, b) -> Double.compare(b.distance, a.distance));
+        int centerRow = clamp(row(lat), rows);
+        int centerCol = clamp(col(lon), cols);
+        int maxRing = Math.max(Math.max(centerRow, rows - 1 - centerRow), Math.max(centerCol, cols - 1 - centerCol));
+
+        for (int ring = 0; ring <= maxRing; ring++) {
+            for (int r = centerRow - ring; r <= centerRow + ring; r++) {
+                if (r < 0 || r >= rows) continue;
+                boolean edgeRow = r == centerRow - ring || r == centerRow + ring;
+                int step = edgeRow ? 1 : 2 * ring;
+                for (int c = centerCol - ring; c <= centerCol + ring; c += Math.max(step, 1)) {
+                    if (c < 0 || c >= cols) continue;
+                    int cell = cell(r, c);
+                    for (int i = cellOffsets[cell]; i < cellOffsets[cell + 1]; i++) {
+                        double d = distanceMeters(lat, lon, lats[i], lons[i]);
+                        if (best.size() == k && d >= best.peek().distance) continue;
+                        if (accept != null && !accept.test(nodeIds[i])) continue;
+                        best.add(new Hit(i, d));
+                        if (best.size() > k) best.poll();
+                    }
+                }
+            }
+            // Punkty z dalszych pierścieni są co najmniej ring * bok komórki od komórki zapytania
+            if (best.size() == k && best.peek().distance <= ring * minCellMeters) break;
+        }
+
+        List<Hit> result = new ArrayList<>(best);
+        result.sort(Comparator.comparingDouble(h -> h.distance));
+        return result;
+    }
+
+    // Wszystkie punkty w promieniu meters (rosnąco po odległości)
+    List<Hit> within(double lat, double lon, double meters) {
+        if (size == 0 || meters < 0) return Collections.emptyList();
+
+        // Prostokąt komórek pokrywający okrąg (szerokość w stopniach rośnie z 1/cos(lat))
+        double dLat = meters / METERS_PER_DEGREE;
+        double dLon = meters / (METERS_PER_DEGREE * Math.max(0.01, Math.cos(Math.toRadians(Math.min(89.0, Math.abs(lat) + dLat)))));
+        int r0 = Math.max(0, row(lat - dLat)), r1 = Math.min(rows - 1, row(lat + dLat));
+        int c0 = Math.max(0, col(lon - dLon)), c1 = Math.min(cols - 1, col(lon + dLon));
+
+        List<Hit> result = new ArrayList<>();
+        for (int r = r0; r <= r1; r++) {
+            for (int c = c0; c <= c1; c++) {
+                int cell = cell(r, c);
+                for (int i = cellOffsets[cell]; i < cellOffsets[cell + 1]; i++) {
+                    double d = distanceMeters(lat, lon, lats[i], lons[i]);
+                    if (d <= meters) result.add(new Hit(i, d));
+                }
+            }
+        }
+        result.sort(Comparator.comparingDouble(h -> h.distance));
+        return result;
+    }
+
+    private int row(double lat) {
+        return (int) Math.floor((lat - minLat) / cellDegrees);
+    }
+
+    private int col(double lon) {
+        return (int) Math.floor((lon - minLon) / cellDegrees);
+    }
+
+    private int cell(int row, int col) {
+        return row * cols + col;
+    }
+
+    private static int clamp(int value, int count) {
+        return Math.max(0, Math.min(count - 1, value));
+    }
+
+    // Listener unieważniający cache bazy; rejestruje go CacheListenersExtension przy starcie bazy
+    static TransactionEventListener<Boolean> listener(String databaseName) {
+        return new LocationListener(databaseName);
+    }
+
+    /**
+     * Unieważnia indeksy bazy po transakcji, która dodaje/usuwa etykiety albo zmienia współrzędne.
+     * Etykiety indeksów są dowolne, więc nie rozróżniamy ich - przebudowa jest tania.
+     */
+    private static final class LocationListener extends TransactionEventListenerAdapter<Boolean> {
+        private final String databaseName;
+
+        LocationListener(String databaseName) {
+            this.databaseName = databaseName;
+        }
+
+        @Override
+        public Boolean beforeCommit(TransactionData data, Transaction transaction, GraphDatabaseService db) {
+            if (!INDEXES.isEmpty()) {
+                for (LabelEntry entry : data.assignedLabels()) {
+                    if (indexed(entry.label())) return true;
+                }
+                for (LabelEntry entry : data.removedLabels()) {
+                    if (indexed(entry.label())) return true;
+                }
+                for (PropertyEntry<Node> entry : data.assignedNodeProperties()) {
+                    if (COORDINATE_KEYS.contains(entry.key())) return true;
+                }
+                for (PropertyEntry<Node> entry : data.removedNodeProperties()) {
+                    if (COORDINATE_KEYS.contains(entry.key())) return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void afterCommit(TransactionData data, Boolean touched, GraphDatabaseService db) {
+            if (Boolean.TRUE.equals(touched)) invalidate(databaseName);
+        }
+
+        private boolean indexed(Label label) {
+            return INDEXES.containsKey(key(databaseName, label.name()));
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package org.example;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.stream.IntStream;
+
+/**
+ * Nieskierowany graf połączeń między przystankami (Stop - DRIVE - Stop) w układzie CSR, zbudowany
+ * ze snapshotu rozkładu - zamiennik projekcji GDS "transport-network" ze skryptów badanie/.
+ *
+ * Sąsiedzi przystanku s leżą w [offsets[s], offsets[s + 1]) tablicy neighbors, bez powtórzeń;
+ * weights to liczba kursów DRIVE na tej parze w obu kierunkach. Obok trzymamy stopnie skierowane
+ * (różni następni / poprzedni przystankowie) i liczbę odjazdów / przyjazdów do rankingów hubów.
+ */
+final class StopNetwork {
+
+    final int stopCount;
+    final int[] offsets;
+    final int[] neighbors;
+    final int[] weights;
+    final int[] outDegree;
+    final int[] inDegree;
+    final int[] departures;
+    final int[] arrivals;
+
+    private StopNetwork(int stopCount, int[] offsets, int[] neighbors, int[] weights,
+                        int[] outDegree, int[] inDegree, int[] departures, int[] arrivals) {
+        this.stopCount = stopCount;
+        this.offsets = offsets;
+        this.neighbors = neighbors;
+        this.weights = weights;
+        this.outDegree = outDegree;
+        this.inDegree = inDegree;
+        this.departures = departures;
+        this.arrivals = arrivals;
+    }
+
+    int degree(int stop) {
+        return offsets[stop + 1] - offsets[stop];
+    }
+
+    static StopNetwork of(TimetableSnapshot timetable) {
+        int n = timetable.stopCount;
+        int[] outDegree = new int[n], inDegree = new int[n], departures = new int[n], arrivals = new int[n];
+
+        // 1. Grupy snapshotu to już pary (przystanek, następny przystanek) z liczbą kursów
+        int[] offsets = new int[n + 1];
+        for (int s = 0; s < n; s++) {
+            for (int g = timetable.groupOffsets[s]; g < timetable.groupOffsets[s + 1]; g++) {
+                int target = timetable.edgeTarget[timetable.groupStart[g]];
+                int trips = timetable.groupStart[g + 1] - timetable.groupStart[g];
+                outDegree[s]++;
+                inDegree[target]++;
+                departures[s] += trips;
+                arrivals[target] += trips;
+                if (target == s) continue;
+                offsets[s + 1]++;
+                offsets[target + 1]++;
+            }
+        }
+        for (int s = 0; s < n; s++) offsets[s + 1] += offsets[s];
+
+        // 2. Każdą parę wpisujemy z obu stron; A -> B i B -> A trafiają do tej samej listy sąsiadów
+        int[] neighbors = new int[offsets[n]];
+        int[] weights = new int[offsets[n]];
+        int[] cursor = Arrays.copyOf(offsets, n);
+        for (int s = 0; s < n; s++) {
+            for (int g = timetable.groupOffsets[s]; g < timetable.groupOffsets[s + 1]; g++) {
+                int target = timetable.edgeTarget[timetable.groupStart[g]];
+                int trips = timetable.groupStart[g + 1] - timetable.groupStart[g];
+                if (target == s) continue;
+                neighbors[cursor[s]] = target;
+                weights[cursor[s]++] = trips;
+                neighbors[cursor[target]] = s;
+                weights[cursor[target]++] = trips;
+            }
+        }
+
+        // 3. Scalenie powtórzeń w obrębie listy (sortowanie klucza sąsiad << 32 | waga) i zagęszczenie tablic
+        int[] compact = new int[n + 1];
+        int write = 0;
+        for (int s = 0; s < n; s++) {
+            int from = offsets[s], to = offsets[s + 1];
+            long[] keys = new long[to - from];
+            for (int i = from; i < to; i++) keys[i - from] = ((long) neighbors[i] << 32) | weights[i];
+            Arrays.sort(keys);
+            compact[s] = write;
+            for (int i = 0; i < keys.length; i++) {
+                int neighbor = (int) (keys[i] >>> 32);
+                int weight = (int) keys[i];
+                if (write > compact[s] && neighbors[write - 1] == neighbor) {
+                    weights[write - 1] += weight;
+                } else {
+                    neighbors[write] = neighbor;
+                    weights[write++] = weight;
+                }
+            }
+        }
+        compact[n] = write;
+        return new StopNetwork(n, compact, Arrays.copyOf(neighbors, write), Arrays.copyOf(weights, write),
+                outDegree, inDegree, departures, arrivals);
+    }
+
+    // --- Spójne składowe: równoległe union-find bez blokad ---
+
+    /**
+     * Reprezentant składowej dla każdego przystanku (najmniejszy indeks w składowej). Krawędzie
+     * łączymy równolegle: korzeń o większym indeksie podpinamy przez CAS pod mniejszy, a przy
+     * wyścigu powtarzamy od nowych korzeni. Przystanki bez połączeń są osobnymi składowymi.
+     */
+    int[] components() {
+        AtomicIntegerArray parent = new AtomicIntegerArray(stopCount);
+        for (int s = 0; s < stopCount; s++) parent.set(s, s);
+        IntStream.range(0, stopCount).parallel().forEach(s -> {
+            for (int i = offsets[s]; i < offsets[s + 1]; i++) {
+                if (neighbors[i] > s) union(parent, s, neighbors[i]);
+            }
+        });
+        int[] component = new int[stopCount];
+        for (int s = 0; s < stopCount; s++) component[s] = find(parent, s);
+        return component;
+    }
+
+    private static void union(AtomicIntegerArray parent, int a, int b) {
+        while (true) {
+            int rootA = find(parent, a);
+            int rootB = find(parent, b);
+            if (rootA == rootB) return;
+            int high = Math.max(rootA, rootB), low = Math.min(rootA, rootB);
+            if (parent.compareAndSet(high, high, low)) return;
+        }
+    }
+
+    // Znajdowanie korzenia z połowieniem ścieżki (CAS - inny wątek mógł już przepiąć węzeł)
+    private static int find(AtomicIntegerArray parent, int s) {
+        while (true) {
+            int p = parent.get(s);
+            if (p == s) return s;
+            int grand = parent.get(p);
+            if (grand != p) parent.compareAndSet(s, p, grand);
+            s = grand;
+        }
+    }
+
+    // --- Punkty artykulacji i mosty: iteracyjny Tarjan (bez rekurencji - sieci mają tysiące przystanków) ---
+
+    /**
+     * Wynik przejścia DFS: separated[s] > 0 wyróżnia punkty artykulacji (ile przystanków składowej
+     * traci połączenie z resztą po usunięciu s), a bridgeEdges - mosty jako pozycje w tablicy neighbors
+     * (od strony rodzica, bridgeFrom) z liczbą przystanków po mniejszej stronie mostu w bridgeSides.
+     */
+    static final class CutStructure {
+        final int[] separated;
+        final int[] bridgeFrom;
+        final int[] bridgeEdges;
+        final int[] bridgeSides;
+
+        CutStructure(int[] separated, int[] bridgeFrom, int[] bridgeEdges, int[] bridgeSides) {
+            this.separated = separated;
+            this.bridgeFrom = bridgeFrom;
+            this.bridgeEdges = bridgeEdges;
+            this.bridgeSides = bridgeSides;
+        }
+    }
+
+    /**
+     * Jedno DFS na składową; składowe są niezależne, więc liczymy je równolegle (każda zapisuje
+     * tylko swoje przystanki w tablicach wspólnych).
+     */
+    CutStructure cuts(int[] component) {
+        int[] discovery = new int[stopCount];
+        int[] low = new int[stopCount];
+        int[] size = new int[stopCount];
+        int[] separated = new int[stopCount];
+        int[] bridgeOf = new int[stopCount];   // Krawędź drzewa DFS do s, jeśli jest mostem; -1 = nie
+        Arrays.fill(bridgeOf, -1);
+
+        int[] componentSize = new int[stopCount];
+        for (int s = 0; s < stopCount; s++) componentSize[component[s]]++;
+        IntStream.range(0, stopCount).parallel()
+                .filter(s -> component[s] == s && componentSize[s] > 1)
+                .forEach(root -> dfs(root, componentSize[root], discovery, low, size, separated, bridgeOf));
+
+        TimetableSnapshot.IntList from = new TimetableSnapshot.IntList();
+        TimetableSnapshot.IntList edges = new TimetableSnapshot.IntList();
+        TimetableSnapshot.IntList sides = new TimetableSnapshot.IntList();
+        for (int s = 0; s < stopCount; s++) {
+            if (bridgeOf[s] < 0) continue;
+            from.add(parentOf(bridgeOf[s]));
+            edges.add(bridgeOf[s]);
+            sides.add(Math.min(size[s], componentSize[component[s]] - size[s]));
+        }
+        return new CutStructure(separated, from.toArray(), edges.toArray(), sides.toArray());
+    }
+
+    // Przystanek, z którego listy pochodzi pozycja edge (wyszukiwanie binarne po offsets)
+    private int parentOf(int edge) {
+        int pos = Arrays.binarySearch(offsets, edge);
+        if (pos < 0) return -pos - 2;
+        while (pos + 1 < offsets.length && offsets[pos + 1] == edge) pos++;
+        return pos;
+    }
+
+    private void dfs(int root, int componentSize, int[] discovery, int[] low, int[] size,
+                     int[] separated, int[] bridgeOf) {
+        // Stos: przystanek, jego rodzic w drzewie i krawędź, którą przyszliśmy; next = kolejna krawędź do obejrzenia
+        int[] stack = new int[componentSize];
+        int[] parentEdge = new int[componentSize];
+        int[] next = new int[componentSize];
+        int[] largestCut = new int[componentSize];   // Największe odcięte poddrzewo przystanku na danym poziomie
+        int depth = 0, time = 1;
+
+        stack[0] = root;
+        parentEdge[0] = -1;
+        next[0] = offsets[root];
+        discovery[root] = low[root] = time++;
+        size[root] = 1;
+        int rootChildren = 0, rootLargest = 0;
+
+        while (depth >= 0) {
+            int s = stack[depth];
+            if (next[depth] < offsets[s + 1]) {
+                int edge = next[depth]++;
+                int neighbor = neighbors[edge];
+                if (discovery[neighbor] == 0) {
+                    depth++;
+                    stack[depth] = neighbor;
+                    parentEdge[depth] = edge;
+                    next[depth] = offsets[neighbor];
+                    largestCut[depth] = 0;
+                    discovery[neighbor] = low[neighbor] = time++;
+                    size[neighbor] = 1;
+                } else if (depth == 0 || neighbor != stack[depth - 1]) {
+                    // Krawędź powrotna (listy są bez powtórzeń, więc krawędź do rodzica pomijamy po przystanku)
+                    low[s] = Math.min(low[s], discovery[neighbor]);
+                }
+                continue;
+            }
+
+            // Wszystkie krawędzie s obejrzane - wracamy do rodzica. Po usunięciu s sieć dzieli się na odcięte
+            // poddrzewa i część z rodzicem; za odłączone uznajemy wszystko poza największym kawałkiem
+            if (depth == 0) break;
+            if (separated[s] > 0) {
+                int rest = componentSize - 1 - separated[s];
+                separated[s] = componentSize - 1 - Math.max(rest, largestCut[depth]);
+            }
+            int parent = stack[depth - 1];
+            low[parent] = Math.min(low[parent], low[s]);
+            size[parent] += size[s];
+            if (low[s] > discovery[parent]) bridgeOf[s] = parentEdge[depth];
+            if (depth - 1 == 0) {
+                rootChildren++;
+                rootLargest = Math.max(rootLargest, size[s]);
+            } else if (low[s] >= discovery[parent]) {
+                separated[parent] += size[s];
+                largestCut[depth - 1] = Math.max(largestCut[depth - 1], size[s]);
+            }
+            depth--;
+        }
+        // Korzeń DFS jest punktem artykulacji, gdy ma co najmniej dwa poddrzewa
+        if (rootChildren > 1) separated[root] = componentSize - 1 - rootLargest;
+    }
+}
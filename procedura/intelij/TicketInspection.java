@@ -0,0 +1,295 @@
+package org.example;
+
+import org.neo4j.graphdb.*;
+import org.neo4j.logging.Log;
+import org.neo4j.procedure.Context;
+import org.neo4j.procedure.Mode;
+import org.neo4j.procedure.Name;
+import org.neo4j.procedure.Procedure;
+
+import java.time.*;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+/**
+ * Kontrola biletów dla wielu podróży naraz (zapytania/wlasne_wezly/04_czy_jan_kupil_dobry_bilet.txt
+ * robi to w Cypherze dla jednego pasażera). Strefy przystanków i sekwencje kursów bierzemy z cache
+ * TicketZones, więc na podróż czytamy z grafu tylko pasażera i jego bilety.
+ */
+public class TicketInspection {
+
+    @Context
+    public Transaction tx;
+
+    @Context
+    public Log log;
+
+    @Context
+    public GraphDatabaseService db;
+
+    private static final Label VOYAGE_LABEL = Label.label("GuestVoyage");
+    private static final RelationshipType USES_TRIP = RelationshipType.withName("USES_TRIP");
+    private static final RelationshipType TRAVELED = RelationshipType.withName("TRAVELED");
+    private static final RelationshipType VALIDATED = RelationshipType.withName("VALIDATED");
+    private static final RelationshipType VALID_FOR = RelationshipType.withName("VALID_FOR");
+
+    static final String NO_TICKET = "NO_TICKET";
+    static final String UNKNOWN_TRIP = "UNKNOWN_TRIP";
+    static final String OUTSIDE_ZONE = "OUTSIDE_ZONE";
+    static final String BEFORE_VALID_FROM = "BEFORE_VALID_FROM";
+    static final String AFTER_VALID_UNTIL = "AFTER_VALID_UNTIL";
+    private static final String[] STOP_REASONS = {OUTSIDE_ZONE, BEFORE_VALID_FROM, AFTER_VALID_UNTIL};
+
+    // Naruszenie na przystanku podróży; dla NO_TICKET i UNKNOWN_TRIP bez przystanku (stop = null)
+    public static class TicketViolation {
+        public Node voyage;
+        public String voyageId;
+        public String guestId;
+        public String ticketId;     // Bilet z najmniejszą liczbą naruszeń, gdy pasażer ma ich kilka
+        public String tripId;
+        public Node stop;
+        public String stopName;
+        public Long stopSequence;
+        public String arrTime;
+        public String reason;
+        public List<Long> stopZones;
+
+        public TicketViolation(Node voyage, String voyageId, String guestId, String ticketId, String tripId, Node stop,
+                               String stopName, Long stopSequence, String arrTime, String reason, List<Long> stopZones) {
+            this.voyage = voyage;
+            this.voyageId = voyageId;
+            this.guestId = guestId;
+            this.ticketId = ticketId;
+            this.tripId = tripId;
+            this.stop = stop;
+            this.stopName = stopName;
+            this.stopSequence = stopSequence;
+            this.arrTime = arrTime;
+            this.reason = reason;
+            this.stopZones = stopZones;
+        }
+    }
+
+    // Bilet skasowany przez pasażera: strefy VALID_FOR (indeksy TicketZones) i okno ważności (null = bez granicy)
+    private static final class Ticket {
+        final String ticketId;
+        final int[] areas;
+        final LocalDateTime validFrom;
+        final LocalDateTime validUntil;
+
+        Ticket(String ticketId, int[] areas, LocalDateTime validFrom, LocalDateTime validUntil) {
+            this.ticketId = ticketId;
+            this.areas = areas;
+            this.validFrom = validFrom;
+            this.validUntil = validUntil;
+        }
+    }
+
+    /**
+     * Sprawdza podróże GuestVoyage (voyageIds; pusta lista = wszystkie): każdy przystanek z zakresu
+     * [start_sequence, end_sequence] kursu musi leżeć w strefie VALID_FOR biletu, a czas przyjazdu -
+     * w [valid_from, valid_until]. Dzień kursu: parametr date (yyyy-MM-dd), właściwość date podróży,
+     * a gdy obu brak - dzień rozpoczęcia ważności biletu. Czasy biletów ze strefą (datetime Neo4j, domyślnie
+     * UTC) przeliczamy na timeZone - strefę rozkładu, w której są czasy GTFS. Zwraca tylko naruszenia, podróż po podróży.
+     */
+    @Procedure(name = "custom.checkTickets", mode = Mode.READ)
+    public Stream<TicketViolation> checkTickets(
+            @Name(value = "voyageIds", defaultValue = "[]") List<String> voyageIds,
+            @Name(value = "date", defaultValue = "") String date,
+            @Name(value = "timeZone", defaultValue = "Europe/Warsaw") String timeZone
+    ) {
+        ZoneId zone;
+        try {
+            zone = ZoneId.of(timeZone);
+        } catch (DateTimeException | NullPointerException e) {
+            log.error("TripPlanner: Błędna strefa czasowa kontroli biletów: " + timeZone);
+            return Stream.empty();
+        }
+        LocalDate serviceDate = date == null || date.isEmpty() ? null : localDate(date, zone);
+        if (date != null && !date.isEmpty() && serviceDate == null) {
+            log.error("TripPlanner: Błędna data kontroli biletów: " + date);
+            return Stream.empty();
+        }
+
+        TimetableSnapshot timetable = TimetableRegistry.get(db, tx);
+        TicketZones zones = TicketZones.get(db, tx, timetable);
+
+        // 1. Podróże do sprawdzenia (same id węzłów - właściwości czytamy dopiero przy sprawdzaniu)
+        long[] voyages;
+        if (voyageIds == null || voyageIds.isEmpty()) {
+            List<Long> all = new ArrayList<>();
+            try (ResourceIterator<Node> nodes = tx.findNodes(VOYAGE_LABEL)) {
+                while (nodes.hasNext()) all.add(nodes.next().getId());
+            }
+            voyages = all.stream().mapToLong(Long::longValue).toArray();
+        } else {
+            voyages = voyageIds.stream()
+                    .map(id -> tx.findNode(VOYAGE_LABEL, "voyage_id", id))
+                    .filter(Objects::nonNull)
+                    .mapToLong(Node::getId)
+                    .toArray();
+            if (voyages.length < voyageIds.size()) {
+                log.warn("TripPlanner: Nie znaleziono " + (voyageIds.size() - voyages.length) + " podróży.");
+            }
+        }
+
+        // 2. Sprawdzanie strumieniowo; bilety pasażera czytamy raz na wywołanie
+        Map<Long, List<Ticket>> ticketsByGuest = new HashMap<>();
+        long started = System.currentTimeMillis();
+        long[] violations = new long[1];
+        return LongStream.of(voyages)
+                .mapToObj(id -> check(tx.getNodeById(id), zones, serviceDate, zone, ticketsByGuest))
+                .flatMap(rows -> {
+                    violations[0] += rows.size();
+                    return rows.stream();
+                })
+                .onClose(() -> log.info("TripPlanner: Sprawdzono bilety " + voyages.length + " podróży ("
+                        + violations[0] + " naruszeń) w " + (System.currentTimeMillis() - started) + " ms."));
+    }
+
+    private List<TicketViolation> check(Node voyage, TicketZones zones, LocalDate serviceDate, ZoneId zone,
+                                        Map<Long, List<Ticket>> ticketsByGuest) {
+        String voyageId = asString(voyage.getProperty("voyage_id", null));
+        Relationship traveled = voyage.getSingleRelationship(TRAVELED, Direction.INCOMING);
+        Node guest = traveled == null ? null : traveled.getStartNode();
+        String guestId = guest == null ? null : asString(guest.getProperty("guest_id", null));
+
+        // 1. Odcinek kursu [start_sequence, end_sequence] z cache sekwencji
+        Relationship usesTrip = voyage.getSingleRelationship(USES_TRIP, Direction.OUTGOING);
+        TicketZones.TripStops trip = usesTrip == null ? null : zones.trip(usesTrip.getEndNode());
+        Object startSeq = voyage.getProperty("start_sequence", null);
+        Object endSeq = voyage.getProperty("end_sequence", null);
+        int first = -1, last = -1;
+        if (trip != null && startSeq instanceof Number && endSeq instanceof Number) {
+            first = trip.positionOf(((Number) startSeq).intValue());
+            last = trip.positionOf(((Number) endSeq).intValue() + 1) - 1;
+        }
+        if (trip == null || first < 0 || first > last) {
+            return List.of(new TicketViolation(voyage, voyageId, guestId, null, trip == null ? null : trip.tripId,
+                    null, null, null, null, UNKNOWN_TRIP, null));
+        }
+
+        List<Ticket> tickets = guest == null ? Collections.emptyList()
+                : ticketsByGuest.computeIfAbsent(guest.getId(), g -> tickets(guest, zones, zone));
+        if (tickets.isEmpty()) {
+            return List.of(new TicketViolation(voyage, voyageId, guestId, null, trip.tripId,
+                    null, null, null, null, NO_TICKET, null));
+        }
+
+        // 2. Przy kilku biletach rozliczamy podróż tym, który daje najmniej naruszeń
+        LocalDate voyageDate = serviceDate != null ? serviceDate : localDate(voyage.getProperty("date", null), zone);
+        Ticket best = null;
+        int bestCount = Integer.MAX_VALUE;
+        for (Ticket ticket : tickets) {
+            int count = violations(ticket, trip, first, last, zones, voyageDate);
+            if (count < bestCount) {
+                best = ticket;
+                bestCount = count;
+            }
+            if (count == 0) return Collections.emptyList();
+        }
+
+        List<TicketViolation> rows = new ArrayList<>(bestCount);
+        for (int pos = first; pos <= last; pos++) {
+            int mask = stopViolations(best, trip, pos, zones, voyageDate);
+            if (mask == 0) continue;
+            Node stopNode = tx.getNodeById(trip.stopNodeIds[pos]);
+            int stop = trip.stops[pos];
+            String stopName = stop >= 0 ? zones.timetable.stopNames[stop] : asString(stopNode.getProperty("name", null));
+            String arrTime = trip.times[pos] == GtfsTime.INVALID ? null : GtfsTime.format(trip.times[pos]);
+            for (int bit = 0; bit < STOP_REASONS.length; bit++) {
+                if ((mask & (1 << bit)) == 0) continue;
+                rows.add(new TicketViolation(voyage, voyageId, guestId, best.ticketId, trip.tripId, stopNode, stopName,
+                        (long) trip.sequences[pos], arrTime, STOP_REASONS[bit], zones.zoneNumbers(stop)));
+            }
+        }
+        return rows;
+    }
+
+    // Liczba naruszeń biletu na odcinku [first, last]
+    private static int violations(Ticket ticket, TicketZones.TripStops trip, int first, int last, TicketZones zones,
+                                  LocalDate voyageDate) {
+        int count = 0;
+        for (int pos = first; pos <= last; pos++) count += Integer.bitCount(stopViolations(ticket, trip, pos, zones, voyageDate));
+        return count;
+    }
+
+    // Bity naruszeń na przystanku, jak w STOP_REASONS: 1 = poza strefą, 2 = przed valid_from, 4 = po valid_until
+    private static int stopViolations(Ticket ticket, TicketZones.TripStops trip, int pos, TicketZones zones,
+                                      LocalDate voyageDate) {
+        int mask = 0;
+        boolean inZone = false;
+        for (int area : ticket.areas) {
+            if (zones.contains(trip.stops[pos], area)) {
+                inZone = true;
+                break;
+            }
+        }
+        if (!inZone) mask |= 1;
+
+        LocalDate day = voyageDate != null ? voyageDate : ticket.validFrom == null ? null : ticket.validFrom.toLocalDate();
+        if (day == null || trip.times[pos] == GtfsTime.INVALID) return mask;
+        LocalDateTime at = day.atStartOfDay().plusSeconds(trip.times[pos]);   // >= 24:00:00 to już następny dzień
+        if (ticket.validFrom != null && at.isBefore(ticket.validFrom)) mask |= 2;
+        if (ticket.validUntil != null && at.isAfter(ticket.validUntil)) mask |= 4;
+        return mask;
+    }
+
+    // Bilety pasażera (VALIDATED); początek ważności to valid_from, a bez niego chwila skasowania
+    private static List<Ticket> tickets(Node guest, TicketZones zones, ZoneId zone) {
+        List<Ticket> tickets = new ArrayList<>();
+        for (Relationship validated : guest.getRelationships(Direction.OUTGOING, VALIDATED)) {
+            Node ticket = validated.getEndNode();
+            TimetableSnapshot.IntList areas = new TimetableSnapshot.IntList();
+            for (Relationship validFor : ticket.getRelationships(Direction.OUTGOING, VALID_FOR)) {
+                int area = zones.area(validFor.getEndNode().getId());
+                if (area >= 0) areas.add(area);
+            }
+            LocalDateTime from = localDateTime(ticket.getProperty("valid_from", null), zone);
+            if (from == null) from = localDateTime(validated.getProperty("validated_at", null), zone);
+            tickets.add(new Ticket(asString(ticket.getProperty("ticket_id", null)), areas.toArray(), from,
+                    localDateTime(ticket.getProperty("valid_until", null), zone)));
+        }
+        return tickets;
+    }
+
+    // Czas lokalny w strefie zone z datetime / localdatetime / date Neo4j albo tekstu ISO; wartości bez strefy bierzemy wprost
+    static LocalDateTime localDateTime(Object value, ZoneId zone) {
+        if (value instanceof ZonedDateTime) return ((ZonedDateTime) value).withZoneSameInstant(zone).toLocalDateTime();
+        if (value instanceof OffsetDateTime) return ((OffsetDateTime) value).atZoneSameInstant(zone).toLocalDateTime();
+        if (value instanceof LocalDateTime) return (LocalDateTime) value;
+        if (value instanceof LocalDate) return ((LocalDate) value).atStartOfDay();
+        if (!(value instanceof String)) return null;
+        String text = (String) value;
+        try {
+            return ZonedDateTime.parse(text).withZoneSameInstant(zone).toLocalDateTime();
+        } catch (DateTimeParseException e) {
+            // Bez strefy czasowej
+        }
+        try {
+            return LocalDateTime.parse(text);
+        } catch (DateTimeParseException e) {
+            LocalDate day = localDate(text, zone);
+            return day == null ? null : day.atStartOfDay();
+        }
+    }
+
+    private static LocalDate localDate(Object value, ZoneId zone) {
+        if (value instanceof LocalDate) return (LocalDate) value;
+        if (!(value instanceof String)) {
+            LocalDateTime dateTime = value == null ? null : localDateTime(value, zone);
+            return dateTime == null ? null : dateTime.toLocalDate();
+        }
+        try {
+            return LocalDate.parse((String) value);
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    private static String asString(Object value) {
+        return value == null ? null : value.toString();
+    }
+}
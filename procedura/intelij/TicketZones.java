@@ -0,0 +1,219 @@
+package org.example;
+
+import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.event.LabelEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventListener;
+import org.neo4j.graphdb.event.TransactionEventListenerAdapter;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Strefy biletowe (TicketArea -CONTAINS-> Stop) po indeksach przystanków ze snapshotu, w układzie CSR:
+ * strefy przystanku s to zakres [zoneOffsets[s], zoneOffsets[s + 1]) tablicy zones (indeksy stref).
+ * Obok leniwie wypełniany cache sekwencji STOPS_AT kursów (stop_sequence, przystanek, czasy), żeby
+ * sprawdzanie tysięcy podróży czytało każdy kurs z grafu tylko raz.
+ *
+ * Trzymane, dopóki nie zmieni się snapshot rozkładu albo transakcja nie ruszy stref / STOPS_AT -
+ * pilnuje tego listener transakcji, jak w ActiveTripsCache.
+ */
+final class TicketZones {
+
+    static final Label TICKET_AREA_LABEL = Label.label("TicketArea");
+    private static final RelationshipType CONTAINS = RelationshipType.withName("CONTAINS");
+    private static final RelationshipType STOPS_AT = RelationshipType.withName("STOPS_AT");
+
+    private static final Map<String, TicketZones> ZONES = new ConcurrentHashMap<>();
+
+    final TimetableSnapshot timetable;
+    final long[] areaNodeIds;
+    final long[] areaNumbers;           // Właściwość number strefy; -1, gdy jej brak
+    private final Map<Long, Integer> areaIndex;
+    final int[] zoneOffsets;
+    final int[] zones;
+    private final Map<Long, TripStops> trips = new ConcurrentHashMap<>();
+
+    private TicketZones(TimetableSnapshot timetable, long[] areaNodeIds, long[] areaNumbers,
+                        int[] zoneOffsets, int[] zones) {
+        this.timetable = timetable;
+        this.areaNodeIds = areaNodeIds;
+        this.areaNumbers = areaNumbers;
+        this.areaIndex = new HashMap<>();
+        for (int a = 0; a < areaNodeIds.length; a++) areaIndex.put(areaNodeIds[a], a);
+        this.zoneOffsets = zoneOffsets;
+        this.zones = zones;
+    }
+
+    /**
+     * Przystanki kursu w kolejności stop_sequence. stops to indeksy ze snapshotu (-1 = przystanku nie ma
+     * w snapshocie), times - przyjazd w sekundach od północy dnia kursu (odjazd, gdy brak przyjazdu).
+     */
+    static final class TripStops {
+        final String tripId;
+        final int[] sequences;
+        final int[] stops;
+        final long[] stopNodeIds;
+        final int[] times;
+
+        TripStops(String tripId, int length) {
+            this.tripId = tripId;
+            this.sequences = new int[length];
+            this.stops = new int[length];
+            this.stopNodeIds = new long[length];
+            this.times = new int[length];
+        }
+
+        // Pierwsza pozycja z stop_sequence >= sequence
+        int positionOf(int sequence) {
+            int lo = 0, hi = sequences.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (sequences[mid] < sequence) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+    }
+
+    static TicketZones get(GraphDatabaseService db, Transaction tx, TimetableSnapshot timetable) {
+        return ZONES.compute(db.databaseName(), (name, cached) ->
+                cached != null && cached.timetable == timetable ? cached : load(tx, timetable));
+    }
+
+    static void invalidate(String databaseName) {
+        ZONES.remove(databaseName);
+    }
+
+    // Indeks strefy o danym id węzła; -1 dla węzła, który nie jest strefą
+    int area(long nodeId) {
+        Integer idx = areaIndex.get(nodeId);
+        return idx == null ? -1 : idx;
+    }
+
+    boolean contains(int stop, int area) {
+        if (stop < 0) return false;
+        for (int i = zoneOffsets[stop]; i < zoneOffsets[stop + 1]; i++) {
+            if (zones[i] == area) return true;
+        }
+        return false;
+    }
+
+    // Numery stref przystanku (do opisu naruszenia)
+    List<Long> zoneNumbers(int stop) {
+        if (stop < 0) return Collections.emptyList();
+        List<Long> numbers = new ArrayList<>(zoneOffsets[stop + 1] - zoneOffsets[stop]);
+        for (int i = zoneOffsets[stop]; i < zoneOffsets[stop + 1]; i++) numbers.add(areaNumbers[zones[i]]);
+        return numbers;
+    }
+
+    // Sekwencja kursu z cache; pierwszy odczyt z relacji STOPS_AT. null, gdy kurs nie ma przystanków
+    TripStops trip(Node tripNode) {
+        TripStops cached = trips.get(tripNode.getId());
+        if (cached != null) return cached;
+        TripStops loaded = readTrip(tripNode);
+        if (loaded != null) trips.put(tripNode.getId(), loaded);
+        return loaded;
+    }
+
+    private TripStops readTrip(Node tripNode) {
+        List<long[]> rows = new ArrayList<>();
+        for (Relationship stopsAt : tripNode.getRelationships(Direction.OUTGOING, STOPS_AT)) {
+            Object seq = stopsAt.getProperty("stop_sequence", null);
+            if (!(seq instanceof Number)) continue;
+            Object arrObj = stopsAt.getProperty("arrival_time", null);
+            Object depObj = stopsAt.getProperty("departure_time", null);
+            int time = arrObj != null ? GtfsTime.parse(arrObj.toString()) : GtfsTime.INVALID;
+            if (time == GtfsTime.INVALID && depObj != null) time = GtfsTime.parse(depObj.toString());
+            long stopNodeId = stopsAt.getEndNode().getId();
+            rows.add(new long[]{((Number) seq).longValue(), stopNodeId, time});
+        }
+        if (rows.isEmpty()) return null;
+
+        rows.sort(Comparator.comparingLong(r -> r[0]));
+        Object tripId = tripNode.getProperty("trip_id", null);
+        TripStops stops = new TripStops(tripId == null ? null : tripId.toString(), rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            long[] row = rows.get(i);
+            stops.sequences[i] = (int) row[0];
+            stops.stopNodeIds[i] = row[1];
+            stops.stops[i] = timetable.stopIndex(row[1]);
+            stops.times[i] = (int) row[2];
+        }
+        return stops;
+    }
+
+    // Jedno przejście po strefach i ich relacjach CONTAINS; przystanki spoza snapshotu pomijamy
+    private static TicketZones load(Transaction tx, TimetableSnapshot timetable) {
+        TimetableSnapshot.IntList pairStops = new TimetableSnapshot.IntList();
+        TimetableSnapshot.IntList pairAreas = new TimetableSnapshot.IntList();
+        List<Long> nodeIds = new ArrayList<>();
+        List<Long> numbers = new ArrayList<>();
+
+        try (ResourceIterator<Node> areas = tx.findNodes(TICKET_AREA_LABEL)) {
+            while (areas.hasNext()) {
+                Node area = areas.next();
+                int a = nodeIds.size();
+                Object number = area.getProperty("number", null);
+                nodeIds.add(area.getId());
+                numbers.add(number instanceof Number ? ((Number) number).longValue() : -1L);
+                for (Relationship contains : area.getRelationships(Direction.OUTGOING, CONTAINS)) {
+                    int stop = timetable.stopIndex(contains.getEndNode());
+                    if (stop < 0) continue;
+                    pairStops.add(stop);
+                    pairAreas.add(a);
+                }
+            }
+        }
+
+        int[] offsets = new int[timetable.stopCount + 1];
+        for (int i = 0; i < pairStops.size; i++) offsets[pairStops.data[i] + 1]++;
+        for (int s = 0; s < timetable.stopCount; s++) offsets[s + 1] += offsets[s];
+        int[] zones = new int[pairStops.size];
+        int[] cursor = Arrays.copyOf(offsets, timetable.stopCount);
+        for (int i = 0; i < pairStops.size; i++) zones[cursor[pairStops.data[i]]++] = pairAreas.data[i];
+
+        return new TicketZones(timetable, nodeIds.stream().mapToLong(Long::longValue).toArray(),
+                numbers.stream().mapToLong(Long::longValue).toArray(), offsets, zones);
+    }
+
+    // Listener unieważniający cache bazy; rejestruje go CacheListenersExtension przy starcie bazy
+    static TransactionEventListener<Boolean> listener(String databaseName) {
+        return new ZoneDataListener(databaseName);
+    }
+
+    /**
+     * Po zatwierdzeniu transakcji, która dodaje / usuwa strefy albo relacje CONTAINS / STOPS_AT,
+     * wyrzuca strefy i sekwencje kursów z cache.
+     */
+    private static final class ZoneDataListener extends TransactionEventListenerAdapter<Boolean> {
+        private final String databaseName;
+
+        ZoneDataListener(String databaseName) {
+            this.databaseName = databaseName;
+        }
+
+        @Override
+        public Boolean beforeCommit(TransactionData data, Transaction transaction, GraphDatabaseService db) {
+            if (!ZONES.containsKey(databaseName)) return false;
+            for (LabelEntry entry : data.assignedLabels()) {
+                if (entry.label().name().equals(TICKET_AREA_LABEL.name())) return true;
+            }
+            for (LabelEntry entry : data.removedLabels()) {
+                if (entry.label().name().equals(TICKET_AREA_LABEL.name())) return true;
+            }
+            for (Relationship rel : data.createdRelationships()) {
+                if (rel.isType(CONTAINS) || rel.isType(STOPS_AT)) return true;
+            }
+            for (Relationship rel : data.deletedRelationships()) {
+                if (rel.isType(CONTAINS) || rel.isType(STOPS_AT)) return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void afterCommit(TransactionData data, Boolean touched, GraphDatabaseService db) {
+            if (Boolean.TRUE.equals(touched)) invalidate(databaseName);
+        }
+    }
+}
@@ -0,0 +1,407 @@
+package org.example;
+
+import org.neo4j.graphdb.*;
+import org.neo4j.logging.Log;
+import org.neo4j.procedure.Context;
+import org.neo4j.procedure.Mode;
+import org.neo4j.procedure.Name;
+import org.neo4j.procedure.Procedure;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Jednorazowe operacje na danych rozkładu (migracje, generowanie przesiadek, wzorce tras), uruchamiane po imporcie GTFS.
+ */
+public class TimetableMaintenance {
+
+    @Context
+    public Transaction tx;
+
+    @Context
+    public Log log;
+
+    @Context
+    public GraphDatabaseService db;
+
+    private static final RelationshipType DRIVE = RelationshipType.withName("DRIVE");
+    private static final RelationshipType WALK = RelationshipType.withName("WALK");
+    private static final String GENERATED_WALK = "GENERATED_GRID";
+    private static final int MIN_WALK_SECONDS = 60;
+    private static final int MAX_ATTEMPTS = 3;
+
+    // Wynik migracji
+    public static class MigrationStats {
+        public long relationships;  // Wszystkie krawędzie DRIVE
+        public long updated;        // Zapisane (nowe albo zmienione) wartości
+        public long unchanged;      // Już miały poprawne dep_time_sec / arr_time_sec
+        public long invalid;        // Brak albo błędny format dep_time / arr_time
+        public long failedBatches;  // Paczki wycofane przez błąd
+        public long millis;
+
+        public MigrationStats(long relationships, long updated, long unchanged, long invalid, long failedBatches, long millis) {
+            this.relationships = relationships;
+            this.updated = updated;
+            this.unchanged = unchanged;
+            this.invalid = invalid;
+            this.failedBatches = failedBatches;
+            this.millis = millis;
+        }
+    }
+
+    // Wynik generowania przesiadek pieszych
+    public static class WalkStats {
+        public long stops;
+        public long created;
+        public long updated;
+        public long unchanged;
+        public long deleted;        // Wygenerowane wcześniej, a teraz poza promieniem
+        public long failedBatches;
+        public long millis;
+
+        public WalkStats(long stops, long created, long updated, long unchanged, long deleted, long failedBatches, long millis) {
+            this.stops = stops;
+            this.created = created;
+            this.updated = updated;
+            this.unchanged = unchanged;
+            this.deleted = deleted;
+            this.failedBatches = failedBatches;
+            this.millis = millis;
+        }
+    }
+
+    // Wynik zapisu wzorców tras
+    public static class PatternStats {
+        public long patterns;
+        public long trips;
+        public long connections;    // Ile krawędzi DRIVE zastępują zapisane wzorce
+        public long skippedPatterns; // Wzorce z przystankiem bez stop_id
+        public long deleted;        // Poprzednio zapisane węzły :Pattern
+        public long millis;
+
+        public PatternStats(long patterns, long trips, long connections, long skippedPatterns, long deleted, long millis) {
+            this.patterns = patterns;
+            this.trips = trips;
+            this.connections = connections;
+            this.skippedPatterns = skippedPatterns;
+            this.deleted = deleted;
+            this.millis = millis;
+        }
+    }
+
+    /**
+     * Zapisuje na każdej krawędzi DRIVE czasy w sekundach (dep_time_sec, arr_time_sec) obok
+     * tekstowych "HH:MM:SS". Krawędzie dzielimy na paczki po batchSize, każda paczka to osobna
+     * transakcja wykonywana równolegle na puli wątków. Można uruchamiać wielokrotnie -
+     * krawędzie z aktualnymi wartościami są pomijane bez zapisu.
+     */
+    @Procedure(name = "custom.migrateDriveTimes", mode = Mode.WRITE)
+    public Stream<MigrationStats> migrateDriveTimes(
+            @Name(value = "batchSize", defaultValue = "10000") Long batchSize,
+            @Name(value = "threads", defaultValue = "4") Long threads
+    ) {
+        long started = System.currentTimeMillis();
+        int chunk = batchSize == null ? 10000 : (int) Math.max(1, Math.min(batchSize, Integer.MAX_VALUE));
+        int workers = threads == null ? 4 : (int) Math.max(1, Math.min(threads, 64));
+
+        // 1. Identyfikatory krawędzi zbieramy w transakcji wywołującej (tylko odczyt)
+        long[] ids = new long[1024];
+        int total = 0;
+        try (ResourceIterator<Relationship> drives = tx.findRelationships(DRIVE)) {
+            while (drives.hasNext()) {
+                if (total == ids.length) ids = Arrays.copyOf(ids, total * 2);
+                ids[total++] = drives.next().getId();
+            }
+        }
+
+        int batches = (total + chunk - 1) / chunk;
+        log.info("TripPlanner: Migracja czasów DRIVE - " + total + " krawędzi, " + batches + " paczek, " + workers + " wątków.");
+
+        // 2. Paczki w osobnych transakcjach; zbiory krawędzi są rozłączne, więc wątki nie walczą o blokady
+        AtomicLong updated = new AtomicLong();
+        AtomicLong unchanged = new AtomicLong();
+        AtomicLong invalid = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        AtomicLong done = new AtomicLong();
+
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        try {
+            List<Future<?>> futures = new ArrayList<>(batches);
+            for (int b = 0; b < batches; b++) {
+                int from = b * chunk;
+                int to = Math.min(total, from + chunk);
+                long[] allIds = ids;
+                futures.add(pool.submit(() -> {
+                    try {
+                        migrateBatch(allIds, from, to, updated, unchanged, invalid);
+                    } catch (RuntimeException e) {
+                        failed.incrementAndGet();
+                        log.error("TripPlanner: Paczka DRIVE [" + from + ", " + to + ") wycofana: " + e.getMessage());
+                    }
+                    long finished = done.incrementAndGet();
+                    log.info("TripPlanner: Migracja czasów DRIVE " + finished + "/" + batches + " paczek.");
+                }));
+            }
+            for (Future<?> future : futures) future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Migracja czasów DRIVE przerwana", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Migracja czasów DRIVE nie powiodła się", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+
+        long millis = System.currentTimeMillis() - started;
+        log.info("TripPlanner: Migracja czasów DRIVE zakończona w " + millis + " ms (zapisano " + updated.get()
+                + ", bez zmian " + unchanged.get() + ", błędne " + invalid.get() + ").");
+        return Stream.of(new MigrationStats(total, updated.get(), unchanged.get(), invalid.get(), failed.get(), millis));
+    }
+
+    private void migrateBatch(long[] ids, int from, int to, AtomicLong updated, AtomicLong unchanged, AtomicLong invalid) {
+        long batchUpdated = 0, batchUnchanged = 0, batchInvalid = 0;
+        try (Transaction batchTx = db.beginTx()) {
+            for (int i = from; i < to; i++) {
+                Relationship drive;
+                try {
+                    drive = batchTx.getRelationshipById(ids[i]);
+                } catch (NotFoundException e) {
+                    continue; // Usunięta w międzyczasie
+                }
+
+                Object depObj = drive.getProperty("dep_time", null);
+                Object arrObj = drive.getProperty("arr_time", null);
+                int depSec = depObj != null ? GtfsTime.parse(depObj.toString()) : GtfsTime.INVALID;
+                int arrSec = arrObj != null ? GtfsTime.parse(arrObj.toString()) : GtfsTime.INVALID;
+                if (depSec == GtfsTime.INVALID || arrSec == GtfsTime.INVALID) {
+                    batchInvalid++;
+                    continue;
+                }
+
+                if (sameSeconds(drive.getProperty("dep_time_sec", null), depSec)
+                        && sameSeconds(drive.getProperty("arr_time_sec", null), arrSec)) {
+                    batchUnchanged++;
+                    continue;
+                }
+                drive.setProperty("dep_time_sec", depSec);
+                drive.setProperty("arr_time_sec", arrSec);
+                batchUpdated++;
+            }
+            batchTx.commit();
+        }
+        // Liczniki zwiększamy dopiero po commit - wycofana paczka nie zawyża wyniku
+        updated.addAndGet(batchUpdated);
+        unchanged.addAndGet(batchUnchanged);
+        invalid.addAndGet(batchInvalid);
+    }
+
+    private static boolean sameSeconds(Object stored, int seconds) {
+        return stored instanceof Number && ((Number) stored).longValue() == seconds;
+    }
+
+    /**
+     * Buduje krawędzie WALK między przystankami odległymi o co najwyżej radiusMeters (siatka SpatialIndex
+     * zamiast iloczynu kartezjańskiego Stop x Stop). time_sec = odległość haversine / walkSpeed, min. 60 s.
+     *
+     * Działa jak MERGE: krawędzie typu GENERATED_GRID są tworzone, aktualizowane albo usuwane, gdy para
+     * wypadła z promienia; ręczne WALK (HUB_TRANSFER, GENERATED_BRIDGE) zostają nietknięte i blokują
+     * dublowanie. Przystanki dzielimy na paczki wykonywane równolegle w osobnych transakcjach.
+     */
+    @Procedure(name = "custom.generateWalks", mode = Mode.WRITE)
+    public Stream<WalkStats> generateWalks(
+            @Name(value = "radiusMeters", defaultValue = "300") Double radiusMeters,
+            @Name(value = "walkSpeed", defaultValue = "1.2") Double walkSpeed,
+            @Name(value = "batchSize", defaultValue = "1000") Long batchSize,
+            @Name(value = "threads", defaultValue = "4") Long threads
+    ) {
+        long started = System.currentTimeMillis();
+        double radius = radiusMeters == null ? 300 : Math.max(0, radiusMeters);
+        double speed = walkSpeed == null || walkSpeed <= 0 ? SpatialIndex.WALK_SPEED_MPS : walkSpeed;
+        int chunk = batchSize == null ? 1000 : (int) Math.max(1, Math.min(batchSize, Integer.MAX_VALUE));
+        int workers = threads == null ? 4 : (int) Math.max(1, Math.min(threads, 64));
+
+        // 1. Siatka nad współrzędnymi przystanków (budowana w transakcji wywołującej)
+        SpatialIndex stops = SpatialIndex.forLabel(db, tx, "Stop");
+        int total = stops.size;
+        int batches = (total + chunk - 1) / chunk;
+        log.info("TripPlanner: Generowanie WALK (promień " + radius + " m) dla " + total + " przystanków, "
+                + batches + " paczek, " + workers + " wątków.");
+
+        AtomicLong created = new AtomicLong();
+        AtomicLong updated = new AtomicLong();
+        AtomicLong unchanged = new AtomicLong();
+        AtomicLong deleted = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        AtomicLong done = new AtomicLong();
+
+        // 2. Paczki przystanków startowych; konflikt blokad między paczkami kończy się ponowieniem
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        try {
+            List<Future<?>> futures = new ArrayList<>(batches);
+            for (int b = 0; b < batches; b++) {
+                int from = b * chunk;
+                int to = Math.min(total, from + chunk);
+                futures.add(pool.submit(() -> {
+                    long[] counts = null;
+                    for (int attempt = 1; attempt <= MAX_ATTEMPTS && counts == null; attempt++) {
+                        try {
+                            counts = walkBatch(stops, from, to, radius, speed);
+                        } catch (RuntimeException e) {
+                            if (attempt == MAX_ATTEMPTS) {
+                                failed.incrementAndGet();
+                                log.error("TripPlanner: Paczka WALK [" + from + ", " + to + ") wycofana: " + e.getMessage());
+                            }
+                        }
+                    }
+                    if (counts != null) {
+                        created.addAndGet(counts[0]);
+                        updated.addAndGet(counts[1]);
+                        unchanged.addAndGet(counts[2]);
+                        deleted.addAndGet(counts[3]);
+                    }
+                    log.info("TripPlanner: Generowanie WALK " + done.incrementAndGet() + "/" + batches + " paczek.");
+                }));
+            }
+            for (Future<?> future : futures) future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Generowanie WALK przerwane", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Generowanie WALK nie powiodło się", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+
+        long millis = System.currentTimeMillis() - started;
+        log.info("TripPlanner: WALK gotowe w " + millis + " ms (nowe " + created.get() + ", zmienione " + updated.get()
+                + ", usunięte " + deleted.get() + "). Wywołaj custom.rebuildTimetable, żeby routing je widział.");
+        return Stream.of(new WalkStats(total, created.get(), updated.get(), unchanged.get(), deleted.get(), failed.get(), millis));
+    }
+
+    // Jedna paczka przystanków startowych w jednej transakcji; zwraca {nowe, zmienione, bez zmian, usunięte}
+    private long[] walkBatch(SpatialIndex stops, int from, int to, double radius, double speed) {
+        long[] counts = new long[4];
+        try (Transaction batchTx = db.beginTx()) {
+            for (int i = from; i < to; i++) {
+                Node source = batchTx.getNodeById(stops.nodeIds[i]);
+
+                // Istniejące WALK: wygenerowane (do aktualizacji) i ręczne (nie dublujemy ich)
+                Map<Long, Relationship> generated = new HashMap<>();
+                Set<Long> manual = new HashSet<>();
+                for (Relationship walk : source.getRelationships(Direction.OUTGOING, WALK)) {
+                    long target = walk.getEndNode().getId();
+                    if (GENERATED_WALK.equals(walk.getProperty("type", null))) generated.put(target, walk);
+                    else manual.add(target);
+                }
+
+                for (SpatialIndex.Hit hit : stops.within(stops.lats[i], stops.lons[i], radius)) {
+                    long target = stops.nodeIds[hit.point];
+                    if (target == stops.nodeIds[i] || manual.contains(target)) continue;
+
+                    int seconds = Math.max(MIN_WALK_SECONDS, (int) Math.ceil(hit.distance / speed));
+                    int meters = (int) Math.round(hit.distance);
+                    Relationship walk = generated.remove(target);
+                    if (walk == null) {
+                        walk = source.createRelationshipTo(batchTx.getNodeById(target), WALK);
+                        walk.setProperty("type", GENERATED_WALK);
+                        counts[0]++;
+                    } else if (sameSeconds(walk.getProperty("time_sec", null), seconds)
+                            && sameSeconds(walk.getProperty("distance_m", null), meters)) {
+                        counts[2]++;
+                        continue;
+                    } else {
+                        counts[1]++;
+                    }
+                    walk.setProperty("time_sec", seconds);
+                    walk.setProperty("distance_m", meters);
+                }
+
+                // Co zostało w mapie, jest już poza promieniem
+                for (Relationship stale : generated.values()) {
+                    stale.delete();
+                    counts[3]++;
+                }
+            }
+            batchTx.commit();
+        }
+        return counts;
+    }
+
+    /**
+     * Grupuje tripy o tej samej sekwencji przystanków (STOPS_AT) we wzorce i zapisuje każdy jako węzeł
+     * :Pattern z listą stop_id, listą trip_id i kolumnowymi tablicami arr_times / dep_times. Poprzednie
+     * węzły :Pattern są zastępowane w tej samej transakcji. Po zapisie snapshot rozkładu i RAPTOR czytają
+     * wzorce zamiast krawędzi DRIVE / STOPS_AT, dopóki liczba krawędzi DRIVE się nie zmieni.
+     */
+    @Procedure(name = "custom.buildTripPatterns", mode = Mode.WRITE)
+    public Stream<PatternStats> buildTripPatterns() {
+        long started = System.currentTimeMillis();
+
+        // 1. Wzorce zawsze z STOPS_AT (stare węzły :Pattern mogą być nieaktualne po imporcie)
+        TimetableSnapshot timetable = TimetableSnapshot.build(tx);
+        TripPatterns patterns = TripPatterns.buildFromStopTimes(timetable, tx);
+        if (patterns.patternCount == 0) {
+            // Bez STOPS_AT nie nadpisujemy zapisanych wzorców pustym wynikiem
+            log.warn("TripPlanner: Brak sekwencji STOPS_AT - zapisane wzorce zostają bez zmian.");
+            return Stream.of(new PatternStats(0, 0, 0, 0, 0, System.currentTimeMillis() - started));
+        }
+
+        // 2. Usuwamy poprzednio zapisane wzorce
+        long deleted = 0;
+        try (ResourceIterator<Node> stored = tx.findNodes(TripPatterns.PATTERN_LABEL)) {
+            while (stored.hasNext()) {
+                stored.next().delete();
+                deleted++;
+            }
+        }
+
+        // 3. Jeden węzeł na wzorzec; czasy k-tego tripu na i-tym przystanku pod indeksem k * długość + i
+        String[] stopIds = new String[timetable.stopCount];
+        long drives = TripPatterns.driveCount(tx);
+        long written = 0, trips = 0, connections = 0, skipped = 0;
+        for (int p = 0; p < patterns.patternCount; p++) {
+            int len = patterns.stopsInPattern(p);
+            String[] patternStops = new String[len];
+            boolean complete = true;
+            for (int i = 0; i < len && complete; i++) {
+                patternStops[i] = stopId(timetable, stopIds, patterns.stopAt(p, i));
+                complete = patternStops[i] != null;
+            }
+            if (!complete) {
+                skipped++;
+                continue;
+            }
+
+            int count = patterns.tripsInPattern(p);
+            String[] patternTrips = new String[count];
+            for (int k = 0; k < count; k++) patternTrips[k] = timetable.tripIds[patterns.tripAt(p, k)];
+            int from = patterns.timeOffsets[p], to = patterns.timeOffsets[p + 1];
+
+            Node pattern = tx.createNode(TripPatterns.PATTERN_LABEL);
+            pattern.setProperty(TripPatterns.PATTERN_ID, written);
+            pattern.setProperty(TripPatterns.PATTERN_STOPS, patternStops);
+            pattern.setProperty(TripPatterns.PATTERN_TRIPS, patternTrips);
+            pattern.setProperty(TripPatterns.PATTERN_ARR, Arrays.copyOfRange(patterns.arrTimes, from, to));
+            pattern.setProperty(TripPatterns.PATTERN_DEP, Arrays.copyOfRange(patterns.depTimes, from, to));
+            pattern.setProperty(TripPatterns.PATTERN_DRIVES, drives);
+            written++;
+            trips += count;
+            connections += (long) count * (len - 1);
+        }
+
+        long millis = System.currentTimeMillis() - started;
+        log.info("TripPlanner: Zapisano " + written + " wzorców (" + trips + " tripów, " + connections
+                + " połączeń) w " + millis + " ms. Wywołaj custom.rebuildTimetable, żeby routing ich użył.");
+        return Stream.of(new PatternStats(written, trips, connections, skipped, deleted, millis));
+    }
+
+    private String stopId(TimetableSnapshot timetable, String[] cache, int stop) {
+        if (cache[stop] == null) {
+            Object stopId = tx.getNodeById(timetable.stopNodeIds[stop]).getProperty("stop_id", null);
+            cache[stop] = stopId == null ? null : stopId.toString();
+        }
+        return cache[stop];
+    }
+}
@@ -0,0 +1,47 @@
+package org.example;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Współdzielone (statyczne) snapshoty rozkładu - jeden na bazę danych.
+ * Instancje procedur są tworzone na każde wywołanie, więc stan musi żyć tutaj.
+ */
+final class TimetableRegistry {
+
+    private static final Map<String, TimetableSnapshot> SNAPSHOTS = new ConcurrentHashMap<>();
+    private static final Map<String, TripPatterns> PATTERNS = new ConcurrentHashMap<>();
+    private static final Map<String, ConnectionScanRouter.Connections> CONNECTIONS = new ConcurrentHashMap<>();
+
+    private TimetableRegistry() {
+    }
+
+    // Buduje snapshot przy pierwszym użyciu; równoległe wywołania czekają na jedną budowę
+    static TimetableSnapshot get(GraphDatabaseService db, Transaction tx) {
+        return SNAPSHOTS.computeIfAbsent(db.databaseName(), name -> TimetableSnapshot.build(tx));
+    }
+
+    // Po przeładowaniu GTFS: budujemy nowy obraz i podmieniamy go atomowo
+    static TimetableSnapshot rebuild(GraphDatabaseService db, Transaction tx) {
+        TimetableSnapshot fresh = TimetableSnapshot.build(tx);
+        SNAPSHOTS.put(db.databaseName(), fresh);
+        return fresh;
+    }
+
+    // Wzorce RAPTOR-a są liczone na indeksach snapshotu, więc budujemy je ponownie po jego podmianie
+    static TripPatterns patterns(GraphDatabaseService db, Transaction tx) {
+        TimetableSnapshot timetable = get(db, tx);
+        return PATTERNS.compute(db.databaseName(), (name, cached) ->
+                cached != null && cached.timetable == timetable ? cached : TripPatterns.build(timetable, tx));
+    }
+
+    // Płaska tablica połączeń dla CSA - pochodna snapshotu, bez dodatkowych odczytów z grafu
+    static ConnectionScanRouter.Connections connections(GraphDatabaseService db, Transaction tx) {
+        TimetableSnapshot timetable = get(db, tx);
+        return CONNECTIONS.compute(db.databaseName(), (name, cached) ->
+                cached != null && cached.timetable == timetable ? cached : ConnectionScanRouter.Connections.build(timetable));
+    }
+}
@@ -0,0 +1,495 @@
+package org.example;
+
+import org.neo4j.graphdb.*;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Niemutowalny, zwarty obraz rozkładu jazdy budowany raz na bazę danych.
+ *
+ * Przystanki i tripy są zamienione na gęste indeksy int, a krawędzie DRIVE leżą
+ * w tablicach int[] w układzie CSR: połączenia wychodzące z przystanku s zajmują
+ * zakres [edgeOffsets[s], edgeOffsets[s + 1]). W obrębie przystanku są pogrupowane po
+ * następnym przystanku (grupy [groupStart[g], groupStart[g + 1]) dla g z zakresu
+ * [groupOffsets[s], groupOffsets[s + 1])), a w grupie posortowane po czasie odjazdu.
+ * Przejścia piesze WALK (time_sec) są trzymane analogicznie w walkOffsets/walkTarget/walkSeconds.
+ * Połączenia czytamy z zapisanych wzorców :Pattern (custom.buildTripPatterns), a gdy ich nie ma albo są nieaktualne -
+ * z krawędzi DRIVE.
+ * Dzięki temu wyszukiwanie trasy nie dotyka magazynu właściwości Neo4j.
+ */
+final class TimetableSnapshot {
+
+    private static final RelationshipType DRIVE = RelationshipType.withName("DRIVE");
+    private static final RelationshipType WALK = RelationshipType.withName("WALK");
+    private static final int DEFAULT_WALK_SECONDS = 60;
+    private static final Label STOP_LABEL = Label.label("Stop");
+    private static final Label TRIP_LABEL = Label.label("Trip");
+    private static final AtomicLong VERSIONS = new AtomicLong();
+
+    // --- Przystanki ---
+    final int stopCount;
+    final long[] stopNodeIds;
+    final String[] stopNames;
+    final double[] stopLats;        // NaN, jeśli przystanek nie ma położenia
+    final double[] stopLons;
+    private final Map<Long, Integer> stopIndexByNodeId;
+    private final Map<String, Integer> stopIndexByStopId;
+
+    // --- Tripy (trip_id zinternowane do int) ---
+    final int tripCount;
+    final String[] tripIds;
+    final String[] tripHeadsigns;   // null, jeśli DRIVE wskazuje trip bez węzła Trip
+    private final Map<String, Integer> tripIndexById;
+
+    // --- Połączenia DRIVE (CSR, grupy po następnym przystanku, w grupie posortowane po odjeździe) ---
+    final int[] edgeOffsets;
+    final int[] groupOffsets;
+    final int[] groupStart;
+    final int[] edgeTarget;
+    final int[] edgeDep;
+    final int[] edgeArr;
+    final int[] edgeTrip;
+    final int[] edgeHop;            // Numer odcinka w kursie: 0 = odjazd z pierwszego przystanku (klucz DelayOverlay)
+
+    // --- Przejścia piesze WALK (CSR) ---
+    final int[] walkOffsets;
+    final int[] walkTarget;
+    final int[] walkSeconds;
+
+    final boolean fromPatterns;     // Połączenia odtworzone z węzłów :Pattern zamiast DRIVE
+
+    // Największa prędkość pojazdu w sieci (m/s, po linii prostej) - dolne ograniczenie czasu dla A*
+    final double maxSpeedMps;
+    // Najdłuższy (po linii prostej) przejazd złożony tylko z odcinków 0 s albo przejście WALK 0 s - A* odejmuje go od odległości
+    final double zeroRideMeters;
+
+    final long buildMillis;
+    final long version;             // Rośnie z każdą budową snapshotu - po zmianie cache tras jest nieaktualny
+
+    private TimetableSnapshot(Builder b, long buildMillis) {
+        this.stopCount = b.stopNodeIds.length;
+        this.stopNodeIds = b.stopNodeIds;
+        this.stopNames = b.stopNames;
+        this.stopLats = b.stopLats;
+        this.stopLons = b.stopLons;
+        this.stopIndexByNodeId = b.stopIndexByNodeId;
+        this.stopIndexByStopId = b.stopIndexByStopId;
+        this.tripCount = b.tripIds.size();
+        this.tripIds = b.tripIds.toArray(new String[0]);
+        this.tripHeadsigns = b.tripHeadsigns.toArray(new String[0]);
+        this.tripIndexById = b.tripIndexById;
+        this.edgeOffsets = b.edgeOffsets;
+        this.groupOffsets = b.groupOffsets;
+        this.groupStart = b.groupStart;
+        this.edgeTarget = b.edgeTarget;
+        this.edgeDep = b.edgeDep;
+        this.edgeArr = b.edgeArr;
+        this.edgeTrip = b.edgeTrip;
+        this.edgeHop = b.edgeHop;
+        this.walkOffsets = b.walkOffsets;
+        this.walkTarget = b.walkTarget;
+        this.walkSeconds = b.walkSeconds;
+        this.fromPatterns = b.fromPatterns;
+        this.maxSpeedMps = b.maxSpeedMps;
+        this.zeroRideMeters = b.zeroRideMeters;
+        this.buildMillis = buildMillis;
+        this.version = VERSIONS.incrementAndGet();
+    }
+
+    int stopIndex(Node node) {
+        return stopIndex(node.getId());
+    }
+
+    int stopIndex(long nodeId) {
+        Integer idx = stopIndexByNodeId.get(nodeId);
+        return idx == null ? -1 : idx;
+    }
+
+    int stopIndexByStopId(String stopId) {
+        Integer idx = stopIndexByStopId.get(stopId);
+        return idx == null ? -1 : idx;
+    }
+
+    int tripIndex(String tripId) {
+        Integer idx = tripIndexById.get(tripId);
+        return idx == null ? -1 : idx;
+    }
+
+    int connectionCount() {
+        return edgeTarget.length;
+    }
+
+    // Etykieta linii w formacie zwracanym przez TripPlanner
+    String tripLabel(int trip) {
+        String headsign = tripHeadsigns[trip];
+        if (headsign == null) return tripIds[trip];
+        return tripIds[trip] + " (Kier: " + headsign + ")";
+    }
+
+    static TimetableSnapshot build(Transaction tx) {
+        long started = System.currentTimeMillis();
+        Builder b = new Builder();
+        b.loadStops(tx);
+        b.loadTrips(tx);
+        if (!b.loadPatterns(tx)) b.loadDrives(tx);
+        b.loadWalks(tx);
+        b.computeMaxSpeed();
+        return new TimetableSnapshot(b, System.currentTimeMillis() - started);
+    }
+
+    private static final class Builder {
+        long[] stopNodeIds;
+        String[] stopNames;
+        double[] stopLats;
+        double[] stopLons;
+        final Map<Long, Integer> stopIndexByNodeId = new HashMap<>();
+        final Map<String, Integer> stopIndexByStopId = new HashMap<>();
+
+        final List<String> tripIds = new ArrayList<>();
+        final List<String> tripHeadsigns = new ArrayList<>();
+        final Map<String, Integer> tripIndexById = new HashMap<>();
+
+        int[] edgeOffsets;
+        int[] groupOffsets;
+        int[] groupStart;
+        int[] edgeTarget;
+        int[] edgeDep;
+        int[] edgeArr;
+        int[] edgeTrip;
+        int[] edgeHop;
+
+        int[] walkOffsets;
+        int[] walkTarget;
+        int[] walkSeconds;
+
+        boolean fromPatterns;
+        double maxSpeedMps;
+        double zeroRideMeters;
+
+        void loadStops(Transaction tx) {
+            List<Long> ids = new ArrayList<>();
+            List<String> names = new ArrayList<>();
+            List<double[]> coordinates = new ArrayList<>();
+            try (ResourceIterator<Node> stops = tx.findNodes(STOP_LABEL)) {
+                while (stops.hasNext()) {
+                    Node stop = stops.next();
+                    stopIndexByNodeId.put(stop.getId(), ids.size());
+                    ids.add(stop.getId());
+                    names.add((String) stop.getProperty("stop_name", "Unknown"));
+                    Object stopId = stop.getProperty("stop_id", null);
+                    if (stopId != null) stopIndexByStopId.put(stopId.toString(), ids.size() - 1);
+                    coordinates.add(SpatialIndex.coordinates(stop));
+                }
+            }
+            stopNodeIds = new long[ids.size()];
+            for (int i = 0; i < stopNodeIds.length; i++) stopNodeIds[i] = ids.get(i);
+            stopNames = names.toArray(new String[0]);
+            stopLats = new double[ids.size()];
+            stopLons = new double[ids.size()];
+            for (int i = 0; i < stopLats.length; i++) {
+                double[] latLon = coordinates.get(i);
+                stopLats[i] = latLon == null ? Double.NaN : latLon[0];
+                stopLons[i] = latLon == null ? Double.NaN : latLon[1];
+            }
+        }
+
+        void loadTrips(Transaction tx) {
+            try (ResourceIterator<Node> trips = tx.findNodes(TRIP_LABEL)) {
+                while (trips.hasNext()) {
+                    Node trip = trips.next();
+                    Object tripId = trip.getProperty("trip_id", null);
+                    if (tripId == null) continue;
+                    internTrip(tripId.toString(), (String) trip.getProperty("trip_headsign", ""));
+                }
+            }
+        }
+
+        int internTrip(String tripId, String headsign) {
+            Integer idx = tripIndexById.get(tripId);
+            if (idx != null) return idx;
+            int next = tripIds.size();
+            tripIds.add(tripId);
+            tripHeadsigns.add(headsign);
+            tripIndexById.put(tripId, next);
+            return next;
+        }
+
+        void loadDrives(Transaction tx) {
+            // 1. Zbieramy krawędzie w kolejności z magazynu
+            IntList src = new IntList(), dst = new IntList(), dep = new IntList(), arr = new IntList(), trip = new IntList();
+            try (ResourceIterator<Relationship> drives = tx.findRelationships(DRIVE)) {
+                while (drives.hasNext()) {
+                    Relationship drive = drives.next();
+                    Integer from = stopIndexByNodeId.get(drive.getStartNode().getId());
+                    Integer to = stopIndexByNodeId.get(drive.getEndNode().getId());
+                    if (from == null || to == null) continue;
+
+                    Object tripObj = drive.getProperty("trip_id", null);
+                    if (tripObj == null) continue;
+
+                    // Po custom.migrateDriveTimes czytamy gotowe sekundy, inaczej parsujemy "HH:MM:SS"
+                    int depSec = seconds(drive, "dep_time_sec", "dep_time");
+                    int arrSec = seconds(drive, "arr_time_sec", "arr_time");
+                    if (depSec == GtfsTime.INVALID || arrSec == GtfsTime.INVALID) continue;
+                    if (arrSec < depSec) continue;   // Uszkodzony wpis - przyjazd przed odjazdem
+
+                    src.add(from);
+                    dst.add(to);
+                    dep.add(depSec);
+                    arr.add(arrSec);
+                    trip.add(internTrip(tripObj.toString(), null));
+                }
+            }
+            buildEdges(src, dst, dep, arr, trip);
+        }
+
+        // Każda para kolejnych przystanków wzorca to jedno połączenie tripu (jak DRIVE z 01_CREATE_DRIVE)
+        boolean loadPatterns(Transaction tx) {
+            IntList src = new IntList(), dst = new IntList(), dep = new IntList(), arr = new IntList(), trip = new IntList();
+            TripPatterns.readStored(tx, id -> stopIndexByStopId.getOrDefault(id, -1), id -> internTrip(id, null), times -> {
+                for (int i = 0; i + 1 < times.stops.length; i++) {
+                    if (times.arr[i + 1] < times.dep[i]) continue;
+                    src.add(times.stops[i]);
+                    dst.add(times.stops[i + 1]);
+                    dep.add(times.dep[i]);
+                    arr.add(times.arr[i + 1]);
+                    trip.add(times.trip);
+                }
+            });
+            if (src.size == 0) return false;
+            fromPatterns = true;
+            buildEdges(src, dst, dep, arr, trip);
+            return true;
+        }
+
+        private void buildEdges(IntList src, IntList dst, IntList dep, IntList arr, IntList trip) {
+            // 2. Porządek (przystanek, następny przystanek, odjazd): najpierw po odjeździe -
+            //    klucz (odjazd << 32 | numer krawędzi) sortuje się prymitywnie - potem dwa
+            //    stabilne sortowania przez zliczanie, po przystanku docelowym i źródłowym
+            int n = src.size;
+            long[] keys = new long[n];
+            for (int i = 0; i < n; i++) keys[i] = ((long) dep.data[i] << 32) | i;
+            Arrays.sort(keys);
+            int[] order = new int[n];
+            for (int pos = 0; pos < n; pos++) order[pos] = (int) keys[pos];
+            order = stableSortBy(order, dst.data, new int[stopNodeIds.length + 1]);
+            edgeOffsets = new int[stopNodeIds.length + 1];
+            order = stableSortBy(order, src.data, edgeOffsets);
+
+            edgeTarget = new int[n];
+            edgeDep = new int[n];
+            edgeArr = new int[n];
+            edgeTrip = new int[n];
+            for (int pos = 0; pos < n; pos++) {
+                int i = order[pos];
+                edgeTarget[pos] = dst.data[i];
+                edgeDep[pos] = dep.data[i];
+                edgeArr[pos] = arr.data[i];
+                edgeTrip[pos] = trip.data[i];
+            }
+
+            // 3. Grupy: kolejne krawędzie przystanku do tego samego następnego przystanku
+            IntList starts = new IntList();
+            groupOffsets = new int[stopNodeIds.length + 1];
+            for (int s = 0; s < stopNodeIds.length; s++) {
+                groupOffsets[s] = starts.size;
+                for (int e = edgeOffsets[s]; e < edgeOffsets[s + 1]; e++) {
+                    if (e == edgeOffsets[s] || edgeTarget[e] != edgeTarget[e - 1]) starts.add(e);
+                }
+            }
+            groupOffsets[stopNodeIds.length] = starts.size;
+            starts.add(n);
+            groupStart = starts.toArray();
+
+            // 4. Numer odcinka w kursie: krawędzie tripu po (odjazd, przyjazd); kursy mają kilkadziesiąt
+            //    odcinków, więc wystarcza sortowanie przez wstawianie. Remisy (odcinki 0 s w GTFS
+            //    z dokładnością do minuty) układamy w łańcuch przystanków, bo kolejność CSR jest przypadkowa
+            int[] edgeSource = new int[n];
+            for (int st = 0; st < stopNodeIds.length; st++) {
+                for (int e = edgeOffsets[st]; e < edgeOffsets[st + 1]; e++) edgeSource[e] = st;
+            }
+            int[] all = new int[n];
+            for (int e = 0; e < n; e++) all[e] = e;
+            int[] tripOffsets = new int[tripIds.size() + 1];
+            int[] byTrip = stableSortBy(all, edgeTrip, tripOffsets);
+            edgeHop = new int[n];
+            for (int t = 0; t < tripIds.size(); t++) {
+                int from = tripOffsets[t], to = tripOffsets[t + 1];
+                for (int i = from + 1; i < to; i++) {
+                    int e = byTrip[i];
+                    int j = i - 1;
+                    while (j >= from && (edgeDep[byTrip[j]] > edgeDep[e]
+                            || edgeDep[byTrip[j]] == edgeDep[e] && edgeArr[byTrip[j]] > edgeArr[e])) {
+                        byTrip[j + 1] = byTrip[j];
+                        j--;
+                    }
+                    byTrip[j + 1] = e;
+                }
+                chainTies(byTrip, from, to, edgeSource);
+                for (int i = from; i < to; i++) edgeHop[byTrip[i]] = i - from;
+            }
+        }
+
+        /**
+         * W seriach krawędzi kursu o równym (odjazd, przyjazd) stawia najpierw krawędź wychodzącą z przystanku,
+         * na którym skończyła się poprzednia, a bez takiej - krawędź, do której źródła nie prowadzi żadna inna z serii.
+         */
+        private void chainTies(int[] byTrip, int from, int to, int[] edgeSource) {
+            for (int a = from, b; a < to; a = b) {
+                b = a + 1;
+                while (b < to && edgeDep[byTrip[b]] == edgeDep[byTrip[a]] && edgeArr[byTrip[b]] == edgeArr[byTrip[a]]) b++;
+                if (b - a < 2) continue;
+
+                int current = a > from ? edgeTarget[byTrip[a - 1]] : -1;
+                for (int k = a; k < b; k++) {
+                    int pick = -1;
+                    for (int i = k; i < b && pick < 0; i++) {
+                        if (edgeSource[byTrip[i]] == current) pick = i;
+                    }
+                    for (int i = k; i < b && pick < 0; i++) {
+                        boolean reached = false;
+                        for (int j = k; j < b && !reached; j++) {
+                            reached = j != i && edgeTarget[byTrip[j]] == edgeSource[byTrip[i]];
+                        }
+                        if (!reached) pick = i;
+                    }
+                    if (pick < 0) pick = k;
+                    int e = byTrip[pick];
+                    byTrip[pick] = byTrip[k];
+                    byTrip[k] = e;
+                    current = edgeTarget[e];
+                }
+            }
+        }
+
+        // Stabilne sortowanie przez zliczanie po kluczu (numer przystanku albo tripu); offsets dostaje granice kubełków (CSR)
+        private static int[] stableSortBy(int[] order, int[] keyOf, int[] offsets) {
+            int buckets = offsets.length - 1;
+            for (int i : order) offsets[keyOf[i] + 1]++;
+            for (int k = 0; k < buckets; k++) offsets[k + 1] += offsets[k];
+            int[] sorted = new int[order.length];
+            int[] cursor = Arrays.copyOf(offsets, buckets);
+            for (int i : order) sorted[cursor[keyOf[i]]++] = i;
+            return sorted;
+        }
+
+        private static int seconds(Relationship drive, String secondsKey, String textKey) {
+            Object value = drive.getProperty(secondsKey, null);
+            if (value instanceof Number) return ((Number) value).intValue();
+            value = drive.getProperty(textKey, null);
+            return value != null ? GtfsTime.parse(value.toString()) : GtfsTime.INVALID;
+        }
+
+        // Prędkość liczymy po odcinkach kursu z czasem > 0 sklejonych z sąsiednimi odcinkami 0 s (czasy GTFS
+        // zaokrąglone do minut): wsiadamy na dowolnym przystanku serii 0 s przed odcinkiem, wysiadamy na dowolnym
+        // serii po nim. Każdy przejazd z czasem > 0 dzieli się na takie kawałki, więc mieści się w ograniczeniu.
+        // Przejazd wyłącznie po odcinkach 0 s nie ma skończonej prędkości - jego najdłuższą odległość zapisujemy
+        // w zeroRideMeters. Bierzemy też przejścia WALK, żeby ograniczenie było dolne także z przesiadkami pieszymi.
+        // 0 = brak prędkości, A* działa jak Dijkstra
+        void computeMaxSpeed() {
+            int n = edgeTarget.length;
+            int[] tripOffsets = new int[tripIds.size() + 1];
+            for (int e = 0; e < n; e++) tripOffsets[edgeTrip[e] + 1]++;
+            for (int t = 0; t < tripIds.size(); t++) tripOffsets[t + 1] += tripOffsets[t];
+            int[] byTrip = new int[n];
+            int[] edgeSource = new int[n];
+            for (int s = 0; s < stopNodeIds.length; s++) {
+                for (int e = edgeOffsets[s]; e < edgeOffsets[s + 1]; e++) {
+                    edgeSource[e] = s;
+                    byTrip[tripOffsets[edgeTrip[e]] + edgeHop[e]] = e;
+                }
+            }
+
+            double max = 0, zero = 0;
+            for (int t = 0; t < tripIds.size(); t++) {
+                int from = tripOffsets[t], to = tripOffsets[t + 1];
+                for (int k = from; k < to; k++) {
+                    int hop = byTrip[k];
+                    int seconds = edgeArr[hop] - edgeDep[hop];
+                    if (seconds <= 0) {
+                        // Seria 0 s zaczynająca się w k: każdy przejazd wewnątrz niej
+                        if (k > from && edgeArr[byTrip[k - 1]] == edgeDep[byTrip[k - 1]]) continue;
+                        int last = k;
+                        while (last + 1 < to && edgeArr[byTrip[last + 1]] == edgeDep[byTrip[last + 1]]) last++;
+                        for (int a = k; a <= last; a++) {
+                            for (int b = a; b <= last; b++) zero = Math.max(zero, meters(edgeSource[byTrip[a]], edgeTarget[byTrip[b]]));
+                        }
+                        continue;
+                    }
+                    int first = k, last = k;
+                    while (first > from && edgeArr[byTrip[first - 1]] == edgeDep[byTrip[first - 1]]) first--;
+                    while (last + 1 < to && edgeArr[byTrip[last + 1]] == edgeDep[byTrip[last + 1]]) last++;
+                    for (int a = first; a <= k; a++) {
+                        int board = edgeSource[byTrip[a]];
+                        if (Double.isNaN(stopLats[board])) continue;
+                        for (int b = k; b <= last; b++) max = Math.max(max, speed(board, edgeTarget[byTrip[b]], seconds));
+                    }
+                }
+            }
+            for (int s = 0; s < stopNodeIds.length; s++) {
+                if (Double.isNaN(stopLats[s])) continue;
+                for (int w = walkOffsets[s]; w < walkOffsets[s + 1]; w++) {
+                    max = Math.max(max, speed(s, walkTarget[w], walkSeconds[w]));
+                    if (walkSeconds[w] <= 0) zero = Math.max(zero, meters(s, walkTarget[w]));
+                }
+            }
+            maxSpeedMps = max;
+            zeroRideMeters = zero;
+        }
+
+        private double speed(int from, int to, int seconds) {
+            if (seconds <= 0) return 0;
+            return meters(from, to) / seconds;
+        }
+
+        // 0, gdy któryś przystanek nie ma położenia
+        private double meters(int from, int to) {
+            if (Double.isNaN(stopLats[from]) || Double.isNaN(stopLats[to])) return 0;
+            return SpatialIndex.distanceMeters(stopLats[from], stopLons[from], stopLats[to], stopLons[to]);
+        }
+
+        void loadWalks(Transaction tx) {
+            IntList src = new IntList(), dst = new IntList(), sec = new IntList();
+            try (ResourceIterator<Relationship> walks = tx.findRelationships(WALK)) {
+                while (walks.hasNext()) {
+                    Relationship walk = walks.next();
+                    Integer from = stopIndexByNodeId.get(walk.getStartNode().getId());
+                    Integer to = stopIndexByNodeId.get(walk.getEndNode().getId());
+                    if (from == null || to == null) continue;
+                    src.add(from);
+                    dst.add(to);
+                    sec.add(((Number) walk.getProperty("time_sec", DEFAULT_WALK_SECONDS)).intValue());
+                }
+            }
+
+            walkOffsets = new int[stopNodeIds.length + 1];
+            for (int i = 0; i < src.size; i++) walkOffsets[src.data[i] + 1]++;
+            for (int s = 0; s < stopNodeIds.length; s++) walkOffsets[s + 1] += walkOffsets[s];
+
+            walkTarget = new int[src.size];
+            walkSeconds = new int[src.size];
+            int[] cursor = Arrays.copyOf(walkOffsets, stopNodeIds.length);
+            for (int i = 0; i < src.size; i++) {
+                int pos = cursor[src.data[i]]++;
+                walkTarget[pos] = dst.data[i];
+                walkSeconds[pos] = sec.data[i];
+            }
+        }
+    }
+
+    // Minimalna rosnąca tablica int (bez boxingu przy ładowaniu milionów krawędzi)
+    static final class IntList {
+        int[] data = new int[1024];
+        int size;
+
+        void add(int value) {
+            if (size == data.length) data = Arrays.copyOf(data, size * 2);
+            data[size++] = value;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(data, size);
+        }
+    }
+}
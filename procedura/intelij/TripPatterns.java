@@ -0,0 +1,436 @@
+package org.example;
+
+import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventListener;
+import org.neo4j.graphdb.event.TransactionEventListenerAdapter;
+
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * Model "tras" (wzorców) dla RAPTOR-a: tripy o identycznej sekwencji przystanków
+ * są zgrupowane razem, a czasy trzymane kolumnowo.
+ *
+ * Dla wzorca p:
+ *  - przystanki:  patternStops[patternStopOffsets[p] .. patternStopOffsets[p + 1])
+ *  - tripy:       patternTrips[patternTripOffsets[p] .. patternTripOffsets[p + 1]), posortowane po odjeździe
+ *  - czasy:       arr/dep[timeOffsets[p] + k * długość + i] dla k-tego tripu na i-tym przystanku
+ * Tripy we wzorcu nie wyprzedzają się (FIFO), więc odjazdy na każdym przystanku są rosnące.
+ *
+ * Wzorce można zapisać w grafie (custom.buildTripPatterns) jako węzły :Pattern z listą przystanków,
+ * listą tripów i kolumnowymi tablicami czasów. Wtedy zarówno wzorce, jak i snapshot rozkładu
+ * czytamy z kilku tysięcy węzłów zamiast z milionów krawędzi DRIVE / STOPS_AT (snapshot i tak
+ * rozwija je w pamięci do połączeń, więc zysk jest w czasie odczytu, nie w pamięci). Każdy węzeł
+ * pamięta liczbę krawędzi DRIVE z chwili zapisu; listener transakcji zdejmuje ją w tej samej transakcji,
+ * która zmienia DRIVE / STOPS_AT. Wzorce bez licznika albo z innym licznikiem są pomijane.
+ */
+final class TripPatterns {
+
+    private static final Label TRIP_LABEL = Label.label("Trip");
+    private static final RelationshipType STOPS_AT = RelationshipType.withName("STOPS_AT");
+    private static final RelationshipType DRIVE = RelationshipType.withName("DRIVE");
+    static final int DAY_SECONDS = 24 * 3600;
+
+    // --- Zapisany wzorzec: czasy k-tego tripu na i-tym przystanku pod indeksem k * stop_ids.length + i ---
+    static final Label PATTERN_LABEL = Label.label("Pattern");
+    static final String PATTERN_ID = "pattern_id";
+    static final String PATTERN_STOPS = "stop_ids";
+    static final String PATTERN_TRIPS = "trip_ids";
+    static final String PATTERN_ARR = "arr_times";
+    static final String PATTERN_DEP = "dep_times";
+    static final String PATTERN_DRIVES = "drive_count";
+
+    final TimetableSnapshot timetable;
+
+    final int patternCount;
+    final int[] patternStopOffsets;
+    final int[] patternStops;
+    final int[] patternTripOffsets;
+    final int[] patternTrips;
+    final int[] timeOffsets;
+    final int[] arrTimes;
+    final int[] depTimes;
+
+    // Odwrotny indeks: przez jakie wzorce (i na której pozycji) przejeżdża przystanek
+    final int[] stopPatternOffsets;
+    final int[] stopPatterns;
+    final int[] stopPatternPositions;
+
+    final long buildMillis;
+
+    private TripPatterns(TimetableSnapshot timetable, List<Pattern> patterns, long buildMillis) {
+        this.timetable = timetable;
+        this.patternCount = patterns.size();
+        this.patternStopOffsets = new int[patternCount + 1];
+        this.patternTripOffsets = new int[patternCount + 1];
+        this.timeOffsets = new int[patternCount + 1];
+
+        for (int p = 0; p < patternCount; p++) {
+            Pattern pattern = patterns.get(p);
+            patternStopOffsets[p + 1] = patternStopOffsets[p] + pattern.stops.length;
+            patternTripOffsets[p + 1] = patternTripOffsets[p] + pattern.trips.size();
+            timeOffsets[p + 1] = timeOffsets[p] + pattern.stops.length * pattern.trips.size();
+        }
+
+        this.patternStops = new int[patternStopOffsets[patternCount]];
+        this.patternTrips = new int[patternTripOffsets[patternCount]];
+        this.arrTimes = new int[timeOffsets[patternCount]];
+        this.depTimes = new int[timeOffsets[patternCount]];
+
+        int[] servedCount = new int[timetable.stopCount + 1];
+        for (int p = 0; p < patternCount; p++) {
+            Pattern pattern = patterns.get(p);
+            int len = pattern.stops.length;
+            System.arraycopy(pattern.stops, 0, patternStops, patternStopOffsets[p], len);
+            for (int k = 0; k < pattern.trips.size(); k++) {
+                TripTimes trip = pattern.trips.get(k);
+                patternTrips[patternTripOffsets[p] + k] = trip.trip;
+                System.arraycopy(trip.arr, 0, arrTimes, timeOffsets[p] + k * len, len);
+                System.arraycopy(trip.dep, 0, depTimes, timeOffsets[p] + k * len, len);
+            }
+            for (int stop : pattern.stops) servedCount[stop + 1]++;
+        }
+
+        this.stopPatternOffsets = servedCount;
+        for (int s = 0; s < timetable.stopCount; s++) stopPatternOffsets[s + 1] += stopPatternOffsets[s];
+        this.stopPatterns = new int[stopPatternOffsets[timetable.stopCount]];
+        this.stopPatternPositions = new int[stopPatterns.length];
+        int[] cursor = Arrays.copyOf(stopPatternOffsets, timetable.stopCount);
+        for (int p = 0; p < patternCount; p++) {
+            int[] stops = patterns.get(p).stops;
+            for (int i = 0; i < stops.length; i++) {
+                int slot = cursor[stops[i]]++;
+                stopPatterns[slot] = p;
+                stopPatternPositions[slot] = i;
+            }
+        }
+
+        this.buildMillis = buildMillis;
+    }
+
+    int stopsInPattern(int pattern) {
+        return patternStopOffsets[pattern + 1] - patternStopOffsets[pattern];
+    }
+
+    int stopAt(int pattern, int position) {
+        return patternStops[patternStopOffsets[pattern] + position];
+    }
+
+    int tripsInPattern(int pattern) {
+        return patternTripOffsets[pattern + 1] - patternTripOffsets[pattern];
+    }
+
+    int tripAt(int pattern, int k) {
+        return patternTrips[patternTripOffsets[pattern] + k];
+    }
+
+    int dep(int pattern, int k, int position) {
+        return depTimes[timeOffsets[pattern] + k * stopsInPattern(pattern) + position];
+    }
+
+    int arr(int pattern, int k, int position) {
+        return arrTimes[timeOffsets[pattern] + k * stopsInPattern(pattern) + position];
+    }
+
+    /**
+     * Najwcześniejszy aktywny trip wzorca odjeżdżający z pozycji pos nie wcześniej niż time.
+     * Tripy z "jutro" są przesunięte o dobę. Wynik zakodowany jako (k << 1 | jutro), -1 gdy brak.
+     */
+    int earliestTrip(int p, int pos, int time, BitSet tripsToday, BitSet tripsTomorrow) {
+        int n = tripsInPattern(p);
+        int found = -1;
+        int foundDep = Integer.MAX_VALUE;
+
+        for (int k = firstDepartureAtOrAfter(p, pos, time, n); k < n; k++) {
+            if (tripsToday.get(tripAt(p, k))) {
+                found = k << 1;
+                foundDep = dep(p, k, pos);
+                break;
+            }
+        }
+        for (int k = firstDepartureAtOrAfter(p, pos, time - DAY_SECONDS, n); k < n; k++) {
+            if (dep(p, k, pos) + DAY_SECONDS >= foundDep) break;
+            if (tripsTomorrow.get(tripAt(p, k))) {
+                found = (k << 1) | 1;
+                break;
+            }
+        }
+        return found;
+    }
+
+    // Wyszukiwanie binarne - odjazdy z danej pozycji są we wzorcu rosnące (FIFO)
+    private int firstDepartureAtOrAfter(int p, int pos, int time, int n) {
+        int lo = 0, hi = n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (dep(p, mid, pos) < time) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    // Z zapisanych węzłów :Pattern, a gdy ich nie ma albo są nieaktualne - z relacji STOPS_AT
+    static TripPatterns build(TimetableSnapshot timetable, Transaction tx) {
+        long started = System.currentTimeMillis();
+        Map<StopSequence, List<TripTimes>> byStops = new HashMap<>();
+        readStored(tx, timetable::stopIndexByStopId, timetable::tripIndex,
+                times -> byStops.computeIfAbsent(new StopSequence(times.stops), k -> new ArrayList<>()).add(times));
+        if (byStops.isEmpty()) readAllStopTimes(timetable, tx, byStops);
+        return group(timetable, byStops, started);
+    }
+
+    // Zawsze z relacji STOPS_AT (źródło dla custom.buildTripPatterns)
+    static TripPatterns buildFromStopTimes(TimetableSnapshot timetable, Transaction tx) {
+        long started = System.currentTimeMillis();
+        Map<StopSequence, List<TripTimes>> byStops = new HashMap<>();
+        readAllStopTimes(timetable, tx, byStops);
+        return group(timetable, byStops, started);
+    }
+
+    /**
+     * Czyta węzły :Pattern i przekazuje każdy trip jako TripTimes. Wzorce z przystankiem spoza
+     * snapshotu albo z niespójnymi tablicami są pomijane. tripIndex może zwrócić -1 (trip pomijany).
+     * Nieaktualne wzorce (inna liczba DRIVE niż przy zapisie) są pomijane w całości.
+     */
+    static void readStored(Transaction tx, ToIntFunction<String> stopIndex, ToIntFunction<String> tripIndex,
+                           Consumer<TripTimes> sink) {
+        if (!storedUpToDate(tx)) return;
+        try (ResourceIterator<Node> patterns = tx.findNodes(PATTERN_LABEL)) {
+            while (patterns.hasNext()) {
+                Node pattern = patterns.next();
+                String[] stopIds = (String[]) pattern.getProperty(PATTERN_STOPS, null);
+                String[] tripIds = (String[]) pattern.getProperty(PATTERN_TRIPS, null);
+                int[] arr = intArray(pattern.getProperty(PATTERN_ARR, null));
+                int[] dep = intArray(pattern.getProperty(PATTERN_DEP, null));
+                if (stopIds == null || tripIds == null || arr == null || dep == null) continue;
+                int len = stopIds.length;
+                if (len < 2 || arr.length != len * tripIds.length || dep.length != arr.length) continue;
+
+                int[] stops = new int[len];
+                for (int i = 0; i < len; i++) stops[i] = stopIndex.applyAsInt(stopIds[i]);
+                if (Arrays.stream(stops).anyMatch(stop -> stop < 0)) continue;
+
+                for (int k = 0; k < tripIds.length; k++) {
+                    int trip = tripIndex.applyAsInt(tripIds[k]);
+                    if (trip < 0) continue;
+                    TripTimes times = new TripTimes(trip, len);
+                    System.arraycopy(stops, 0, times.stops, 0, len);
+                    System.arraycopy(arr, k * len, times.arr, 0, len);
+                    System.arraycopy(dep, k * len, times.dep, 0, len);
+                    sink.accept(times);
+                }
+            }
+        }
+    }
+
+    // Bez licznika (zdjętego przez listener po zmianie DRIVE / STOPS_AT) albo z innym licznikiem DRIVE
+    // - np. zmiany zrobione bez wtyczki - wzorce traktujemy jak nieaktualne
+    static boolean storedUpToDate(Transaction tx) {
+        try (ResourceIterator<Node> patterns = tx.findNodes(PATTERN_LABEL)) {
+            if (!patterns.hasNext()) return false;
+            Object drives = patterns.next().getProperty(PATTERN_DRIVES, null);
+            return drives instanceof Number && ((Number) drives).longValue() == driveCount(tx);
+        }
+    }
+
+    // Liczba krawędzi DRIVE z licznika bazy (bez przechodzenia po relacjach)
+    static long driveCount(Transaction tx) {
+        try (Result result = tx.execute("MATCH ()-[d:DRIVE]->() RETURN count(d) AS drives")) {
+            return ((Number) result.next().get("drives")).longValue();
+        }
+    }
+
+    // Listener oznaczający zapisane wzorce jako nieaktualne; rejestruje go CacheListenersExtension przy starcie bazy
+    static TransactionEventListener<Boolean> listener() {
+        return new StopTimesListener();
+    }
+
+    /**
+     * Gdy transakcja dodaje / usuwa DRIVE albo STOPS_AT lub zmienia ich właściwości, zdejmuje drive_count
+     * z węzłów :Pattern w tej samej transakcji - znacznik nieaktualności zatwierdza się razem ze zmianą.
+     * Zapis dep_time_sec / arr_time_sec równych tekstowym czasom (custom.migrateDriveTimes) nie jest zmianą.
+     */
+    private static final class StopTimesListener extends TransactionEventListenerAdapter<Boolean> {
+
+        @Override
+        public Boolean beforeCommit(TransactionData data, Transaction transaction, GraphDatabaseService db) {
+            if (!touchesStopTimes(data)) return false;
+            boolean marked = false;
+            try (ResourceIterator<Node> patterns = transaction.findNodes(PATTERN_LABEL)) {
+                while (patterns.hasNext()) {
+                    Node pattern = patterns.next();
+                    if (!pattern.hasProperty(PATTERN_DRIVES)) break;   // Już oznaczone (zdejmujemy ze wszystkich naraz)
+                    pattern.removeProperty(PATTERN_DRIVES);
+                    marked = true;
+                }
+            }
+            return marked;
+        }
+
+        private static boolean touchesStopTimes(TransactionData data) {
+            for (Relationship rel : data.createdRelationships()) {
+                if (isStopTime(rel)) return true;
+            }
+            for (Relationship rel : data.deletedRelationships()) {
+                if (isStopTime(rel)) return true;
+            }
+            for (PropertyEntry<Relationship> entry : data.assignedRelationshipProperties()) {
+                if (isStopTime(entry.entity()) && !sameSeconds(entry)) return true;
+            }
+            for (PropertyEntry<Relationship> entry : data.removedRelationshipProperties()) {
+                if (isStopTime(entry.entity())) return true;
+            }
+            return false;
+        }
+
+        private static boolean isStopTime(Relationship rel) {
+            return rel.isType(DRIVE) || rel.isType(STOPS_AT);
+        }
+
+        // dep_time_sec / arr_time_sec dopisane obok równego im "HH:MM:SS"
+        private static boolean sameSeconds(PropertyEntry<Relationship> entry) {
+            String key = entry.key();
+            if (!key.endsWith("_sec") || !(entry.value() instanceof Number)) return false;
+            Object text = entry.entity().getProperty(key.substring(0, key.length() - "_sec".length()), null);
+            return text != null && GtfsTime.parse(text.toString()) == ((Number) entry.value()).intValue();
+        }
+    }
+
+    // Neo4j oddaje tablice w typie zapisu; Cypher zapisuje liczby jako long[]
+    private static int[] intArray(Object value) {
+        if (value instanceof int[]) return (int[]) value;
+        if (!(value instanceof long[])) return null;
+        long[] longs = (long[]) value;
+        int[] ints = new int[longs.length];
+        for (int i = 0; i < longs.length; i++) ints[i] = (int) longs[i];
+        return ints;
+    }
+
+    // Odczyt sekwencji STOPS_AT każdego tripu i grupowanie po identycznej liście przystanków
+    private static void readAllStopTimes(TimetableSnapshot timetable, Transaction tx, Map<StopSequence, List<TripTimes>> byStops) {
+        try (ResourceIterator<Node> trips = tx.findNodes(TRIP_LABEL)) {
+            while (trips.hasNext()) {
+                Node tripNode = trips.next();
+                Object tripId = tripNode.getProperty("trip_id", null);
+                if (tripId == null) continue;
+                int trip = timetable.tripIndex(tripId.toString());
+                if (trip < 0) continue;
+
+                TripTimes times = readStopTimes(timetable, tripNode, trip);
+                if (times == null) continue;
+                byStops.computeIfAbsent(new StopSequence(times.stops), k -> new ArrayList<>()).add(times);
+            }
+        }
+    }
+
+    private static TripPatterns group(TimetableSnapshot timetable, Map<StopSequence, List<TripTimes>> byStops, long started) {
+        // Sortujemy po odjeździe i dzielimy grupy tak, żeby tripy się nie wyprzedzały
+        List<Pattern> patterns = new ArrayList<>();
+        for (Map.Entry<StopSequence, List<TripTimes>> group : byStops.entrySet()) {
+            List<TripTimes> trips = group.getValue();
+            trips.sort(Comparator.comparingInt((TripTimes t) -> t.dep[0]));
+            List<Pattern> split = new ArrayList<>();
+            for (TripTimes trip : trips) {
+                Pattern target = null;
+                for (Pattern candidate : split) {
+                    if (!overtakes(candidate.trips.get(candidate.trips.size() - 1), trip)) {
+                        target = candidate;
+                        break;
+                    }
+                }
+                if (target == null) {
+                    target = new Pattern(group.getKey().stops);
+                    split.add(target);
+                }
+                target.trips.add(trip);
+            }
+            patterns.addAll(split);
+        }
+
+        return new TripPatterns(timetable, patterns, System.currentTimeMillis() - started);
+    }
+
+    private static TripTimes readStopTimes(TimetableSnapshot timetable, Node tripNode, int trip) {
+        List<long[]> rows = new ArrayList<>();
+        for (Relationship stopsAt : tripNode.getRelationships(Direction.OUTGOING, STOPS_AT)) {
+            int stop = timetable.stopIndex(stopsAt.getEndNode());
+            Object seq = stopsAt.getProperty("stop_sequence", null);
+            if (stop < 0 || !(seq instanceof Number)) continue;
+
+            Object arrObj = stopsAt.getProperty("arrival_time", null);
+            Object depObj = stopsAt.getProperty("departure_time", null);
+            int arr = arrObj != null ? GtfsTime.parse(arrObj.toString()) : GtfsTime.INVALID;
+            int dep = depObj != null ? GtfsTime.parse(depObj.toString()) : GtfsTime.INVALID;
+            if (arr == GtfsTime.INVALID) arr = dep;
+            if (dep == GtfsTime.INVALID) dep = arr;
+            if (arr == GtfsTime.INVALID) continue;
+
+            rows.add(new long[]{((Number) seq).longValue(), stop, arr, dep});
+        }
+        if (rows.size() < 2) return null;
+
+        rows.sort(Comparator.comparingLong(r -> r[0]));
+        TripTimes times = new TripTimes(trip, rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            long[] row = rows.get(i);
+            times.stops[i] = (int) row[1];
+            times.arr[i] = (int) row[2];
+            times.dep[i] = (int) row[3];
+        }
+        return times;
+    }
+
+    // Czy "later" (odjeżdżający nie wcześniej) przyjeżdża gdzieś przed "earlier"
+    private static boolean overtakes(TripTimes earlier, TripTimes later) {
+        for (int i = 0; i < earlier.stops.length; i++) {
+            if (later.arr[i] < earlier.arr[i] || later.dep[i] < earlier.dep[i]) return true;
+        }
+        return false;
+    }
+
+    static final class TripTimes {
+        final int trip;
+        final int[] stops;
+        final int[] arr;
+        final int[] dep;
+
+        TripTimes(int trip, int length) {
+            this.trip = trip;
+            this.stops = new int[length];
+            this.arr = new int[length];
+            this.dep = new int[length];
+        }
+    }
+
+    private static final class Pattern {
+        final int[] stops;
+        final List<TripTimes> trips = new ArrayList<>();
+
+        Pattern(int[] stops) {
+            this.stops = stops;
+        }
+    }
+
+    private static final class StopSequence {
+        final int[] stops;
+        final int hash;
+
+        StopSequence(int[] stops) {
+            this.stops = stops;
+            this.hash = Arrays.hashCode(stops);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof StopSequence && Arrays.equals(stops, ((StopSequence) o).stops);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package org.example;
 
 import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.spatial.Point;
 import org.neo4j.logging.Log;
 import org.neo4j.procedure.Context;
 import org.neo4j.procedure.Mode;
@@ -8,6 +9,10 @@ import org.neo4j.procedure.Name;
 import org.neo4j.procedure.Procedure;
 
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 public class TripPlanner {
@@ -18,11 +23,19 @@ public class TripPlanner {
     @Context
     public Log log;
 
-    private static final RelationshipType DRIVE = RelationshipType.withName("DRIVE");
-    private static final RelationshipType VALID_ON = RelationshipType.withName("VALID_ON");
+    @Context
+    public GraphDatabaseService db;
+
     private static final Label STOP_LABEL = Label.label("Stop");
     private static final Label TRIP_LABEL = Label.label("Trip");
+    private static final RelationshipType STOPS_AT = RelationshipType.withName("STOPS_AT");
     private static final int DAY_SECONDS = 24 * 3600;
+    private static final Label RESTAURANT_LABEL = Label.label("Jadlodalnia");
+    private static final int ACCESS_STOPS = 5;
+    private static final int MATRIX_ROWS_PER_THREAD = 16;   // Porcja macierzy czasów = wątki puli x tyle startów
+
+    // Wspólna pula dla zapytań wsadowych - stałe wątki zachowują swoje tablice robocze Dijkstry
+    private static final ForkJoinPool BATCH_POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
 
     // --- NOWA KLASA WYNIKOWA: ETAP PODRÓŻY ---
     // Zwraca skondensowane informacje: Wsiądź -> Jedź -> Wysiądź
@@ -46,44 +59,212 @@ public class TripPlanner {
         }
     }
 
-    // Struktura pomocnicza do Dijkstry
-    private static class State implements Comparable<State> {
-        Node node;
-        int timeInSeconds;
-        State parent;
-        Relationship viaRel;
-        boolean viaNextDay;
+    // Etap jednej z podróży Pareto (journey = numer podróży, kolejne wiersze z tym samym numerem to jej etapy)
+    public static class ParetoLeg {
+        public long journey;
+        public long transfers;      // Przesiadki w całej podróży
+        public long walkSeconds;    // Łączny czas spacerów WALK w podróży
+        public String line;
+        public String startStop;
+        public String depTime;
+        public String endStop;
+        public String arrTime;
+        public long stopsCount;
+        public boolean isNextDay;
 
-        public State(Node node, int timeInSeconds, State parent, Relationship viaRel, boolean viaNextDay) {
-            this.node = node;
-            this.timeInSeconds = timeInSeconds;
-            this.parent = parent;
-            this.viaRel = viaRel;
-            this.viaNextDay = viaNextDay;
+        public ParetoLeg(long journey, long transfers, long walkSeconds, String line, String startStop, String depTime,
+                         String endStop, String arrTime, long stopsCount, boolean isNextDay) {
+            this.journey = journey;
+            this.transfers = transfers;
+            this.walkSeconds = walkSeconds;
+            this.line = line;
+            this.startStop = startStop;
+            this.depTime = depTime;
+            this.endStop = endStop;
+            this.arrTime = arrTime;
+            this.stopsCount = stopsCount;
+            this.isNextDay = isNextDay;
         }
+    }
+
+    // Etap trasy z zapytania wsadowego (requestIndex = pozycja zapytania na liście wejściowej)
+    public static class BatchLeg {
+        public long requestIndex;
+        public String line;
+        public String startStop;
+        public String depTime;
+        public String endStop;
+        public String arrTime;
+        public long stopsCount;
+        public boolean isNextDay;
 
-        @Override
-        public int compareTo(State other) {
-            return Integer.compare(this.timeInSeconds, other.timeInSeconds);
+        public BatchLeg(long requestIndex, JourneyLeg leg) {
+            this.requestIndex = requestIndex;
+            this.line = leg.line;
+            this.startStop = leg.startStop;
+            this.depTime = leg.depTime;
+            this.endStop = leg.endStop;
+            this.arrTime = leg.arrTime;
+            this.stopsCount = leg.stopsCount;
+            this.isNextDay = leg.isNextDay;
         }
     }
 
-    // Struktura pomocnicza do "surowej" ścieżki przed zgrupowaniem
-    private static class RawSegment {
-        String startStop;
-        String endStop;
-        String tripId;
-        String depTime;
-        String arrTime;
-        boolean isNextDay;
+    // Wynik przebudowy snapshotu rozkładu
+    public static class TimetableStats {
+        public long stops;
+        public long trips;
+        public long connections;
+        public long buildMillis;
+        public long version;
 
-        public RawSegment(String startStop, String endStop, String tripId, String depTime, String arrTime, boolean isNextDay) {
-            this.startStop = startStop;
-            this.endStop = endStop;
-            this.tripId = tripId;
-            this.depTime = depTime;
+        public TimetableStats(long stops, long trips, long connections, long buildMillis, long version) {
+            this.stops = stops;
+            this.trips = trips;
+            this.connections = connections;
+            this.buildMillis = buildMillis;
+            this.version = version;
+        }
+    }
+
+    // Stan cache tras
+    public static class RouteCacheStats {
+        public long size;
+        public long capacity;
+        public long hits;
+        public long misses;
+        public double hitRate;
+        public long evictions;      // Wyrzucone przez LRU
+        public long invalidations;  // Wyczyszczone po zmianie wersji rozkładu albo ręcznie
+        public long timetableVersion;
+
+        public RouteCacheStats(long size, long capacity, long hits, long misses, double hitRate,
+                               long evictions, long invalidations, long timetableVersion) {
+            this.size = size;
+            this.capacity = capacity;
+            this.hits = hits;
+            this.misses = misses;
+            this.hitRate = hitRate;
+            this.evictions = evictions;
+            this.invalidations = invalidations;
+            this.timetableVersion = timetableVersion;
+        }
+    }
+
+    // Porównanie przeszukań: ile przystanków zdjęto z kopca i w jakim czasie
+    public static class SearchStats {
+        public String mode;         // "dijkstra" albo "astar"
+        public long settled;
+        public String arrTime;      // null, gdy cel nieosiągalny
+        public boolean isNextDay;
+        public long micros;
+        public long edgesScanned;       // Obejrzane krawędzie DRIVE i WALK
+        public long heapPeak;           // Największy rozmiar kopca
+        public long reconstructMicros;  // Odtworzenie etapów trasy z rodziców
+
+        public SearchStats(String mode, long settled, String arrTime, boolean isNextDay, long micros,
+                           long edgesScanned, long heapPeak, long reconstructMicros) {
+            this.mode = mode;
+            this.settled = settled;
             this.arrTime = arrTime;
             this.isNextDay = isNextDay;
+            this.micros = micros;
+            this.edgesScanned = edgesScanned;
+            this.heapPeak = heapPeak;
+            this.reconstructMicros = reconstructMicros;
+        }
+    }
+
+    // Wynik wgrania opóźnień
+    public static class DelayStats {
+        public long accepted;
+        public long rejected;       // Brak tripId / delay albo ujemny stopSequence
+        public long activeTrips;    // Tripy z ważnym opóźnieniem po tej paczce
+
+        public DelayStats(long accepted, long rejected, long activeTrips) {
+            this.accepted = accepted;
+            this.rejected = rejected;
+            this.activeTrips = activeTrips;
+        }
+    }
+
+    // Komórka macierzy czasów przejazdu (indeksy z list wejściowych); nieosiągalne pary są pomijane
+    public static class MatrixCell {
+        public long originIdx;
+        public long destIdx;
+        public long seconds;
+
+        public MatrixCell(long originIdx, long destIdx, long seconds) {
+            this.originIdx = originIdx;
+            this.destIdx = destIdx;
+            this.seconds = seconds;
+        }
+    }
+
+    // Przystanek izochrony: najwcześniejszy przyjazd w rachubie dnia zapytania (>= 24:00:00 to już następny dzień)
+    public static class IsochroneStop {
+        public Node stop;
+        public String stopName;
+        public String arrTime;
+        public long arrivalSeconds;
+        public long travelSeconds;
+        public long transfers;
+        public long band;           // Górna granica przedziału czasu podróży (s); 0, gdy bez podziału na przedziały
+
+        public IsochroneStop(Node stop, String stopName, String arrTime, long arrivalSeconds,
+                             long travelSeconds, long transfers, long band) {
+            this.stop = stop;
+            this.stopName = stopName;
+            this.arrTime = arrTime;
+            this.arrivalSeconds = arrivalSeconds;
+            this.travelSeconds = travelSeconds;
+            this.transfers = transfers;
+            this.band = band;
+        }
+    }
+
+    // Statystyki jednej procedury w jednym dniu tygodnia (czasy w ms; percentyle z dokładnością do kubełka histogramu)
+    public static class RoutingStatsRow {
+        public String procedure;
+        public String day;
+        public long queries;
+        public long cacheHits;
+        public long slowQueries;
+        public long searches;       // Wyszukiwania Dijkstry (wsad i macierz mają ich wiele na wywołanie)
+        public double meanMillis;
+        public double p50Millis;
+        public double p90Millis;
+        public double p99Millis;
+        public double maxMillis;
+        public double meanSettled;
+        public double meanEdgesScanned;
+        public long maxHeapPeak;
+        public double meanPrefetchMillis;
+        public double meanReconstructMillis;
+        public List<Long> histogram;    // Liczba zapytań w kubełkach [2^i, 2^(i+1)) µs
+        public long slowQueryMillis;
+
+        public RoutingStatsRow(RoutingStats.Histogram h, long slowQueryMillis) {
+            long queries = Math.max(1, h.count());
+            long searches = Math.max(1, h.searches());
+            this.procedure = h.procedure;
+            this.day = h.day;
+            this.queries = h.count();
+            this.cacheHits = h.cacheHits();
+            this.slowQueries = h.slowQueries();
+            this.searches = h.searches();
+            this.meanMillis = h.totalMicros() / 1000.0 / queries;
+            this.p50Millis = h.percentileMicros(0.5) / 1000.0;
+            this.p90Millis = h.percentileMicros(0.9) / 1000.0;
+            this.p99Millis = h.percentileMicros(0.99) / 1000.0;
+            this.maxMillis = h.maxMicros() / 1000.0;
+            this.meanSettled = (double) h.settled() / searches;
+            this.meanEdgesScanned = (double) h.edgesScanned() / searches;
+            this.maxHeapPeak = h.heapPeak();
+            this.meanPrefetchMillis = h.prefetchMicros() / 1000.0 / queries;
+            this.meanReconstructMillis = h.reconstructMicros() / 1000.0 / searches;
+            this.histogram = h.buckets();
+            this.slowQueryMillis = slowQueryMillis;
         }
     }
 
@@ -92,7 +273,8 @@ public class TripPlanner {
             @Name("startStopCode") String startStopCode,
             @Name("endStopCode") String endStopCode,
             @Name("startTime") String startTimeStr,
-            @Name("dayOfWeek") String dayOfWeek
+            @Name("dayOfWeek") String dayOfWeek,
+            @Name(value = "useAStar", defaultValue = "false") Boolean useAStar
     ) {
         // 1. Walidacja węzłów
         Node startNode = findNodeSmart(startStopCode);
@@ -103,215 +285,829 @@ public class TripPlanner {
             return Stream.empty();
         }
 
+        TimetableSnapshot timetable = TimetableRegistry.get(db, tx);
+        int startStop = timetable.stopIndex(startNode);
+        int endStop = timetable.stopIndex(endNode);
+
+        if (startStop < 0 || endStop < 0) {
+            log.error("TripPlanner: Przystanku nie ma w snapshocie rozkładu (wywołaj custom.rebuildTimetable).");
+            return Stream.empty();
+        }
+
         int startTimeSeconds = parseTimeToSeconds(startTimeStr);
+        if (startTimeSeconds == GtfsTime.INVALID || dayOfWeek == null) {
+            log.error("TripPlanner: Błędny czas startu albo dzień tygodnia.");
+            return Stream.empty();
+        }
         String todayProp = dayOfWeek.toLowerCase();
         String tomorrowProp = getNextDay(todayProp);
 
-        // 2. Pre-fetching aktywnych tripów
-        Set<String> tripsToday = new HashSet<>();
-        Set<String> tripsTomorrow = new HashSet<>();
-        fetchActiveTrips(todayProp, tomorrowProp, tripsToday, tripsTomorrow);
+        // 2. Aktywne tripy (bity po indeksach tripów ze snapshotu, liczone raz na tydzień)
+        RoutingStats.Query query = stats().start("findFastestRoute", todayProp);
+        long prefetchStarted = System.nanoTime();
+        BitSet tripsToday = ActiveTripsCache.activeTrips(db, tx, timetable, todayProp);
+        BitSet tripsTomorrow = ActiveTripsCache.activeTrips(db, tx, timetable, tomorrowProp);
+        query.prefetched(prefetchStarted);
+        String detail = startStopCode + " -> " + endStopCode + " o " + startTimeStr;
+
+        // 3. Cache wyników (te same pary przystanków o tej samej porze z dashboardów)
+        boolean aStar = Boolean.TRUE.equals(useAStar);
+        DelayOverlay.View delays = delays(timetable);
+        RouteCache cache = RouteCache.forDatabase(db.databaseName());
+        RouteCache.Key key = new RouteCache.Key(startStop, endStop, ActiveTripsCache.dayIndex(todayProp), startTimeSeconds, aStar);
+        List<JourneyLeg> cached = cache.get(timetable, key, startTimeSeconds, tripsToday, tripsTomorrow, delays);
+        if (cached != null) {
+            query.cacheHit();
+            query.finish(log, detail);
+            return cached.stream();
+        }
+
+        // 4. Algorytm Dijkstry (opcjonalnie A*) - wyłącznie na tablicach snapshotu, bez odczytów z grafu i alokacji w pętli
+        DijkstraRouter router = new DijkstraRouter(timetable, tripsToday, tripsTomorrow, false, delays);
+        List<JourneyLeg> journey = router.route(startStop, endStop, startTimeSeconds, aStar);
+        log.debug("TripPlanner: " + (aStar ? "A*" : "Dijkstra") + " zdjęła z kopca " + router.settled() + " przystanków.");
+        cache.put(timetable, key, new RouteCache.Entry(startTimeSeconds, RouteCache.leaveTime(journey),
+                tripsToday, tripsTomorrow, delays, journey));
+        query.search(router);
+        query.finish(log, detail);
+        return journey.stream();
+    }
+
+    /**
+     * To samo zapytanie co custom.findFastestRoute, raz Dijkstrą i raz A*. Zwraca liczbę
+     * przystanków zdjętych z kopca i czas wyszukiwania, żeby sprawdzić zysk z heurystyki.
+     */
+    @Procedure(name = "custom.compareRouteSearch", mode = Mode.READ)
+    public Stream<SearchStats> compareRouteSearch(
+            @Name("startStopCode") String startStopCode,
+            @Name("endStopCode") String endStopCode,
+            @Name("startTime") String startTimeStr,
+            @Name("dayOfWeek") String dayOfWeek
+    ) {
+        Node startNode = findNodeSmart(startStopCode);
+        Node endNode = findNodeSmart(endStopCode);
+        if (startNode == null || endNode == null) {
+            log.error("TripPlanner: Nie znaleziono przystanków.");
+            return Stream.empty();
+        }
+
+        TimetableSnapshot timetable = TimetableRegistry.get(db, tx);
+        int startStop = timetable.stopIndex(startNode);
+        int endStop = timetable.stopIndex(endNode);
+        if (startStop < 0 || endStop < 0) {
+            log.error("TripPlanner: Przystanku nie ma w snapshocie rozkładu (wywołaj custom.rebuildTimetable).");
+            return Stream.empty();
+        }
 
-        // 3. Algorytm Dijkstry
-        PriorityQueue<State> queue = new PriorityQueue<>();
-        Map<Long, Integer> bestArrivalTimes = new HashMap<>();
+        int startTimeSeconds = parseTimeToSeconds(startTimeStr);
+        if (startTimeSeconds == GtfsTime.INVALID || dayOfWeek == null) {
+            log.error("TripPlanner: Błędny czas startu albo dzień tygodnia.");
+            return Stream.empty();
+        }
+        String todayProp = dayOfWeek.toLowerCase();
+        BitSet tripsToday = ActiveTripsCache.activeTrips(db, tx, timetable, todayProp);
+        BitSet tripsTomorrow = ActiveTripsCache.activeTrips(db, tx, timetable, getNextDay(todayProp));
+
+        DelayOverlay.View delays = delays(timetable);
+        List<SearchStats> rows = new ArrayList<>();
+        for (boolean aStar : new boolean[]{false, true}) {
+            DijkstraRouter router = new DijkstraRouter(timetable, tripsToday, tripsTomorrow, false, delays);
+            long started = System.nanoTime();
+            List<JourneyLeg> journey = router.route(startStop, endStop, startTimeSeconds, aStar);
+            long micros = (System.nanoTime() - started) / 1000;
+            JourneyLeg last = journey.isEmpty() ? null : journey.get(journey.size() - 1);
+            rows.add(new SearchStats(aStar ? "astar" : "dijkstra", router.settled(),
+                    last == null ? null : last.arrTime, last != null && last.isNextDay, micros,
+                    router.edgesScanned(), router.heapPeak(), router.reconstructNanos() / 1000));
+        }
+        return rows.stream();
+    }
 
-        queue.add(new State(startNode, startTimeSeconds, null, null, false));
-        bestArrivalTimes.put(startNode.getId(), startTimeSeconds);
+    /**
+     * Wiele zapytań {from, to, time, day} w jednym wywołaniu. Przystanki rozwiązujemy w transakcji
+     * wywołującej, a same wyszukiwania (tylko tablice snapshotu) idą równolegle na wspólnej puli.
+     * Snapshot i zbiory aktywnych tripów są wspólne dla całej paczki.
+     */
+    @Procedure(name = "custom.findFastestRoutesBatch", mode = Mode.READ)
+    public Stream<BatchLeg> findFastestRoutesBatch(@Name("requests") List<Map<String, Object>> requests) {
+        if (requests == null || requests.isEmpty()) return Stream.empty();
 
-        State finalState = null;
+        TimetableSnapshot timetable = TimetableRegistry.get(db, tx);
+        int n = requests.size();
+        int[] sources = new int[n];
+        int[] targets = new int[n];
+        int[] departures = new int[n];
+        BitSet[] todays = new BitSet[n];
+        BitSet[] tomorrows = new BitSet[n];
+        int[] days = new int[n];
+        String[] dayNames = new String[n];
+        long[] prefetchNanos = new long[n];
 
-        while (!queue.isEmpty()) {
-            State current = queue.poll();
+        // 1. Walidacja sekwencyjnie (Transaction nie jest bezpieczna wątkowo)
+        for (int i = 0; i < n; i++) {
+            Map<String, Object> request = requests.get(i);
+            Node startNode = findNodeSmart(asString(request.get("from")));
+            Node endNode = findNodeSmart(asString(request.get("to")));
+            sources[i] = startNode == null ? -1 : timetable.stopIndex(startNode);
+            targets[i] = endNode == null ? -1 : timetable.stopIndex(endNode);
+            departures[i] = parseTimeToSeconds(asString(request.get("time")));
+            String day = asString(request.get("day"));
 
-            if (current.timeInSeconds > bestArrivalTimes.getOrDefault(current.node.getId(), Integer.MAX_VALUE)) {
+            if (sources[i] < 0 || targets[i] < 0 || departures[i] == GtfsTime.INVALID || day == null) {
+                log.warn("TripPlanner: Pomijam zapytanie " + i + " (nieznane przystanki, czas albo dzień).");
+                sources[i] = -1;
                 continue;
             }
+            String todayProp = day.toLowerCase();
+            days[i] = ActiveTripsCache.dayIndex(todayProp);
+            dayNames[i] = todayProp;
+            long prefetchStarted = System.nanoTime();
+            todays[i] = ActiveTripsCache.activeTrips(db, tx, timetable, todayProp);
+            tomorrows[i] = ActiveTripsCache.activeTrips(db, tx, timetable, getNextDay(todayProp));
+            prefetchNanos[i] = System.nanoTime() - prefetchStarted;
+        }
 
-            if (current.node.equals(endNode)) {
-                finalState = current;
-                break;
-            }
+        // 2. Wyszukiwania równolegle (przez wspólny cache tras); wynik i-tego zapytania trafia na i-tą pozycję
+        DelayOverlay.View delays = delays(timetable);
+        RouteCache cache = RouteCache.forDatabase(db.databaseName());
+        RoutingStats stats = stats();
+        List<List<JourneyLeg>> results;
+        try {
+            results = BATCH_POOL.submit(() -> IntStream.range(0, n).parallel()
+                    .mapToObj(i -> {
+                        if (sources[i] < 0) return Collections.<JourneyLeg>emptyList();
+                        // Każde zapytanie paczki to osobny wpis statystyk (paczka miesza dni tygodnia)
+                        RoutingStats.Query query = stats.start("findFastestRoutesBatch", dayNames[i]);
+                        query.prefetchNanos(prefetchNanos[i]);
+                        RouteCache.Key key = new RouteCache.Key(sources[i], targets[i], days[i], departures[i], false);
+                        List<JourneyLeg> cached = cache.get(timetable, key, departures[i], todays[i], tomorrows[i], delays);
+                        if (cached != null) {
+                            query.cacheHit();
+                            query.finish(log, "zapytanie " + i);
+                            return cached;
+                        }
+                        DijkstraRouter router = new DijkstraRouter(timetable, todays[i], tomorrows[i], false, delays);
+                        List<JourneyLeg> journey = router.route(sources[i], targets[i], departures[i]);
+                        cache.put(timetable, key, new RouteCache.Entry(departures[i], RouteCache.leaveTime(journey),
+                                todays[i], tomorrows[i], delays, journey));
+                        query.search(router);
+                        query.finish(log, "zapytanie " + i);
+                        return journey;
+                    })
+                    .collect(Collectors.toList())).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Zapytanie wsadowe przerwane", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Zapytanie wsadowe nie powiodło się", e.getCause());
+        }
 
-            for (Relationship drive : current.node.getRelationships(Direction.OUTGOING, DRIVE)) {
-                String tripId = (String) drive.getProperty("trip_id");
-                Object depObj = drive.getProperty("dep_time");
-                Object arrObj = drive.getProperty("arr_time");
-                if (depObj == null || arrObj == null) continue;
+        // 3. Spłaszczamy do wierszy oznaczonych numerem zapytania
+        List<BatchLeg> rows = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            for (JourneyLeg leg : results.get(i)) rows.add(new BatchLeg(i, leg));
+        }
+        return rows.stream();
+    }
 
-                int depRaw = parseTimeToSeconds(depObj.toString());
-                int arrRaw = parseTimeToSeconds(arrObj.toString());
+    @Procedure(name = "custom.findFastestRouteRaptor", mode = Mode.READ)
+    public Stream<JourneyLeg> findFastestRouteRaptor(
+            @Name("startStopCode") String startStopCode,
+            @Name("endStopCode") String endStopCode,
+            @Name("startTime") String startTimeStr,
+            @Name("dayOfWeek") String dayOfWeek,
+            @Name(value = "maxTransfers", defaultValue = "8") Long maxTransfers
+    ) {
+        // 1. Walidacja węzłów
+        Node startNode = findNodeSmart(startStopCode);
+        Node endNode = findNodeSmart(endStopCode);
 
-                // Sprawdź Dziś
-                if (tripsToday.contains(tripId)) {
-                    if (depRaw >= current.timeInSeconds) {
-                        relaxNeighbor(current, drive, depRaw, arrRaw, false, bestArrivalTimes, queue);
-                    }
-                }
-                // Sprawdź Jutro
-                if (tripsTomorrow.contains(tripId)) {
-                    int depTomorrow = depRaw + DAY_SECONDS;
-                    int arrTomorrow = arrRaw + DAY_SECONDS;
-                    if (depTomorrow >= current.timeInSeconds) {
-                        relaxNeighbor(current, drive, depTomorrow, arrTomorrow, true, bestArrivalTimes, queue);
-                    }
-                }
-            }
+        if (startNode == null || endNode == null) {
+            log.error("TripPlanner: Nie znaleziono przystanków.");
+            return Stream.empty();
+        }
+
+        TripPatterns patterns = TimetableRegistry.patterns(db, tx);
+        TimetableSnapshot timetable = patterns.timetable;
+        int startStop = timetable.stopIndex(startNode);
+        int endStop = timetable.stopIndex(endNode);
+
+        if (startStop < 0 || endStop < 0) {
+            log.error("TripPlanner: Przystanku nie ma w snapshocie rozkładu (wywołaj custom.rebuildTimetable).");
+            return Stream.empty();
+        }
+
+        int startTimeSeconds = parseTimeToSeconds(startTimeStr);
+        if (startTimeSeconds == GtfsTime.INVALID || dayOfWeek == null) {
+            log.error("TripPlanner: Błędny czas startu albo dzień tygodnia.");
+            return Stream.empty();
+        }
+        String todayProp = dayOfWeek.toLowerCase();
+        RoutingStats.Query query = stats().start("findFastestRouteRaptor", todayProp);
+        long prefetchStarted = System.nanoTime();
+        BitSet tripsToday = ActiveTripsCache.activeTrips(db, tx, timetable, todayProp);
+        BitSet tripsTomorrow = ActiveTripsCache.activeTrips(db, tx, timetable, getNextDay(todayProp));
+        query.prefetched(prefetchStarted);
+
+        // 2. RAPTOR: rundy po wzorcach zamiast relaksacji pojedynczych segmentów
+        int transfers = maxTransfers == null ? 8 : (int) Math.max(0, maxTransfers);
+        List<JourneyLeg> journey = new RaptorRouter(patterns, tripsToday, tripsTomorrow)
+                .route(startStop, endStop, startTimeSeconds, transfers);
+        query.finish(log, startStopCode + " -> " + endStopCode + " o " + startTimeStr);
+        return journey.stream();
+    }
+
+    @Procedure(name = "custom.findFastestRouteCsa", mode = Mode.READ)
+    public Stream<JourneyLeg> findFastestRouteCsa(
+            @Name("startStopCode") String startStopCode,
+            @Name("endStopCode") String endStopCode,
+            @Name("startTime") String startTimeStr,
+            @Name("dayOfWeek") String dayOfWeek
+    ) {
+        // 1. Walidacja węzłów
+        Node startNode = findNodeSmart(startStopCode);
+        Node endNode = findNodeSmart(endStopCode);
+
+        if (startNode == null || endNode == null) {
+            log.error("TripPlanner: Nie znaleziono przystanków.");
+            return Stream.empty();
         }
 
-        if (finalState == null) return Stream.empty();
+        ConnectionScanRouter.Connections connections = TimetableRegistry.connections(db, tx);
+        TimetableSnapshot timetable = connections.timetable;
+        int startStop = timetable.stopIndex(startNode);
+        int endStop = timetable.stopIndex(endNode);
 
-        // 4. Rekonstrukcja i Grupowanie (Collapsing)
-        return collapsePath(finalState);
+        if (startStop < 0 || endStop < 0) {
+            log.error("TripPlanner: Przystanku nie ma w snapshocie rozkładu (wywołaj custom.rebuildTimetable).");
+            return Stream.empty();
+        }
+
+        int startTimeSeconds = parseTimeToSeconds(startTimeStr);
+        if (startTimeSeconds == GtfsTime.INVALID || dayOfWeek == null) {
+            log.error("TripPlanner: Błędny czas startu albo dzień tygodnia.");
+            return Stream.empty();
+        }
+        String todayProp = dayOfWeek.toLowerCase();
+        RoutingStats.Query query = stats().start("findFastestRouteCsa", todayProp);
+        long prefetchStarted = System.nanoTime();
+        BitSet tripsToday = ActiveTripsCache.activeTrips(db, tx, timetable, todayProp);
+        BitSet tripsTomorrow = ActiveTripsCache.activeTrips(db, tx, timetable, getNextDay(todayProp));
+        query.prefetched(prefetchStarted);
+
+        // 2. CSA: jedno liniowe przejście po połączeniach od czasu startu
+        List<JourneyLeg> journey = new ConnectionScanRouter(connections, tripsToday, tripsTomorrow)
+                .route(startStop, endStop, startTimeSeconds);
+        query.finish(log, startStopCode + " -> " + endStopCode + " o " + startTimeStr);
+        return journey.stream();
+    }
+
+    @Procedure(name = "custom.findParetoRoutes", mode = Mode.READ)
+    public Stream<ParetoLeg> findParetoRoutes(
+            @Name("startStopCode") String startStopCode,
+            @Name("endStopCode") String endStopCode,
+            @Name("startTime") String startTimeStr,
+            @Name("dayOfWeek") String dayOfWeek,
+            @Name(value = "maxTransfers", defaultValue = "4") Long maxTransfers,
+            @Name(value = "maxBagSize", defaultValue = "6") Long maxBagSize
+    ) {
+        // 1. Walidacja węzłów
+        Node startNode = findNodeSmart(startStopCode);
+        Node endNode = findNodeSmart(endStopCode);
+
+        if (startNode == null || endNode == null) {
+            log.error("TripPlanner: Nie znaleziono przystanków.");
+            return Stream.empty();
+        }
+
+        TripPatterns patterns = TimetableRegistry.patterns(db, tx);
+        TimetableSnapshot timetable = patterns.timetable;
+        int startStop = timetable.stopIndex(startNode);
+        int endStop = timetable.stopIndex(endNode);
+
+        if (startStop < 0 || endStop < 0) {
+            log.error("TripPlanner: Przystanku nie ma w snapshocie rozkładu (wywołaj custom.rebuildTimetable).");
+            return Stream.empty();
+        }
+
+        int startTimeSeconds = parseTimeToSeconds(startTimeStr);
+        if (startTimeSeconds == GtfsTime.INVALID || dayOfWeek == null) {
+            log.error("TripPlanner: Błędny czas startu albo dzień tygodnia.");
+            return Stream.empty();
+        }
+        String todayProp = dayOfWeek.toLowerCase();
+        RoutingStats.Query query = stats().start("findParetoRoutes", todayProp);
+        long prefetchStarted = System.nanoTime();
+        BitSet tripsToday = ActiveTripsCache.activeTrips(db, tx, timetable, todayProp);
+        BitSet tripsTomorrow = ActiveTripsCache.activeTrips(db, tx, timetable, getNextDay(todayProp));
+        query.prefetched(prefetchStarted);
+
+        // 2. McRAPTOR: worki Pareto (przyjazd, przesiadki, spacer) zamiast jednego najlepszego czasu
+        int transfers = maxTransfers == null ? 4 : (int) Math.max(0, maxTransfers);
+        int bagSize = maxBagSize == null ? 6 : (int) Math.max(1, maxBagSize);
+        List<ParetoLeg> legs = new McRaptorRouter(patterns, tripsToday, tripsTomorrow, bagSize)
+                .route(startStop, endStop, startTimeSeconds, transfers);
+        query.finish(log, startStopCode + " -> " + endStopCode + " o " + startTimeStr);
+        return legs.stream();
+    }
+
+    @Procedure(name = "custom.findRoutesInWindow", mode = Mode.READ)
+    public Stream<ParetoLeg> findRoutesInWindow(
+            @Name("startStopCode") String startStopCode,
+            @Name("endStopCode") String endStopCode,
+            @Name("fromTime") String fromTimeStr,
+            @Name("toTime") String toTimeStr,
+            @Name("dayOfWeek") String dayOfWeek,
+            @Name(value = "maxTransfers", defaultValue = "8") Long maxTransfers
+    ) {
+        // 1. Walidacja węzłów
+        Node startNode = findNodeSmart(startStopCode);
+        Node endNode = findNodeSmart(endStopCode);
+
+        if (startNode == null || endNode == null) {
+            log.error("TripPlanner: Nie znaleziono przystanków.");
+            return Stream.empty();
+        }
+
+        TripPatterns patterns = TimetableRegistry.patterns(db, tx);
+        TimetableSnapshot timetable = patterns.timetable;
+        int startStop = timetable.stopIndex(startNode);
+        int endStop = timetable.stopIndex(endNode);
+
+        if (startStop < 0 || endStop < 0) {
+            log.error("TripPlanner: Przystanku nie ma w snapshocie rozkładu (wywołaj custom.rebuildTimetable).");
+            return Stream.empty();
+        }
+
+        int fromSeconds = parseTimeToSeconds(fromTimeStr);
+        int toSeconds = parseTimeToSeconds(toTimeStr);
+        if (fromSeconds == GtfsTime.INVALID || toSeconds == GtfsTime.INVALID || dayOfWeek == null) {
+            log.error("TripPlanner: Błędne okno czasowe albo dzień tygodnia.");
+            return Stream.empty();
+        }
+        if (toSeconds < fromSeconds) toSeconds += DAY_SECONDS; // Okno przez północ, np. 23:00 - 01:00
+
+        String todayProp = dayOfWeek.toLowerCase();
+        RoutingStats.Query query = stats().start("findRoutesInWindow", todayProp);
+        long prefetchStarted = System.nanoTime();
+        BitSet tripsToday = ActiveTripsCache.activeTrips(db, tx, timetable, todayProp);
+        BitSet tripsTomorrow = ActiveTripsCache.activeTrips(db, tx, timetable, getNextDay(todayProp));
+        query.prefetched(prefetchStarted);
+
+        // 2. Jeden przebieg rRAPTOR-a po wszystkich odjazdach z okna (od najpóźniejszego)
+        int transfers = maxTransfers == null ? 8 : (int) Math.max(0, maxTransfers);
+        List<List<JourneyLeg>> journeys = new RaptorRouter(patterns, tripsToday, tripsTomorrow)
+                .profile(startStop, endStop, fromSeconds, toSeconds, transfers);
+
+        query.finish(log, startStopCode + " -> " + endStopCode + " " + fromTimeStr + " - " + toTimeStr);
+
+        // 3. Spłaszczamy do wierszy z numerem podróży (posortowane po odjeździe)
+        List<ParetoLeg> rows = new ArrayList<>();
+        for (int j = 0; j < journeys.size(); j++) {
+            List<JourneyLeg> journey = journeys.get(j);
+            for (JourneyLeg leg : journey) {
+                rows.add(new ParetoLeg(j, journey.size() - 1, 0, leg.line, leg.startStop, leg.depTime,
+                        leg.endStop, leg.arrTime, leg.stopsCount, leg.isNextDay));
+            }
+        }
+        return rows.stream();
     }
 
     /**
-     * Ta metoda zamienia ciąg atomowych segmentów (A->B, B->C, C->D) w logiczne etapy (A->D linią X).
+     * Trasa między dwoma punktami (lat/lon) zamiast kodów przystanków. Wszystkie przystanki w promieniu
+     * maxWalkMeters od startu są źródłami (z czasem dojścia), a wszystkie w promieniu od celu - celami
+     * (z karą za dojście). Jedno przeszukanie zamiast N x M wywołań przystanek-przystanek;
+     * po drodze można przesiadać się pieszo krawędziami WALK.
      */
-    private Stream<JourneyLeg> collapsePath(State finalState) {
-        LinkedList<RawSegment> rawSegments = new LinkedList<>();
-        State cursor = finalState;
+    @Procedure(name = "custom.findFastestRouteFromCoords", mode = Mode.READ)
+    public Stream<JourneyLeg> findFastestRouteFromCoords(
+            @Name("fromLatitude") Double fromLatitude,
+            @Name("fromLongitude") Double fromLongitude,
+            @Name("toLatitude") Double toLatitude,
+            @Name("toLongitude") Double toLongitude,
+            @Name("startTime") String startTimeStr,
+            @Name("dayOfWeek") String dayOfWeek,
+            @Name(value = "maxWalkMeters", defaultValue = "800") Long maxWalkMeters
+    ) {
+        int startTime = parseTimeToSeconds(startTimeStr);
+        if (fromLatitude == null || fromLongitude == null || toLatitude == null || toLongitude == null
+                || startTime == GtfsTime.INVALID || dayOfWeek == null) {
+            log.error("TripPlanner: Błędne współrzędne, czas startu albo dzień tygodnia.");
+            return Stream.empty();
+        }
+        double maxWalk = maxWalkMeters == null ? 800 : maxWalkMeters;
+
+        TimetableSnapshot timetable = TimetableRegistry.get(db, tx);
+        SpatialIndex stops = SpatialIndex.forLabel(db, tx, STOP_LABEL.name());
+
+        // 1. Dojście i odejście: przystanki w promieniu (albo najbliższy, gdy w promieniu nic nie ma)
+        TimetableSnapshot.IntList sources = new TimetableSnapshot.IntList();
+        TimetableSnapshot.IntList departures = new TimetableSnapshot.IntList();
+        for (SpatialIndex.Hit hit : walkableStops(stops, fromLatitude, fromLongitude, maxWalk)) {
+            int stop = timetable.stopIndex(stops.nodeIds[hit.point]);
+            if (stop < 0) continue;
+            sources.add(stop);
+            departures.add(startTime + walkSeconds(hit.distance));
+        }
+        TimetableSnapshot.IntList targets = new TimetableSnapshot.IntList();
+        TimetableSnapshot.IntList penalties = new TimetableSnapshot.IntList();
+        for (SpatialIndex.Hit hit : walkableStops(stops, toLatitude, toLongitude, maxWalk)) {
+            int stop = timetable.stopIndex(stops.nodeIds[hit.point]);
+            if (stop < 0) continue;
+            targets.add(stop);
+            penalties.add(walkSeconds(hit.distance));
+        }
 
-        // A. Odtwarzamy surową ścieżkę od tyłu
-        while (cursor.parent != null) {
-            Relationship r = cursor.viaRel;
-            Node start = r.getStartNode();
-            Node end = r.getEndNode();
-            String tripId = (String) r.getProperty("trip_id");
-            String rawDep = (String) r.getProperty("dep_time");
-            String rawArr = (String) r.getProperty("arr_time");
+        double direct = SpatialIndex.distanceMeters(fromLatitude, fromLongitude, toLatitude, toLongitude);
+        int directArrival = direct <= maxWalk ? startTime + walkSeconds(direct) : Integer.MAX_VALUE;
+        if ((sources.size == 0 || targets.size == 0) && directArrival == Integer.MAX_VALUE) {
+            log.info("TripPlanner: Brak przystanków w pobliżu startu albo celu.");
+            return Stream.empty();
+        }
 
-            String startName = (String) start.getProperty("stop_name", "Unknown");
-            String endName = (String) end.getProperty("stop_name", "Unknown");
+        // 2. Jedno przeszukanie: wiele startów, wiele celów, przesiadki DRIVE + WALK
+        String todayProp = dayOfWeek.toLowerCase();
+        RoutingStats.Query query = stats().start("findFastestRouteFromCoords", todayProp);
+        long prefetchStarted = System.nanoTime();
+        BitSet tripsToday = ActiveTripsCache.activeTrips(db, tx, timetable, todayProp);
+        BitSet tripsTomorrow = ActiveTripsCache.activeTrips(db, tx, timetable, getNextDay(todayProp));
+        query.prefetched(prefetchStarted);
+        DijkstraRouter.Arrival arrival = null;
+        if (sources.size > 0 && targets.size > 0) {
+            DijkstraRouter router = new DijkstraRouter(timetable, tripsToday, tripsTomorrow, true, delays(timetable));
+            arrival = router.routeToAny(sources.toArray(), departures.toArray(), targets.toArray(), penalties.toArray());
+            query.search(router);
+        }
+        query.finish(log, fromLatitude + "," + fromLongitude + " -> " + toLatitude + "," + toLongitude + " o " + startTimeStr);
 
-            rawSegments.addFirst(new RawSegment(startName, endName, tripId, rawDep, rawArr, cursor.viaNextDay));
-            cursor = cursor.parent;
+        if (arrival == null || directArrival <= arrival.arrival + penalties.data[arrival.target]) {
+            if (directArrival == Integer.MAX_VALUE) return Stream.empty();
+            return Stream.of(walkLeg("Spacer do celu (" + (int) direct + "m)", "Start", startTime, "Cel", directArrival, false));
         }
 
-        if (rawSegments.isEmpty()) return Stream.empty();
+        // 3. Spacer do przystanku + przejazd + spacer do celu
+        return doorToDoor(timetable, arrival, fromLatitude, fromLongitude, startTime,
+                "Cel", new double[]{toLatitude, toLongitude}, penalties.data[arrival.target]).stream();
+    }
 
-        // B. Grupujemy segmenty w logiczne etapy
-        List<JourneyLeg> journey = new ArrayList<>();
+    /**
+     * Natywny odpowiednik apoc.custom "znajdzNajlepszyDojazd": najszybszy dojazd "od drzwi do drzwi"
+     * do dowolnej restauracji o danej kuchni. Jedno przeszukanie Dijkstry startuje z kilku najbliższych
+     * przystanków (z czasem dojścia), a celami są przystanki przy restauracjach z karą za dojście
+     * do lokalu - wynik jest uszeregowany po prawdziwym czasie dotarcia, także przez północ.
+     */
+    @Procedure(name = "custom.findRouteToCuisine", mode = Mode.READ)
+    public Stream<JourneyLeg> findRouteToCuisine(
+            @Name("latitude") Double latitude,
+            @Name("longitude") Double longitude,
+            @Name("cuisine") String cuisine,
+            @Name("startTime") String startTimeStr,
+            @Name("dayOfWeek") String dayOfWeek,
+            @Name(value = "maxWalkMeters", defaultValue = "1000") Long maxWalkMeters
+    ) {
+        int startTime = parseTimeToSeconds(startTimeStr);
+        if (latitude == null || longitude == null || cuisine == null || startTime == GtfsTime.INVALID
+                || dayOfWeek == null) {
+            log.error("TripPlanner: Błędne parametry zapytania o restaurację.");
+            return Stream.empty();
+        }
+        double maxWalk = maxWalkMeters == null ? 1000 : maxWalkMeters;
 
-        // Inicjalizacja pierwszego etapu
-        RawSegment firstSeg = rawSegments.getFirst();
-        String currentTripId = firstSeg.tripId;
-        String legStartStop = firstSeg.startStop;
-        String legDepTime = firstSeg.depTime;
-        boolean legIsNextDay = firstSeg.isNextDay;
-        long stopsCounter = 0;
-
-        // Iterujemy przez resztę
-        for (RawSegment seg : rawSegments) {
-            if (seg.tripId.equals(currentTripId)) {
-                // Kontynuujemy podróż tym samym autobusem
-                stopsCounter++;
-            } else {
-                // PRZESIADKA! Zamykamy poprzedni etap
-                String headsign = getTripHeadsign(currentTripId); // Pobieramy kierunek z bazy
-                // Koniec poprzedniego etapu to start obecnego segmentu (seg.startStop) lub koniec poprzedniego
-                // Ale logicznie koniec poprzedniego segmentu w pętli to seg.startStop (bo ciągłość)
-                // Musimy wziąć czas przyjazdu z OSTATNIEGO segmentu starego tripa.
-                // Tu dla uproszczenia w pętli for-each jest trudno dostać "previous".
-                // Lepiej użyć pętli for(int i...).
-            }
+        TimetableSnapshot timetable = TimetableRegistry.get(db, tx);
+        SpatialIndex stops = SpatialIndex.forLabel(db, tx, STOP_LABEL.name());
+
+        // 1. Dojście: kilka najbliższych przystanków (zawsze co najmniej najbliższy, nawet dalej niż maxWalk)
+        TimetableSnapshot.IntList sources = new TimetableSnapshot.IntList();
+        TimetableSnapshot.IntList departures = new TimetableSnapshot.IntList();
+        for (SpatialIndex.Hit hit : stops.nearest(latitude, longitude, ACCESS_STOPS, null)) {
+            if (sources.size > 0 && hit.distance > maxWalk) break;
+            int stop = timetable.stopIndex(stops.nodeIds[hit.point]);
+            if (stop < 0) continue;
+            sources.add(stop);
+            departures.add(startTime + walkSeconds(hit.distance));
         }
 
-        // --- Podejście C: Pętla klasyczna dla łatwiejszego dostępu do indeksów ---
-        journey.clear();
-        if (rawSegments.isEmpty()) return Stream.empty();
-
-        RawSegment current = rawSegments.get(0);
-
-        // Zmienne tymczasowe trwającegu etapu
-        String legStart = current.startStop;
-        String legStartTime = current.depTime;
-        String legTripId = current.tripId;
-        boolean legNextDay = current.isNextDay;
-        int stops = 1;
-
-        for (int i = 1; i < rawSegments.size(); i++) {
-            RawSegment next = rawSegments.get(i);
-
-            if (next.tripId.equals(legTripId)) {
-                // Ten sam autobus -> przedłużamy etap
-                stops++;
-            } else {
-                // Zmiana autobusu -> Zapisujemy stary etap
-                RawSegment legEndSeg = rawSegments.get(i - 1); // Ostatni segment starego etapu
-                String fullHeadsign = getTripHeadsign(legTripId);
-
-                journey.add(new JourneyLeg(
-                        fullHeadsign,
-                        legStart,
-                        legStartTime,
-                        legEndSeg.endStop,
-                        legEndSeg.arrTime,
-                        stops,
-                        legNextDay
-                ));
-
-                // Rozpoczynamy nowy etap
-                legTripId = next.tripId;
-                legStart = next.startStop;
-                legStartTime = next.depTime;
-                legNextDay = next.isNextDay;
-                stops = 1;
+        // 2. Cele: przystanki przy restauracjach danej kuchni, z karą = dojście do lokalu
+        List<Node> restaurants = new ArrayList<>();
+        List<double[]> restaurantCoords = new ArrayList<>();
+        TimetableSnapshot.IntList targets = new TimetableSnapshot.IntList();
+        TimetableSnapshot.IntList penalties = new TimetableSnapshot.IntList();
+        TimetableSnapshot.IntList targetRestaurant = new TimetableSnapshot.IntList();
+        int bestDirect = -1;
+        double bestDirectDistance = Double.MAX_VALUE;
+        try (ResourceIterator<Node> found = tx.findNodes(RESTAURANT_LABEL, "cuisine", cuisine)) {
+            while (found.hasNext()) {
+                Node restaurant = found.next();
+                double[] latLon = SpatialIndex.coordinates(restaurant);
+                if (latLon == null) continue;
+                int r = restaurants.size();
+                restaurants.add(restaurant);
+                restaurantCoords.add(latLon);
+
+                // Restauracja w zasięgu spaceru bez żadnej jazdy
+                double direct = SpatialIndex.distanceMeters(latitude, longitude, latLon[0], latLon[1]);
+                if (direct <= maxWalk && direct < bestDirectDistance) {
+                    bestDirect = r;
+                    bestDirectDistance = direct;
+                }
+
+                int added = 0;
+                for (SpatialIndex.Hit hit : stops.nearest(latLon[0], latLon[1], ACCESS_STOPS, null)) {
+                    if (added > 0 && hit.distance > maxWalk) break;
+                    int stop = timetable.stopIndex(stops.nodeIds[hit.point]);
+                    if (stop < 0) continue;
+                    targets.add(stop);
+                    penalties.add(walkSeconds(hit.distance));
+                    targetRestaurant.add(r);
+                    added++;
+                }
             }
         }
+        if (restaurants.isEmpty() || (sources.size == 0 && bestDirect < 0)) {
+            log.info("TripPlanner: Brak restauracji '" + cuisine + "' albo przystanków w pobliżu.");
+            return Stream.empty();
+        }
 
-        // Zapisujemy ostatni etap (który nie został zamknięty w pętli)
-        RawSegment lastSeg = rawSegments.getLast();
-        String fullHeadsign = getTripHeadsign(legTripId);
+        // 3. Jedno przeszukanie z wielu startów do najlepszego celu, przesiadki DRIVE + WALK (jak w FromCoords)
+        String todayProp = dayOfWeek.toLowerCase();
+        RoutingStats.Query query = stats().start("findRouteToCuisine", todayProp);
+        long prefetchStarted = System.nanoTime();
+        BitSet tripsToday = ActiveTripsCache.activeTrips(db, tx, timetable, todayProp);
+        BitSet tripsTomorrow = ActiveTripsCache.activeTrips(db, tx, timetable, getNextDay(todayProp));
+        query.prefetched(prefetchStarted);
+        DijkstraRouter router = new DijkstraRouter(timetable, tripsToday, tripsTomorrow, true, delays(timetable));
+        DijkstraRouter.Arrival arrival = router.routeToAny(sources.toArray(), departures.toArray(), targets.toArray(), penalties.toArray());
+        query.search(router);
+        query.finish(log, "kuchnia " + cuisine + " o " + startTimeStr);
 
-        journey.add(new JourneyLeg(
-                fullHeadsign,
-                legStart,
-                legStartTime,
-                lastSeg.endStop,
-                lastSeg.arrTime,
-                stops,
-                legNextDay
-        ));
+        int directArrival = bestDirect < 0 ? Integer.MAX_VALUE : startTime + walkSeconds(bestDirectDistance);
+        if (arrival == null || directArrival <= arrival.arrival + penalties.data[arrival.target]) {
+            if (bestDirect < 0) return Stream.empty();
+            // Pieszo jest szybciej niż jakimkolwiek autobusem
+            return Stream.of(walkLeg("Spacer do celu (" + (int) bestDirectDistance + "m)", "Start",
+                    startTime, restaurantName(restaurants.get(bestDirect)), directArrival, false));
+        }
 
-        return journey.stream();
+        // 4. Składamy trasę: spacer do przystanku, przejazd (może być pusty), spacer do lokalu
+        int r = targetRestaurant.data[arrival.target];
+        return doorToDoor(timetable, arrival, latitude, longitude, startTime, restaurantName(restaurants.get(r)),
+                restaurantCoords.get(r), penalties.data[arrival.target]).stream();
     }
 
-    // --- Metody pomocnicze ---
+    /**
+     * Izochrona: wszystkie przystanki osiągalne w maxSeconds od startu, posortowane po przyjeździe.
+     * Start to stop_id / stop_code / dokładna stop_name przystanku albo współrzędne (mapa {latitude, longitude} lub punkt) - wtedy
+     * startujemy z przystanków w zasięgu dojścia i dopuszczamy przesiadki piesze, jak w FromCoords.
+     * Jedno przeszukanie Dijkstry ucięte na limicie czasu; bandSeconds > 0 dzieli wynik na przedziały.
+     */
+    @Procedure(name = "custom.isochrone", mode = Mode.READ)
+    public Stream<IsochroneStop> isochrone(
+            @Name("origin") Object origin,
+            @Name("startTime") String startTimeStr,
+            @Name("dayOfWeek") String dayOfWeek,
+            @Name(value = "maxSeconds", defaultValue = "1800") Long maxSeconds,
+            @Name(value = "bandSeconds", defaultValue = "0") Long bandSeconds,
+            @Name(value = "maxWalkMeters", defaultValue = "800") Long maxWalkMeters
+    ) {
+        int startTime = parseTimeToSeconds(startTimeStr);
+        if (origin == null || startTime == GtfsTime.INVALID || dayOfWeek == null || maxSeconds == null || maxSeconds < 0) {
+            log.error("TripPlanner: Błędne parametry izochrony.");
+            return Stream.empty();
+        }
+        int limit = (int) Math.min((long) startTime + maxSeconds, Integer.MAX_VALUE - 1);
+        int band = bandSeconds == null || bandSeconds <= 0 ? 0 : (int) Math.min(bandSeconds, Integer.MAX_VALUE);
+
+        TimetableSnapshot timetable = TimetableRegistry.get(db, tx);
 
-    private String getTripHeadsign(String tripId) {
-        // Szukamy węzła Trip, żeby pobrać jego headsign
-        Node tripNode = tx.findNode(TRIP_LABEL, "trip_id", tripId);
-        if (tripNode != null) {
-            String headsign = (String) tripNode.getProperty("trip_headsign", "");
-            // Opcjonalnie: można dodać też route_id jeśli jest
-            return tripId + " (Kier: " + headsign + ")";
+        // 1. Start: przystanki w zasięgu dojścia od współrzędnych albo jeden przystanek
+        TimetableSnapshot.IntList sources = new TimetableSnapshot.IntList();
+        TimetableSnapshot.IntList departures = new TimetableSnapshot.IntList();
+        double[] latLon = originCoordinates(origin);
+        if (latLon != null) {
+            double maxWalk = maxWalkMeters == null ? 800 : maxWalkMeters;
+            SpatialIndex stops = SpatialIndex.forLabel(db, tx, STOP_LABEL.name());
+            for (SpatialIndex.Hit hit : walkableStops(stops, latLon[0], latLon[1], maxWalk)) {
+                int stop = timetable.stopIndex(stops.nodeIds[hit.point]);
+                if (stop < 0) continue;
+                sources.add(stop);
+                departures.add(startTime + walkSeconds(hit.distance));
+            }
+        } else {
+            Node startNode = findNodeOrName(origin.toString());
+            int stop = startNode == null ? -1 : timetable.stopIndex(startNode);
+            if (stop >= 0) {
+                sources.add(stop);
+                departures.add(startTime);
+            }
         }
-        return tripId;
+        if (sources.size == 0) {
+            log.error("TripPlanner: Nie znaleziono przystanku startowego izochrony.");
+            return Stream.empty();
+        }
+
+        // 2. Przeszukanie do wszystkich przystanków, ucięte na startTime + maxSeconds
+        String todayProp = dayOfWeek.toLowerCase();
+        RoutingStats.Query query = stats().start("isochrone", todayProp);
+        long prefetchStarted = System.nanoTime();
+        BitSet tripsToday = ActiveTripsCache.activeTrips(db, tx, timetable, todayProp);
+        BitSet tripsTomorrow = ActiveTripsCache.activeTrips(db, tx, timetable, getNextDay(todayProp));
+        query.prefetched(prefetchStarted);
+        DijkstraRouter router = new DijkstraRouter(timetable, tripsToday, tripsTomorrow, latLon != null, delays(timetable));
+        List<DijkstraRouter.Reached> reached = router.reachAll(sources.toArray(), departures.toArray(), limit);
+        query.search(router);
+        query.finish(log, "izochrona " + origin + " o " + startTimeStr + " + " + maxSeconds + " s");
+
+        // 3. Wynik; przedział to najmniejsza wielokrotność bandSeconds nie mniejsza niż czas podróży
+        return reached.stream().map(r -> {
+            long travel = r.arrival - startTime;
+            long upper = band == 0 ? 0 : Math.max(1, (travel + band - 1) / band) * band;
+            return new IsochroneStop(tx.getNodeById(timetable.stopNodeIds[r.stop]), timetable.stopNames[r.stop],
+                    GtfsTime.format(r.arrival), r.arrival, travel, r.transfers, upper);
+        });
     }
 
-    private void fetchActiveTrips(String today, String tomorrow, Set<String> todaySet, Set<String> tomorrowSet) {
-        try (ResourceIterator<Node> trips = tx.findNodes(TRIP_LABEL)) {
-            while (trips.hasNext()) {
-                Node trip = trips.next();
-                Relationship validRel = trip.getSingleRelationship(VALID_ON, Direction.OUTGOING);
-                if (validRel != null) {
-                    Node cal = validRel.getEndNode();
-                    String tId = (String) trip.getProperty("trip_id");
-                    if ((boolean) cal.getProperty(today, false)) todaySet.add(tId);
-                    if ((boolean) cal.getProperty(tomorrow, false)) tomorrowSet.add(tId);
+    /**
+     * Macierz czasów przejazdu origins x destinations (stop_id / stop_code albo dokładne stop_name). Na każdy start
+     * jedno przeszukanie do wszystkich celów, równolegle na wspólnej puli i wspólnym snapshocie; aktywne
+     * tripy liczymy raz. Starty idą porcjami, a wiersze porcji są strumieniowane przed liczeniem następnej,
+     * więc pamięć nie rośnie z rozmiarem macierzy. maxSeconds = 0 oznacza brak limitu czasu.
+     */
+    @Procedure(name = "custom.travelTimeMatrix", mode = Mode.READ)
+    public Stream<MatrixCell> travelTimeMatrix(
+            @Name("origins") List<Object> origins,
+            @Name("destinations") List<Object> destinations,
+            @Name("startTime") String startTimeStr,
+            @Name("dayOfWeek") String dayOfWeek,
+            @Name(value = "maxSeconds", defaultValue = "0") Long maxSeconds
+    ) {
+        int startTime = parseTimeToSeconds(startTimeStr);
+        if (origins == null || destinations == null || startTime == GtfsTime.INVALID || dayOfWeek == null) {
+            log.error("TripPlanner: Błędne parametry macierzy czasów.");
+            return Stream.empty();
+        }
+        int limit = maxSeconds == null || maxSeconds <= 0 ? Integer.MAX_VALUE - 1
+                : (int) Math.min((long) startTime + maxSeconds, Integer.MAX_VALUE - 1);
+
+        // 1. Przystanki rozwiązujemy sekwencyjnie w transakcji wywołującej (nieznane = -1)
+        TimetableSnapshot timetable = TimetableRegistry.get(db, tx);
+        int[] sources = resolveStops(timetable, origins);
+        int[] allTargets = resolveStops(timetable, destinations);
+        int[] targetColumns = IntStream.range(0, allTargets.length).filter(i -> allTargets[i] >= 0).toArray();
+        int[] targets = Arrays.stream(targetColumns).map(i -> allTargets[i]).toArray();
+        if (targets.length == 0) {
+            log.error("TripPlanner: Żaden cel macierzy nie jest znanym przystankiem.");
+            return Stream.empty();
+        }
+
+        String todayProp = dayOfWeek.toLowerCase();
+        RoutingStats.Query query = stats().start("travelTimeMatrix", todayProp);
+        long prefetchStarted = System.nanoTime();
+        BitSet tripsToday = ActiveTripsCache.activeTrips(db, tx, timetable, todayProp);
+        BitSet tripsTomorrow = ActiveTripsCache.activeTrips(db, tx, timetable, getNextDay(todayProp));
+        query.prefetched(prefetchStarted);
+        DelayOverlay.View delays = delays(timetable);
+
+        // 2. Porcje startów liczone równolegle; wiersz porcji to przyjazdy do celów (MAX_VALUE = nieosiągalny)
+        int chunk = BATCH_POOL.getParallelism() * MATRIX_ROWS_PER_THREAD;
+        int chunks = (sources.length + chunk - 1) / chunk;
+        long started = System.currentTimeMillis();
+        return IntStream.range(0, chunks).boxed().flatMap(c -> {
+            int from = c * chunk, to = Math.min(sources.length, from + chunk);
+            int[][] rows;
+            try {
+                rows = BATCH_POOL.submit(() -> IntStream.range(from, to).parallel()
+                        .mapToObj(i -> {
+                            if (sources[i] < 0) return null;
+                            DijkstraRouter router = new DijkstraRouter(timetable, tripsToday, tripsTomorrow, false, delays);
+                            int[] row = router.arrivals(sources[i], startTime, targets, limit);
+                            query.search(router);
+                            return row;
+                        })
+                        .toArray(int[][]::new)).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Macierz czasów przerwana", e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Macierz czasów nie powiodła się", e.getCause());
+            }
+            log.info("TripPlanner: Macierz czasów " + to + "/" + sources.length + " startów ("
+                    + (System.currentTimeMillis() - started) + " ms).");
+
+            // 3. Komórki porcji, bez nieosiągalnych par
+            List<MatrixCell> cells = new ArrayList<>();
+            for (int r = 0; r < rows.length; r++) {
+                if (rows[r] == null) continue;
+                for (int k = 0; k < targets.length; k++) {
+                    if (rows[r][k] != Integer.MAX_VALUE) {
+                        cells.add(new MatrixCell(from + r, targetColumns[k], rows[r][k] - startTime));
+                    }
                 }
             }
+            return cells.stream();
+        }).onClose(() -> query.finish(log, "macierz " + sources.length + " x " + targets.length));
+    }
+
+    @Procedure(name = "custom.rebuildTimetable", mode = Mode.READ)
+    public Stream<TimetableStats> rebuildTimetable() {
+        // Wołać po przeładowaniu GTFS - kolejne zapytania użyją nowego snapshotu
+        TimetableSnapshot timetable = TimetableRegistry.rebuild(db, tx);
+        log.info("TripPlanner: Przebudowano rozkład (" + timetable.stopCount + " przystanków, "
+                + timetable.connectionCount() + " połączeń" + (timetable.fromPatterns ? " z wzorców :Pattern" : "")
+                + ") w " + timetable.buildMillis + " ms.");
+        return Stream.of(new TimetableStats(timetable.stopCount, timetable.tripCount,
+                timetable.connectionCount(), timetable.buildMillis, timetable.version));
+    }
+
+    @Procedure(name = "custom.routeCacheStats", mode = Mode.READ)
+    public Stream<RouteCacheStats> routeCacheStats() {
+        return Stream.of(cacheStats(RouteCache.forDatabase(db.databaseName())));
+    }
+
+    @Procedure(name = "custom.clearRouteCache", mode = Mode.READ)
+    public Stream<RouteCacheStats> clearRouteCache() {
+        RouteCache cache = RouteCache.forDatabase(db.databaseName());
+        cache.clear();
+        return Stream.of(cacheStats(cache));
+    }
+
+    /**
+     * Histogramy czasów i liczniki wyszukiwań per procedura i dzień tygodnia. reset = true zeruje je
+     * po odczycie; slowQueryMillis >= 0 ustawia próg logu wolnych zapytań (0 = wyłączony).
+     */
+    @Procedure(name = "custom.routingStats", mode = Mode.READ)
+    public Stream<RoutingStatsRow> routingStats(
+            @Name(value = "reset", defaultValue = "false") Boolean reset,
+            @Name(value = "slowQueryMillis", defaultValue = "-1") Long slowQueryMillis
+    ) {
+        RoutingStats stats = stats();
+        if (slowQueryMillis != null && slowQueryMillis >= 0) stats.slowQueryMillis(slowQueryMillis);
+        long threshold = stats.slowQueryMillis();
+        List<RoutingStatsRow> rows = stats.histograms().stream()
+                .map(h -> new RoutingStatsRow(h, threshold))
+                .collect(Collectors.toList());
+        if (Boolean.TRUE.equals(reset)) stats.reset();
+        return rows.stream();
+    }
+
+    private static RouteCacheStats cacheStats(RouteCache cache) {
+        long hits = cache.hits(), misses = cache.misses();
+        return new RouteCacheStats(cache.size(), RouteCache.CAPACITY, hits, misses,
+                hits + misses == 0 ? 0.0 : (double) hits / (hits + misses),
+                cache.evictions(), cache.invalidations(), cache.timetableVersion());
+    }
+
+    /**
+     * Paczka opóźnień {tripId, stopSequence, delay} (delay w sekundach, ujemny = przed czasem;
+     * stopSequence to stop_sequence przystanku z GTFS, jak na STOPS_AT; domyślnie 0 = cały kurs). Trzymane tylko w pamięci przez ttlSeconds -
+     * wyszukiwania Dijkstry (findFastestRoute i pochodne) uwzględniają je bez zapisu do grafu.
+     */
+    @Procedure(name = "custom.pushDelays", mode = Mode.READ)
+    public Stream<DelayStats> pushDelays(
+            @Name("delays") List<Map<String, Object>> delays,
+            @Name(value = "ttlSeconds", defaultValue = "3600") Long ttlSeconds
+    ) {
+        DelayOverlay overlay = DelayOverlay.forDatabase(db.databaseName());
+        long ttlMillis = (ttlSeconds == null ? 3600 : Math.max(0, ttlSeconds)) * 1000;
+        long accepted = 0, rejected = 0;
+        for (Map<String, Object> update : delays == null ? Collections.<Map<String, Object>>emptyList() : delays) {
+            Object sequence = update.getOrDefault("stopSequence", 0L);
+            Object delay = update.get("delay");
+            boolean ok = sequence instanceof Number && delay instanceof Number
+                    && overlay.push(asString(update.get("tripId")), ((Number) sequence).intValue(), ((Number) delay).intValue(), ttlMillis);
+            if (ok) accepted++;
+            else rejected++;
         }
+        if (rejected > 0) log.warn("TripPlanner: Odrzucono " + rejected + " wpisów opóźnień.");
+        return Stream.of(new DelayStats(accepted, rejected, overlay.activeTrips()));
+    }
+
+    @Procedure(name = "custom.clearDelays", mode = Mode.READ)
+    public Stream<DelayStats> clearDelays() {
+        int removed = DelayOverlay.forDatabase(db.databaseName()).clear();
+        log.info("TripPlanner: Usunięto opóźnienia " + removed + " tripów.");
+        return Stream.of(new DelayStats(0, 0, 0));
     }
 
-    private void relaxNeighbor(State current, Relationship drive, int depTime, int arrTime, boolean isNextDay,
-                               Map<Long, Integer> bestTimes, PriorityQueue<State> queue) {
-        long neighborId = drive.getEndNode().getId();
-        if (arrTime < bestTimes.getOrDefault(neighborId, Integer.MAX_VALUE)) {
-            bestTimes.put(neighborId, arrTime);
-            queue.add(new State(drive.getEndNode(), arrTime, current, drive, isNextDay));
+    private RoutingStats stats() {
+        return RoutingStats.forDatabase(db.databaseName());
+    }
+
+    private DelayOverlay.View delays(TimetableSnapshot timetable) {
+        return DelayOverlay.view(db.databaseName(), timetable, this::stopSequences);
+    }
+
+    // Posortowane stop_sequence kursu z relacji STOPS_AT (klucze opóźnień); null, gdy kursu nie ma w grafie
+    private int[] stopSequences(String tripId) {
+        Node trip = tx.findNode(TRIP_LABEL, "trip_id", tripId);
+        if (trip == null) return null;
+        TimetableSnapshot.IntList sequences = new TimetableSnapshot.IntList();
+        for (Relationship stopsAt : trip.getRelationships(Direction.OUTGOING, STOPS_AT)) {
+            Object seq = stopsAt.getProperty("stop_sequence", null);
+            if (seq instanceof Number) sequences.add(((Number) seq).intValue());
         }
+        int[] sorted = sequences.toArray();
+        Arrays.sort(sorted);
+        return sorted;
     }
 
     // --- Pozostałe metody (getNextDay, findNodeSmart, parseTimeToSeconds) bez zmian ---
@@ -330,6 +1126,83 @@ public class TripPlanner {
         }
     }
 
+    private static int walkSeconds(double meters) {
+        return (int) Math.ceil(meters / SpatialIndex.WALK_SPEED_MPS);
+    }
+
+    // Etap pieszy; po etapie z jutrzejszego tripu czasy podajemy w rachubie następnego dnia (jak ten etap)
+    private static JourneyLeg walkLeg(String line, String from, int depTime, String to, int arrTime, boolean nextDay) {
+        int shift = nextDay ? DAY_SECONDS : 0;
+        return new JourneyLeg(line, from, GtfsTime.format(depTime - shift), to, GtfsTime.format(arrTime - shift), 0, nextDay);
+    }
+
+    // Przystanki w zasięgu spaceru; gdy żadnego nie ma - sam najbliższy
+    private static List<SpatialIndex.Hit> walkableStops(SpatialIndex stops, double lat, double lon, double maxWalk) {
+        List<SpatialIndex.Hit> hits = stops.within(lat, lon, maxWalk);
+        return hits.isEmpty() ? stops.nearest(lat, lon, 1, null) : hits;
+    }
+
+    // Współrzędne startu {lat, lon} z mapy {latitude, longitude} albo punktu; null = start to kod przystanku
+    private static double[] originCoordinates(Object origin) {
+        if (origin instanceof Point) {
+            double[] xy = ((Point) origin).getCoordinate().getCoordinate();
+            return new double[]{xy[1], xy[0]};
+        }
+        if (origin instanceof Map) {
+            Object lat = ((Map<?, ?>) origin).get("latitude");
+            Object lon = ((Map<?, ?>) origin).get("longitude");
+            if (lat instanceof Number && lon instanceof Number) {
+                return new double[]{((Number) lat).doubleValue(), ((Number) lon).doubleValue()};
+            }
+        }
+        return null;
+    }
+
+    // Etapy "od drzwi do drzwi": dojście do przystanku startowego, przejazd, dojście do celu
+    private List<JourneyLeg> doorToDoor(TimetableSnapshot timetable, DijkstraRouter.Arrival arrival,
+                                        double fromLat, double fromLon, int startTime,
+                                        String targetName, double[] target, int egressSeconds) {
+        List<JourneyLeg> journey = new ArrayList<>();
+        double[] source = stopCoordinates(timetable, arrival.source);
+        double accessDistance = source == null ? 0 : SpatialIndex.distanceMeters(fromLat, fromLon, source[0], source[1]);
+        if (accessDistance > 0) {
+            journey.add(walkLeg("Spacer do przystanku (" + (int) accessDistance + "m)", "Start", startTime,
+                    timetable.stopNames[arrival.source], startTime + walkSeconds(accessDistance), false));
+        }
+        journey.addAll(arrival.legs);
+
+        double[] stop = stopCoordinates(timetable, arrival.stop);
+        int egressDistance = stop == null ? 0 : (int) SpatialIndex.distanceMeters(stop[0], stop[1], target[0], target[1]);
+        boolean nextDay = !arrival.legs.isEmpty() && arrival.legs.get(arrival.legs.size() - 1).isNextDay;
+        journey.add(walkLeg("Spacer do celu (" + egressDistance + "m)", timetable.stopNames[arrival.stop], arrival.arrival,
+                targetName, arrival.arrival + egressSeconds, nextDay));
+        return journey;
+    }
+
+    private static String restaurantName(Node restaurant) {
+        Object name = restaurant.getProperty("name", null);
+        return name == null ? "Jadlodalnia" : name.toString();
+    }
+
+    private double[] stopCoordinates(TimetableSnapshot timetable, int stop) {
+        return SpatialIndex.coordinates(tx.getNodeById(timetable.stopNodeIds[stop]));
+    }
+
+    // Indeksy przystanków ze snapshotu dla listy kodów / nazw (findNodeOrName); -1 = nieznany (z ostrzeżeniem)
+    private int[] resolveStops(TimetableSnapshot timetable, List<Object> identifiers) {
+        int[] stops = new int[identifiers.size()];
+        for (int i = 0; i < stops.length; i++) {
+            Node node = findNodeOrName(asString(identifiers.get(i)));
+            stops[i] = node == null ? -1 : timetable.stopIndex(node);
+            if (stops[i] < 0) log.warn("TripPlanner: Pomijam nieznany przystanek " + identifiers.get(i) + ".");
+        }
+        return stops;
+    }
+
+    private static String asString(Object value) {
+        return value == null ? null : value.toString();
+    }
+
     private Node findNodeSmart(String identifier) {
         if (identifier == null) return null;
         Node node = tx.findNode(STOP_LABEL, "stop_id", identifier);
@@ -349,13 +1222,33 @@ public class TripPlanner {
         return node;
     }
 
+    // Jak findNodeSmart, a bez trafienia po kodzie - dokładna nazwa (izochrona i macierz czasów)
+    private Node findNodeOrName(String identifier) {
+        Node node = findNodeSmart(identifier);
+        if (node == null && identifier != null) node = findStopByName(identifier);
+        return node;
+    }
+
+    // Dokładna nazwa stop_name; nazwy w GTFS się powtarzają (słupki), więc bierzemy węzeł o najniższym id
+    private Node findStopByName(String name) {
+        Node found = null;
+        int count = 0;
+        try (ResourceIterator<Node> nodes = tx.findNodes(STOP_LABEL, "stop_name", name)) {
+            while (nodes.hasNext()) {
+                Node node = nodes.next();
+                count++;
+                if (found == null || node.getId() < found.getId()) found = node;
+            }
+        }
+        if (count > 1) {
+            log.warn("TripPlanner: Nazwa " + name + " pasuje do " + count + " przystanków, używam stop_id "
+                    + found.getProperty("stop_id", found.getId()) + ".");
+        }
+        return found;
+    }
+
+    // Bez String.split - patrz GtfsTime
     private int parseTimeToSeconds(String timeStr) {
-        if (timeStr == null) return Integer.MAX_VALUE;
-        String[] parts = timeStr.split(":");
-        if (parts.length < 2) return Integer.MAX_VALUE;
-        int h = Integer.parseInt(parts[0]);
-        int m = Integer.parseInt(parts[1]);
-        int s = parts.length > 2 ? Integer.parseInt(parts[2]) : 0;
-        return h * 3600 + m * 60 + s;
-    }
-}
\ No newline at end of file
+        return GtfsTime.parse(timeStr);
+    }
+}